@@ -21,6 +21,11 @@
 package com.androzic.data;
 
 public class Situation {
+    public static final int DIRTY_POSITION = 1;
+    public static final int DIRTY_VISUALS = 2;
+    public static final int DIRTY_NAME = 4;
+    public static final int DIRTY_ALL = DIRTY_POSITION | DIRTY_VISUALS | DIRTY_NAME;
+
     public double speed;
     public double track;
     public long time;
@@ -29,6 +34,14 @@ public class Situation {
     public double latitude;
     public double longitude;
     public boolean silent;
+    /**
+     * Changes not yet sent to map, combination of DIRTY_* flags
+     */
+    public int dirty;
+    /**
+     * Key of the marker shown on map
+     */
+    public long marker;
 
     public Situation() {
         speed = 0;
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups nearby users into clusters shown on map as one marker, cluster holding enough users
+ * becomes visible. User joins cluster whose center is within cluster distance, preferring the
+ * largest one, so small groups merge as their members move. Clusters are kept in grid cells of
+ * cluster distance size by position of their centers, user looks for clusters only in its own
+ * and eight neighbouring cells. Index is updated incrementally: only moving users are checked,
+ * moving user that stays in reach of its cluster only shifts cluster center.
+ */
+class ClusterIndex {
+    static final int MIN_SIZE = 3;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * Cluster is shown on map like a user, its name holds number of members.
+     */
+    static class Cluster extends Situation {
+        // Grid cell holding cluster center
+        private long cell;
+        private int size;
+        private double sumLatitude;
+        private double sumLongitude;
+
+        private Cluster(long cell) {
+            this.cell = cell;
+            dirty = DIRTY_ALL;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        boolean isVisible() {
+            return size >= MIN_SIZE;
+        }
+
+        private void add(double latitude, double longitude, int sign) {
+            size += sign;
+            sumLatitude += latitude * sign;
+            sumLongitude += longitude * sign;
+            if (size > 0) {
+                this.latitude = sumLatitude / size;
+                this.longitude = sumLongitude / size;
+            }
+            name = String.valueOf(size);
+            dirty |= DIRTY_POSITION;
+        }
+    }
+
+    private static class Member {
+        final String name;
+        Cluster cluster;
+        double latitude;
+        double longitude;
+
+        Member(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<Long, List<Cluster>> cells = new HashMap<>();
+    // Members by user name, situations of users are not kept
+    private final Map<String, Member> members = new HashMap<>();
+    private final List<Cluster> removed = new ArrayList<>();
+    private int distance;
+
+    /**
+     * @param distance cluster distance in meters, 0 disables clustering
+     */
+    ClusterIndex(int distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * Changes cluster distance, the only case when clusters are rebuilt from scratch.
+     */
+    synchronized void setDistance(int distance) {
+        if (this.distance == distance)
+            return;
+        this.distance = distance;
+        List<Member> members = new ArrayList<>(this.members.values());
+        this.members.clear();
+        removeAll();
+        for (Member member : members)
+            update(member.name, member.latitude, member.longitude);
+    }
+
+    synchronized int getDistance() {
+        return distance;
+    }
+
+    private long getCell(double latitude, double longitude) {
+        long row = (long) Math.floor(latitude * METERS_PER_DEGREE / distance);
+        return getCell(row, getColumn(row, longitude));
+    }
+
+    private static long getCell(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+
+    private long getColumn(long row, double longitude) {
+        double step = distance / METERS_PER_DEGREE;
+        // Keep cells roughly square at any latitude
+        double cos = Math.max(Math.cos(Math.toRadians((row + 0.5) * step)), 0.01);
+        return (long) Math.floor((longitude + 180) * cos / step);
+    }
+
+    /**
+     * Updates position of the user, should be called for new users and when user moves.
+     *
+     * @return visible cluster user belongs to or null
+     */
+    synchronized Cluster update(Situation situation) {
+        return update(situation.name, situation.latitude, situation.longitude);
+    }
+
+    private Cluster update(String name, double latitude, double longitude) {
+        if (distance <= 0)
+            return null;
+        Member member = members.get(name);
+        if (member == null) {
+            member = new Member(name);
+            members.put(name, member);
+        } else if (member.latitude == latitude && member.longitude == longitude) {
+            return member.cluster.isVisible() ? member.cluster : null;
+        }
+        Cluster cluster = find(member, latitude, longitude);
+        if (cluster != null && cluster == member.cluster) {
+            // Only cluster center moves
+            cluster.add(member.latitude, member.longitude, -1);
+            member.latitude = latitude;
+            member.longitude = longitude;
+            cluster.add(member.latitude, member.longitude, 1);
+            relocate(cluster);
+            return cluster.isVisible() ? cluster : null;
+        }
+        if (member.cluster != null)
+            leave(member);
+        if (cluster == null) {
+            cluster = new Cluster(getCell(latitude, longitude));
+            put(cluster);
+        }
+        member.cluster = cluster;
+        member.latitude = latitude;
+        member.longitude = longitude;
+        cluster.add(member.latitude, member.longitude, 1);
+        cluster.dirty |= Situation.DIRTY_VISUALS | Situation.DIRTY_NAME;
+        relocate(cluster);
+        return cluster.isVisible() ? cluster : null;
+    }
+
+    /**
+     * Returns the largest cluster whose center is within cluster distance from given position,
+     * own cluster of the member is counted without it and is preferred on tie, then the nearest
+     * one. Returns null if there is no such cluster.
+     */
+    private Cluster find(Member member, double latitude, double longitude) {
+        Cluster best = null;
+        int bestSize = -1;
+        double bestDistance = Double.MAX_VALUE;
+        // Cluster of single user follows it
+        if (member.cluster != null && member.cluster.size == 1) {
+            best = member.cluster;
+            bestSize = 0;
+        }
+        double limit = (double) distance * distance;
+        double cos = Math.cos(Math.toRadians(latitude));
+        long row = (long) Math.floor(latitude * METERS_PER_DEGREE / distance);
+        for (long r = row - 1; r <= row + 1; r++) {
+            // Columns of neighbouring rows are not aligned, they are found by longitude
+            long column = getColumn(r, longitude);
+            for (long c = column - 1; c <= column + 1; c++) {
+                List<Cluster> clusters = cells.get(getCell(r, c));
+                if (clusters == null)
+                    continue;
+                for (Cluster cluster : clusters) {
+                    double dy = (cluster.latitude - latitude) * METERS_PER_DEGREE;
+                    double dx = (cluster.longitude - longitude) * METERS_PER_DEGREE * cos;
+                    double d = dx * dx + dy * dy;
+                    if (d > limit)
+                        continue;
+                    boolean own = cluster == member.cluster;
+                    int size = own ? cluster.size - 1 : cluster.size;
+                    if (size > bestSize || size == bestSize && best != member.cluster && (own || d < bestDistance)) {
+                        best = cluster;
+                        bestSize = size;
+                        bestDistance = d;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    synchronized void remove(Situation situation) {
+        Member member = members.remove(situation.name);
+        if (member != null)
+            leave(member);
+    }
+
+    /**
+     * Returns visible cluster the user is hidden in or null if user is shown by itself.
+     */
+    synchronized Cluster get(Situation situation) {
+        return get(situation.name);
+    }
+
+    /**
+     * Returns visible cluster the user with given name is hidden in or null.
+     */
+    synchronized Cluster get(String name) {
+        Member member = members.get(name);
+        return member != null && member.cluster.isVisible() ? member.cluster : null;
+    }
+
+    /**
+     * Returns all clusters including those too small to be shown.
+     */
+    synchronized List<Cluster> getClusters() {
+        List<Cluster> result = new ArrayList<>();
+        for (List<Cluster> clusters : cells.values())
+            result.addAll(clusters);
+        return result;
+    }
+
+    /**
+     * Returns clusters that were dropped since last call, they should be removed from map.
+     */
+    synchronized List<Cluster> takeRemoved() {
+        List<Cluster> result = new ArrayList<>(removed);
+        removed.clear();
+        return result;
+    }
+
+    /**
+     * Removes all users, returns clusters that should be removed from map.
+     */
+    synchronized List<Cluster> clear() {
+        members.clear();
+        removeAll();
+        return takeRemoved();
+    }
+
+    synchronized int size() {
+        return members.size();
+    }
+
+    private void leave(Member member) {
+        Cluster cluster = member.cluster;
+        cluster.add(member.latitude, member.longitude, -1);
+        cluster.dirty |= Situation.DIRTY_VISUALS | Situation.DIRTY_NAME;
+        if (cluster.size == 0) {
+            take(cluster);
+            if (cluster.id != 0)
+                removed.add(cluster);
+        } else {
+            relocate(cluster);
+        }
+    }
+
+    private void put(Cluster cluster) {
+        List<Cluster> clusters = cells.get(cluster.cell);
+        if (clusters == null) {
+            clusters = new ArrayList<>(1);
+            cells.put(cluster.cell, clusters);
+        }
+        clusters.add(cluster);
+    }
+
+    private void take(Cluster cluster) {
+        List<Cluster> clusters = cells.get(cluster.cell);
+        clusters.remove(cluster);
+        if (clusters.isEmpty())
+            cells.remove(cluster.cell);
+    }
+
+    /**
+     * Moves cluster to the cell of its center.
+     */
+    private void relocate(Cluster cluster) {
+        long cell = getCell(cluster.latitude, cluster.longitude);
+        if (cell == cluster.cell)
+            return;
+        take(cluster);
+        cluster.cell = cell;
+        put(cluster);
+    }
+
+    private void removeAll() {
+        for (List<Cluster> clusters : cells.values()) {
+            for (Cluster cluster : clusters) {
+                if (cluster.id != 0)
+                    removed.add(cluster);
+            }
+        }
+        cells.clear();
+    }
+}
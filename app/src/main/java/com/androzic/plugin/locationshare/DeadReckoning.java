@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.util.Geo;
+
+/**
+ * Estimates current position of user from the last fix, its speed and track. Confidence radius
+ * grows with age of the fix as speed, track and acceleration errors accumulate. Silent users,
+ * stale fixes and users standing still are not extrapolated. If reported speed or track make
+ * no sense velocity is derived from fix history.
+ */
+class DeadReckoning {
+    // Fixes older than this are not extrapolated
+    static final long MAX_AGE = 120000; // ms
+    // Slower users are considered standing, their speed is GPS noise
+    static final double MIN_SPEED = 0.5; // m/s
+    // Faster reports are garbage
+    static final double MAX_SPEED = 150; // m/s
+    static final double FIX_ACCURACY = 10; // m
+    static final double SPEED_ERROR = 0.5; // m/s
+    static final double TRACK_ERROR = Math.toRadians(10);
+    static final double ACCELERATION = 0.3; // m/s^2
+    // Fixes used to derive velocity
+    private static final int HISTORY = 4;
+
+    /**
+     * Estimated position of user.
+     */
+    static class Estimate {
+        double latitude;
+        double longitude;
+        // Radius of confidence circle, meters
+        double radius;
+    }
+
+    private final SituationStore store;
+    private final long[] times = new long[HISTORY];
+    private final double[] latitudes = new double[HISTORY];
+    private final double[] longitudes = new double[HISTORY];
+    private final double[] velocity = new double[2];
+
+    /**
+     * @param store source of fix history, can be null
+     */
+    DeadReckoning(SituationStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Estimates position of user at given time. Should be called from one thread.
+     *
+     * @param situation user
+     * @param time      time in user clock, milliseconds
+     * @param estimate  receives estimated position, or the fix if it is not extrapolated
+     * @return true if position was extrapolated
+     */
+    boolean estimate(Situation situation, long time, Estimate estimate) {
+        long age = Math.max(time - situation.time, 0);
+        estimate.latitude = situation.latitude;
+        estimate.longitude = situation.longitude;
+        estimate.radius = getRadius(0, age);
+        if (situation.silent || age > MAX_AGE)
+            return false;
+        if (!getVelocity(situation, velocity))
+            return false;
+        double speed = velocity[0];
+        double track = velocity[1];
+        if (speed < MIN_SPEED)
+            return false;
+        double[] position = Geo.projection(situation.latitude, situation.longitude, speed * age / 1000, track);
+        estimate.latitude = position[0];
+        estimate.longitude = position[1];
+        estimate.radius = getRadius(speed, age);
+        return true;
+    }
+
+    /**
+     * Returns velocity of user. Reported speed and track are used if they make sense, otherwise
+     * velocity is derived from fix history. Should be called from one thread.
+     *
+     * @param velocity receives speed in m/s and track in degrees
+     * @return false if velocity is unknown
+     */
+    boolean getVelocity(Situation situation, double[] velocity) {
+        double speed = situation.speed;
+        double track = situation.track;
+        if (!(speed >= 0 && speed <= MAX_SPEED && track >= 0 && track <= 360)) {
+            if (store == null)
+                return false;
+            int count = store.getHistory(situation.name, times, latitudes, longitudes);
+            // Oldest of recent fixes smooths out GPS noise
+            int first = 0;
+            while (first < count - 1 && times[count - 1] - times[first] > MAX_AGE)
+                first++;
+            long interval = count > 1 ? times[count - 1] - times[first] : 0;
+            if (interval <= 0)
+                return false;
+            speed = Geo.distance(latitudes[first], longitudes[first], latitudes[count - 1], longitudes[count - 1]) * 1000 / interval;
+            track = Geo.bearing(latitudes[first], longitudes[first], latitudes[count - 1], longitudes[count - 1]);
+        }
+        velocity[0] = speed;
+        velocity[1] = track;
+        return true;
+    }
+
+    /**
+     * Returns confidence radius of position of user moving with given speed after given time.
+     */
+    static double getRadius(double speed, long age) {
+        double t = age / 1000.0;
+        return FIX_ACCURACY + t * (SPEED_ERROR + speed * Math.sin(TRACK_ERROR)) + ACCELERATION * t * t / 2;
+    }
+}
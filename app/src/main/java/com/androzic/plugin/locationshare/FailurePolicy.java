@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import java.util.Random;
+
+/**
+ * Decides when failed sharing requests can be retried. Consecutive failures back off
+ * exponentially, after {@link #FAILURE_THRESHOLD} failures circuit breaker opens and no requests
+ * are made until cool down time passes. Then single probe request is allowed, its success closes
+ * the breaker and its failure opens it again for longer time. All delays are randomized so that
+ * clients do not retry in sync after server outage.
+ */
+class FailurePolicy {
+    static final int FAILURE_THRESHOLD = 5;
+    static final long BASE_BACKOFF = 5000; // 5 seconds
+    static final long MAX_BACKOFF = 300000; // 5 minutes
+    static final long OPEN_TIMEOUT = 120000; // 2 minutes
+    static final long MAX_OPEN_TIMEOUT = 1800000; // 30 minutes
+
+    enum Kind {
+        TIMEOUT,
+        NETWORK,
+        SERVER,
+        THROTTLED,
+        CLIENT,
+        PARSE
+    }
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Random random;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private int trips = 0;
+    private long retryTime = 0;
+    private boolean probing = false;
+
+    FailurePolicy() {
+        this(new Random());
+    }
+
+    FailurePolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Classifies HTTP error status.
+     */
+    static Kind classify(int statusCode) {
+        if (statusCode == 408)
+            return Kind.TIMEOUT;
+        if (statusCode == 429 || statusCode == 503)
+            return Kind.THROTTLED;
+        if (statusCode >= 400 && statusCode < 500)
+            return Kind.CLIENT;
+        return Kind.SERVER;
+    }
+
+    /**
+     * Returns true if request can be made now. When breaker is open and cool down time has passed
+     * it switches to half-open state and allows single probe request.
+     */
+    synchronized boolean allowRequest(long time) {
+        switch (state) {
+            case OPEN:
+                if (time < retryTime)
+                    return false;
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            case HALF_OPEN:
+                return !probing;
+            default:
+                return time >= retryTime;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trips = 0;
+        retryTime = 0;
+        probing = false;
+    }
+
+    /**
+     * Registers failed request.
+     *
+     * @param kind       failure kind
+     * @param time       current time
+     * @param retryAfter minimum delay requested by server, 0 if not specified
+     */
+    synchronized void onFailure(Kind kind, long time, long retryAfter) {
+        // Reply was received, it is not a transport failure, cursor reset will handle it
+        if (kind == Kind.PARSE) {
+            if (state == State.HALF_OPEN)
+                onSuccess();
+            return;
+        }
+        failures++;
+        if (state == State.HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+            trips++;
+            state = State.OPEN;
+            probing = false;
+            long timeout = Math.min(MAX_OPEN_TIMEOUT, OPEN_TIMEOUT << Math.min(trips - 1, 10));
+            retryTime = time + jitter(Math.max(timeout, retryAfter));
+            return;
+        }
+        long delay;
+        if (kind == Kind.CLIENT)
+            // Server refuses our requests, retrying often will not help
+            delay = MAX_BACKOFF;
+        else
+            delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 16));
+        retryTime = time + jitter(Math.max(delay, retryAfter));
+    }
+
+    /**
+     * Returns delay till next request taking backoff into account.
+     *
+     * @param interval regular update interval
+     * @param time     current time
+     */
+    synchronized long getDelay(long interval, long time) {
+        return Math.max(interval, retryTime - time);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    synchronized long getRetryTime() {
+        return retryTime;
+    }
+
+    /**
+     * Returns random delay between half and full of specified delay.
+     */
+    private long jitter(long delay) {
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+/**
+ * Recent fixes of users kept in ring buffers of primitive arrays indexed by store slot.
+ * Coordinates are stored as fixed point integers with 1E-7 degree resolution (about a
+ * centimeter). Total number of fixes is capped by budget shared by all slots, when there are
+ * more slots than budget allows for configured capacity each slot keeps fewer fixes. Appends
+ * do not allocate, arrays are rebuilt only when number of slots or capacity changes.
+ * Not thread safe, store guards it with its lock.
+ */
+class FixHistory {
+    static final int DEFAULT_CAPACITY = 32;
+    // 16 bytes per fix, 1 MB for all users
+    static final int DEFAULT_BUDGET = 65536;
+    static final double SCALE = 1E7;
+
+    private final int budget;
+    private int capacity;
+    // Capacity of one slot after budget is applied
+    private int slotCapacity;
+    private int slots;
+    private long[] times = new long[0];
+    private int[] latitudes = new int[0];
+    private int[] longitudes = new int[0];
+    private int[] heads = new int[0];
+    private int[] sizes = new int[0];
+
+    FixHistory(int capacity, int budget) {
+        this.capacity = capacity;
+        this.budget = budget;
+    }
+
+    /**
+     * Sets number of fixes kept for each user, older fixes are dropped if it is reduced.
+     */
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+        layout(slots);
+    }
+
+    /**
+     * Makes room for given number of slots, capacity of slots is reduced if budget is exceeded.
+     */
+    void ensureSlots(int slots) {
+        if (slots > this.slots)
+            layout(slots);
+    }
+
+    void append(int slot, long time, double latitude, double longitude) {
+        if (slotCapacity == 0 || slot >= slots)
+            return;
+        int i = slot * slotCapacity + heads[slot];
+        times[i] = time;
+        latitudes[i] = (int) Math.round(latitude * SCALE);
+        longitudes[i] = (int) Math.round(longitude * SCALE);
+        heads[slot] = heads[slot] + 1 == slotCapacity ? 0 : heads[slot] + 1;
+        if (sizes[slot] < slotCapacity)
+            sizes[slot]++;
+    }
+
+    void clear(int slot) {
+        if (slot >= slots)
+            return;
+        heads[slot] = 0;
+        sizes[slot] = 0;
+    }
+
+    void clear() {
+        for (int slot = 0; slot < slots; slot++)
+            clear(slot);
+    }
+
+    int size(int slot) {
+        return slot < slots ? sizes[slot] : 0;
+    }
+
+    /**
+     * Copies newest fixes of the slot, oldest first.
+     *
+     * @return number of copied fixes, limited by history size and length of arrays
+     */
+    int copy(int slot, long[] times, double[] latitudes, double[] longitudes) {
+        int count = Math.min(size(slot), Math.min(times.length, Math.min(latitudes.length, longitudes.length)));
+        int base = slot * slotCapacity;
+        // Position of the oldest copied fix
+        int start = heads[slot] - count;
+        if (start < 0)
+            start += slotCapacity;
+        for (int k = 0; k < count; k++) {
+            int i = base + (start + k) % slotCapacity;
+            times[k] = this.times[i];
+            latitudes[k] = this.latitudes[i] / SCALE;
+            longitudes[k] = this.longitudes[i] / SCALE;
+        }
+        return count;
+    }
+
+    int getSlotCapacity() {
+        return slotCapacity;
+    }
+
+    /**
+     * Returns memory taken by history arrays.
+     */
+    long getBytes() {
+        return times.length * 16L + (heads.length + sizes.length) * 4L;
+    }
+
+    private void layout(int slots) {
+        int slotCapacity = slots > 0 ? Math.min(capacity, budget / slots) : capacity;
+        long[] times = new long[slots * slotCapacity];
+        int[] latitudes = new int[times.length];
+        int[] longitudes = new int[times.length];
+        int[] heads = new int[slots];
+        int[] sizes = new int[slots];
+        // Keep newest fixes
+        for (int slot = 0; slot < this.slots; slot++) {
+            int count = Math.min(this.sizes[slot], slotCapacity);
+            int start = this.heads[slot] - count;
+            if (start < 0)
+                start += this.slotCapacity;
+            for (int k = 0; k < count; k++) {
+                int from = slot * this.slotCapacity + (start + k) % this.slotCapacity;
+                int to = slot * slotCapacity + k;
+                times[to] = this.times[from];
+                latitudes[to] = this.latitudes[from];
+                longitudes[to] = this.longitudes[from];
+            }
+            heads[slot] = slotCapacity > 0 ? count % slotCapacity : 0;
+            sizes[slot] = count;
+        }
+        this.times = times;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.heads = heads;
+        this.sizes = sizes;
+        this.slots = slots;
+        this.slotCapacity = slotCapacity;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.androzic.data.Situation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable queue of own fixes taken while sharing server is unreachable. Fixes are kept in a
+ * fixed size ring file so disk usage is bounded, when it is full oldest fixes are dropped.
+ * Appending a fix costs two small positioned writes, the record and the header.
+ * <p>
+ * File layout: <code>magic, owner, start, count</code> header followed by
+ * {@link #RECORD_SIZE} byte records of <code>lat, lon, time, speed, track</code>.
+ */
+class FixOutbox {
+    private static final String TAG = "FixOutbox";
+
+    static final int DEFAULT_CAPACITY = 4096; // 128 KB, 11 hours with 10 second spacing
+    static final long MIN_SPACING = 10000; // 10 seconds
+    static final int MAX_BATCH = 100;
+
+    private static final int MAGIC = 0x46584f31; // FXO1
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 32;
+
+    private final RandomAccessFile file;
+    private final int capacity;
+    private int owner;
+    private int start;
+    private int count;
+    private long lastTime = Long.MIN_VALUE;
+
+    /**
+     * Opens outbox file, creating it if necessary. Damaged file is silently emptied.
+     */
+    FixOutbox(File path, int capacity) throws IOException {
+        this.capacity = capacity;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() >= HEADER_SIZE && file.readInt() == MAGIC) {
+                owner = file.readInt();
+                start = file.readInt();
+                count = file.readInt();
+                if (start >= 0 && start < capacity && count >= 0 && count <= capacity
+                        && file.length() >= HEADER_SIZE + (long) Math.min(start + count, capacity) * RECORD_SIZE) {
+                    if (count > 0)
+                        lastTime = read(count - 1).time;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Damaged outbox", e);
+        }
+        owner = 0;
+        start = 0;
+        count = 0;
+        file.setLength(0);
+        writeHeader();
+    }
+
+    /**
+     * Binds outbox to session member, fixes of other member are discarded.
+     */
+    synchronized void setOwner(int owner) throws IOException {
+        if (this.owner == owner)
+            return;
+        this.owner = owner;
+        clear();
+    }
+
+    /**
+     * Appends fix unless it is too close in time to the previously added one.
+     *
+     * @return true if fix was added
+     */
+    synchronized boolean add(Situation fix) throws IOException {
+        if (fix.time < lastTime + MIN_SPACING)
+            return false;
+        int slot;
+        if (count == capacity) {
+            slot = start;
+            start = (start + 1) % capacity;
+        } else {
+            slot = (start + count) % capacity;
+            count++;
+        }
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer.wrap(record)
+                .putDouble(fix.latitude)
+                .putDouble(fix.longitude)
+                .putLong(fix.time)
+                .putFloat((float) fix.speed)
+                .putFloat((float) fix.track);
+        file.seek(HEADER_SIZE + (long) slot * RECORD_SIZE);
+        file.write(record);
+        writeHeader();
+        lastTime = fix.time;
+        return true;
+    }
+
+    /**
+     * Returns up to <code>max</code> oldest fixes without removing them.
+     */
+    synchronized List<Situation> peek(int max) throws IOException {
+        int n = Math.min(max, count);
+        List<Situation> fixes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            fixes.add(read(i));
+        return fixes;
+    }
+
+    /**
+     * Removes fixes that were uploaded.
+     *
+     * @param uploaded fixes previously returned by {@link #peek(int)}
+     */
+    synchronized void remove(List<Situation> uploaded) throws IOException {
+        int n = 0;
+        // Oldest fixes could be overwritten meanwhile, match by time
+        for (Situation fix : uploaded) {
+            if (n < count && read(n).time == fix.time)
+                n++;
+        }
+        if (n == 0)
+            return;
+        start = (start + n) % capacity;
+        count -= n;
+        writeHeader();
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized void clear() throws IOException {
+        start = 0;
+        count = 0;
+        lastTime = Long.MIN_VALUE;
+        file.setLength(HEADER_SIZE);
+        writeHeader();
+    }
+
+    synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close outbox", e);
+        }
+    }
+
+    /**
+     * Encodes fixes for servers using JSON protocol.
+     */
+    static byte[] toJson(List<Situation> fixes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fixes.size() * 96);
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.beginArray();
+            for (Situation fix : fixes) {
+                writer.beginObject();
+                writer.name("lat").value(fix.latitude);
+                writer.name("lon").value(fix.longitude);
+                writer.name("track").value(fix.track);
+                writer.name("speed").value(fix.speed);
+                writer.name("ftime").value(fix.time);
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        return out.toByteArray();
+    }
+
+    private Situation read(int index) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        file.seek(HEADER_SIZE + (long) ((start + index) % capacity) * RECORD_SIZE);
+        file.readFully(record);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        Situation fix = new Situation();
+        fix.latitude = buffer.getDouble();
+        fix.longitude = buffer.getDouble();
+        fix.time = buffer.getLong();
+        fix.speed = buffer.getFloat();
+        fix.track = buffer.getFloat();
+        return fix;
+    }
+
+    private void writeHeader() throws IOException {
+        file.seek(0);
+        file.writeInt(MAGIC);
+        file.writeInt(owner);
+        file.writeInt(start);
+        file.writeInt(count);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import static mobi.maptrek.provider.DataContract.MAPOBJECTS_URI;
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_ID_SELECTION;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trekarta map objects provider accessed through content provider client.
+ */
+class MapObjectProvider implements MapObjectSink.Provider {
+    private final ContentProviderClient client;
+
+    MapObjectProvider(ContentProviderClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public long[] applyBatch(List<MapObjectSink.Operation> operations) throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>(operations.size());
+        for (MapObjectSink.Operation operation : operations) {
+            switch (operation.type) {
+                case MapObjectSink.Operation.INSERT:
+                    batch.add(ContentProviderOperation.newInsert(MAPOBJECTS_URI)
+                            .withValues(toContentValues(operation.values)).build());
+                    break;
+                case MapObjectSink.Operation.UPDATE:
+                    batch.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(MAPOBJECTS_URI, operation.situation.id))
+                            .withValues(toContentValues(operation.values)).build());
+                    break;
+                case MapObjectSink.Operation.DELETE:
+                    batch.add(ContentProviderOperation.newDelete(MAPOBJECTS_URI)
+                            .withSelection(MAPOBJECT_ID_SELECTION, toArgs(operation.ids)).build());
+                    break;
+            }
+        }
+        ContentProviderResult[] results = client.applyBatch(batch);
+        long[] ids = new long[operations.size()];
+        for (int i = 0; i < ids.length; i++) {
+            if (operations.get(i).type == MapObjectSink.Operation.INSERT)
+                ids[i] = results[i].uri != null ? ContentUris.parseId(results[i].uri) : 0;
+            else
+                ids[i] = results[i].count != null ? results[i].count : 0;
+        }
+        return ids;
+    }
+
+    @Override
+    public long insert(Map<String, Object> values) throws RemoteException {
+        Uri uri = client.insert(MAPOBJECTS_URI, toContentValues(values));
+        return uri != null ? ContentUris.parseId(uri) : 0;
+    }
+
+    @Override
+    public int update(long id, Map<String, Object> values) throws RemoteException {
+        return client.update(ContentUris.withAppendedId(MAPOBJECTS_URI, id), toContentValues(values), null, null);
+    }
+
+    @Override
+    public void delete(long[] ids) throws RemoteException {
+        client.delete(MAPOBJECTS_URI, MAPOBJECT_ID_SELECTION, toArgs(ids));
+    }
+
+    private static ContentValues toContentValues(Map<String, Object> values) {
+        ContentValues contentValues = new ContentValues(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof byte[])
+                contentValues.put(entry.getKey(), (byte[]) value);
+            else if (value instanceof Double)
+                contentValues.put(entry.getKey(), (Double) value);
+            else if (value instanceof Integer)
+                contentValues.put(entry.getKey(), (Integer) value);
+            else if (value instanceof Long)
+                contentValues.put(entry.getKey(), (Long) value);
+            else if (value == null)
+                contentValues.putNull(entry.getKey());
+            else
+                contentValues.put(entry.getKey(), value.toString());
+        }
+        return contentValues;
+    }
+
+    private static String[] toArgs(long[] ids) {
+        String[] args = new String[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            args[i] = String.valueOf(ids[i]);
+        return args;
+    }
+}
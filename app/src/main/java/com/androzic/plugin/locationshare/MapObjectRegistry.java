@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import android.util.Log;
+
+import com.androzic.data.Situation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent mapping of users to Trekarta map objects. Map objects outlive plugin process, after
+ * restart they are reused instead of being inserted again. Objects that can not be reused,
+ * clusters and objects of other session member, are orphans to be removed. File is rewritten
+ * only when set of map objects changes, not on every update.
+ * <p>
+ * File layout: <code>magic, owner, count</code> header followed by records of
+ * <code>cluster flag, name, id</code>.
+ */
+class MapObjectRegistry {
+    private static final String TAG = "MapObjectRegistry";
+    private static final int MAGIC = 0x4d4f5231; // MOR1
+
+    private final File path;
+    private int owner;
+    private final Map<String, Long> users = new HashMap<>();
+    private final List<Long> orphans = new ArrayList<>();
+    private byte[] saved = new byte[0];
+
+    /**
+     * Opens registry file, damaged file is treated as empty.
+     */
+    MapObjectRegistry(File path) {
+        this.path = path;
+        if (!path.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Wrong magic");
+            owner = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                boolean cluster = in.readBoolean();
+                String name = cluster ? null : in.readUTF();
+                long id = in.readLong();
+                // Clusters are rebuilt from scratch
+                if (cluster)
+                    orphans.add(id);
+                else
+                    users.put(name, id);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Damaged registry", e);
+            users.clear();
+            orphans.clear();
+        }
+    }
+
+    /**
+     * Binds registry to session member, map objects of other member become orphans.
+     */
+    synchronized void setOwner(int owner) {
+        if (this.owner == owner)
+            return;
+        this.owner = owner;
+        orphans.addAll(users.values());
+        users.clear();
+    }
+
+    /**
+     * Returns and forgets ids of user map objects known before restart, by user name.
+     */
+    synchronized Map<String, Long> takeUsers() {
+        Map<String, Long> result = new HashMap<>(users);
+        users.clear();
+        return result;
+    }
+
+    /**
+     * Returns and forgets ids of map objects that should be removed.
+     */
+    synchronized List<Long> takeOrphans() {
+        List<Long> result = new ArrayList<>(orphans);
+        orphans.clear();
+        return result;
+    }
+
+    /**
+     * Saves map objects that are currently on map, file is not touched if nothing has changed.
+     *
+     * @param objects users and clusters, those without map object are skipped
+     */
+    synchronized void save(List<? extends Situation> objects) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(owner);
+        int count = 0;
+        for (Situation object : objects) {
+            if (object.id != 0)
+                count++;
+        }
+        out.writeInt(count);
+        for (Situation object : objects) {
+            if (object.id == 0)
+                continue;
+            boolean cluster = object instanceof ClusterIndex.Cluster;
+            out.writeBoolean(cluster);
+            if (!cluster)
+                out.writeUTF(object.name);
+            out.writeLong(object.id);
+        }
+        out.flush();
+        byte[] data = buffer.toByteArray();
+        if (Arrays.equals(data, saved))
+            return;
+        // Replace file atomically, process can be killed at any moment
+        File temp = new File(path.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            file.write(data);
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(path))
+            throw new IOException("Failed to replace " + path);
+        saved = data;
+    }
+
+    /**
+     * Forgets all map objects.
+     */
+    synchronized void clear() throws IOException {
+        users.clear();
+        orphans.clear();
+        save(new ArrayList<Situation>());
+    }
+}
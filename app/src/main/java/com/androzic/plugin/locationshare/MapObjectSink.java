@@ -0,0 +1,258 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+
+import com.androzic.data.Situation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects map object mutations and writes them to Trekarta in as few provider transactions as
+ * possible. Each cross-process call costs a binder round trip, so all operations of one update
+ * are sent as a single batch. Batches are split by size to stay below binder transaction limit.
+ * If provider does not support batches, operations are sent one by one.
+ */
+class MapObjectSink {
+    static final int MAX_BATCH_SIZE = 256 * 1024; // bytes
+    static final int MAX_DELETE_IDS = 100;
+    // Rough size of operation excluding values
+    private static final int OPERATION_OVERHEAD = 64;
+
+    /**
+     * Map objects content provider.
+     */
+    interface Provider {
+        /**
+         * Applies operations in one transaction.
+         *
+         * @return ids of inserted objects, number of affected objects for other operations
+         * @throws UnsupportedOperationException if provider does not support batches
+         */
+        long[] applyBatch(List<Operation> operations) throws RemoteException, OperationApplicationException;
+
+        long insert(Map<String, Object> values) throws RemoteException;
+
+        /**
+         * @return number of updated objects
+         */
+        int update(long id, Map<String, Object> values) throws RemoteException;
+
+        void delete(long[] ids) throws RemoteException;
+    }
+
+    static final class Operation {
+        static final int INSERT = 1;
+        static final int UPDATE = 2;
+        static final int DELETE = 3;
+
+        final int type;
+        final Situation situation;
+        final Map<String, Object> values;
+        final long[] ids;
+        private boolean applied;
+        private long result;
+
+        private Operation(int type, Situation situation, Map<String, Object> values, long[] ids) {
+            this.type = type;
+            this.situation = situation;
+            this.values = values;
+            this.ids = ids;
+        }
+
+        boolean isApplied() {
+            return applied;
+        }
+
+        /**
+         * Returns true if updated object was not found on map.
+         */
+        boolean isMissing() {
+            return applied && type == UPDATE && result == 0;
+        }
+
+        /**
+         * Returns estimated size of operation in parcel.
+         */
+        int getSize() {
+            int size = OPERATION_OVERHEAD + ids.length * 8;
+            if (values != null) {
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    // Strings are written as UTF-16 with length
+                    size += 4 + entry.getKey().length() * 2 + 4;
+                    Object value = entry.getValue();
+                    if (value instanceof byte[])
+                        size += 4 + ((byte[]) value).length;
+                    else if (value instanceof String)
+                        size += 4 + ((String) value).length() * 2;
+                    else if (value != null)
+                        size += 8;
+                }
+            }
+            return size;
+        }
+
+        private void onApplied(long result) {
+            if (type == INSERT)
+                situation.id = result;
+            this.result = result;
+            applied = true;
+        }
+    }
+
+    private static final long[] NO_IDS = new long[0];
+
+    private final Provider provider;
+    private final List<Operation> queue = new ArrayList<>();
+    private boolean batching = true;
+    private long transactions = 0;
+    private long operations = 0;
+    private long bytes = 0;
+
+    MapObjectSink(Provider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Queues insertion of situation, its id is set when operation is applied.
+     */
+    synchronized Operation insert(Situation situation, Map<String, Object> values) {
+        return enqueue(new Operation(Operation.INSERT, situation, values, NO_IDS));
+    }
+
+    /**
+     * Queues update of situation that is already on map.
+     */
+    synchronized Operation update(Situation situation, Map<String, Object> values) {
+        return enqueue(new Operation(Operation.UPDATE, situation, values, new long[]{situation.id}));
+    }
+
+    /**
+     * Queues removal of map objects, ids are grouped into few delete operations.
+     */
+    synchronized void delete(Collection<Long> ids) {
+        int remaining = ids.size();
+        long[] chunk = null;
+        int n = 0;
+        for (long id : ids) {
+            if (chunk == null)
+                chunk = new long[Math.min(remaining, MAX_DELETE_IDS)];
+            chunk[n++] = id;
+            remaining--;
+            if (n == chunk.length) {
+                enqueue(new Operation(Operation.DELETE, null, null, chunk));
+                chunk = null;
+                n = 0;
+            }
+        }
+    }
+
+    synchronized int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Sends queued operations to provider. Queue is emptied even if provider fails, operations
+     * that were not applied can be recognized by {@link Operation#isApplied()}.
+     *
+     * @return number of provider transactions made
+     */
+    synchronized int flush() throws RemoteException, OperationApplicationException {
+        int count = 0;
+        try {
+            int start = 0;
+            while (start < queue.size()) {
+                int end = start + 1;
+                int size = queue.get(start).getSize();
+                while (end < queue.size() && size + queue.get(end).getSize() <= MAX_BATCH_SIZE) {
+                    size += queue.get(end).getSize();
+                    end++;
+                }
+                List<Operation> chunk = queue.subList(start, end);
+                if (batching) {
+                    try {
+                        long[] ids = provider.applyBatch(chunk);
+                        count++;
+                        for (int i = 0; i < chunk.size(); i++)
+                            chunk.get(i).onApplied(ids[i]);
+                        start = end;
+                        continue;
+                    } catch (UnsupportedOperationException e) {
+                        // Do not try again, provider will not change
+                        batching = false;
+                    }
+                }
+                for (Operation operation : chunk) {
+                    count++;
+                    long result = 0;
+                    switch (operation.type) {
+                        case Operation.INSERT:
+                            result = provider.insert(operation.values);
+                            break;
+                        case Operation.UPDATE:
+                            result = provider.update(operation.situation.id, operation.values);
+                            break;
+                        case Operation.DELETE:
+                            provider.delete(operation.ids);
+                            break;
+                    }
+                    operation.onApplied(result);
+                }
+                start = end;
+            }
+        } finally {
+            for (Operation operation : queue)
+                bytes += operation.getSize();
+            operations += queue.size();
+            transactions += count;
+            queue.clear();
+        }
+        return count;
+    }
+
+    synchronized boolean isBatching() {
+        return batching;
+    }
+
+    synchronized long getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Returns estimated number of bytes sent to provider.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized String getStatistics() {
+        return String.format(Locale.ROOT, "%d operations in %d transactions, %d bytes, %s",
+                operations, transactions, bytes, batching ? "batched" : "unbatched");
+    }
+
+    private Operation enqueue(Operation operation) {
+        queue.add(operation);
+        return operation;
+    }
+}
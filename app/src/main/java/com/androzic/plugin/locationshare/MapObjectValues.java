@@ -0,0 +1,156 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_BITMAP_COLUMN;
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_COLOR_COLUMN;
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_LATITUDE_COLUMN;
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_LONGITUDE_COLUMN;
+import static mobi.maptrek.provider.DataContract.MAPOBJECT_NAME_COLUMN;
+
+import com.androzic.data.Situation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds map object columns for users and clusters. In detailed mode markers are drawn by the
+ * plugin and sent as bitmaps. Otherwise markers are sent by reference: map application draws
+ * its own marker of given color, only a few bytes per user cross process boundary. Clusters
+ * are drawn in both modes so that their size is visible.
+ */
+class MapObjectValues {
+    static final int MAX_CLUSTER_COUNT = 100;
+
+    interface ClusterRenderer {
+        byte[] render(int count);
+    }
+
+    private final String[] columns;
+    private final MarkerRenderer markerRenderer;
+    private final ClusterRenderer clusterRenderer;
+    private volatile int color;
+    private volatile boolean detailed = true;
+    private volatile boolean labels = false;
+
+    /**
+     * @param columns map object column names, as defined by data contract
+     */
+    MapObjectValues(String[] columns, MarkerRenderer markerRenderer, ClusterRenderer clusterRenderer) {
+        this.columns = columns;
+        this.markerRenderer = markerRenderer;
+        this.clusterRenderer = clusterRenderer;
+    }
+
+    void setColor(int color) {
+        this.color = color;
+    }
+
+    /**
+     * Sets whether markers are drawn by plugin or by map application.
+     */
+    void setDetailed(boolean detailed) {
+        this.detailed = detailed;
+    }
+
+    boolean isDetailed() {
+        return detailed;
+    }
+
+    /**
+     * Sets whether drawn markers are labeled with user names.
+     */
+    void setLabels(boolean labels) {
+        this.labels = labels;
+    }
+
+    /**
+     * Returns key of the marker drawn by map application. Bit 62 is never set in keys of drawn
+     * markers, so they do not match.
+     */
+    static long getReferenceKey(int color, boolean silent) {
+        return Long.MIN_VALUE | (1L << 62) | ((color & 0xffffffffL) << 1) | (silent ? 1 : 0);
+    }
+
+    private static boolean isReferenceKey(long key) {
+        return (key & (3L << 62)) == (3L << 62);
+    }
+
+    /**
+     * Returns changed columns of map object, all columns if object is not on map yet. Updates
+     * marker key of the object.
+     */
+    Map<String, Object> get(Situation situation, int dirty) {
+        return get(situation, dirty, situation.silent);
+    }
+
+    /**
+     * Returns changed columns of map object, all columns if object is not on map yet. Updates
+     * marker key of the object.
+     *
+     * @param faded show marker semi-transparent, as silent users are shown
+     */
+    Map<String, Object> get(Situation situation, int dirty, boolean faded) {
+        boolean insert = situation.id == 0;
+        Map<String, Object> values = new HashMap<>();
+        // Name is not required if bitmap is used, but we need it for navigation service.
+        // See SituationList for navigation initiation code.
+        if (insert || (dirty & Situation.DIRTY_NAME) != 0)
+            values.put(columns[MAPOBJECT_NAME_COLUMN], situation.name);
+        if (insert || (dirty & Situation.DIRTY_POSITION) != 0) {
+            values.put(columns[MAPOBJECT_LATITUDE_COLUMN], situation.latitude);
+            values.put(columns[MAPOBJECT_LONGITUDE_COLUMN], situation.longitude);
+        }
+        if (insert || (dirty & Situation.DIRTY_VISUALS) != 0) {
+            int color = this.color;
+            byte[] bitmap = null;
+            if (situation instanceof ClusterIndex.Cluster) {
+                // Clusters are always drawn, marker drawn by map application does not show their size
+                int count = Math.min(((ClusterIndex.Cluster) situation).getSize(), MAX_CLUSTER_COUNT);
+                if (insert || count != situation.marker) {
+                    bitmap = clusterRenderer.render(count);
+                    situation.marker = count;
+                }
+            } else if (!detailed) {
+                // Silent users are shown semi-transparent
+                int markerColor = faded ? (color & 0xffffff) | 0x80000000 : color | 0xff000000;
+                long key = getReferenceKey(markerColor, faded);
+                if (insert || key != situation.marker) {
+                    // Drop bitmap sent in detailed mode
+                    if (!insert && !isReferenceKey(situation.marker))
+                        values.put(columns[MAPOBJECT_BITMAP_COLUMN], null);
+                    values.put(columns[MAPOBJECT_COLOR_COLUMN], markerColor);
+                    situation.marker = key;
+                }
+            } else {
+                // Small changes of speed or track do not change the marker
+                String label = labels ? situation.name : null;
+                long key = markerRenderer.getKey(situation.track, situation.speed, faded, label);
+                if (insert || key != situation.marker) {
+                    bitmap = markerRenderer.render(situation.track, situation.speed, faded, label);
+                    situation.marker = key;
+                }
+            }
+            if (bitmap != null) {
+                values.put(columns[MAPOBJECT_BITMAP_COLUMN], bitmap);
+                values.put(columns[MAPOBJECT_COLOR_COLUMN], color);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Moves displayed markers smoothly between server updates. Each marker is interpolated from its
+ * displayed position to the new fix over the time the fix took to arrive, so it reaches the fix
+ * about when the next one comes. With predictor markers instead follow estimated positions of
+ * users, new fix is blended in shortly. Map updates are limited by IPC time budget shared by
+ * all users, frames take users in round robin order so none starves when budget is tight.
+ * Markers whose predicted position is too uncertain are marked so, they are shown faded until
+ * the next fix comes.
+ */
+class MarkerAnimator {
+    static final int FRAME_INTERVAL = 250; // ms
+    static final int MIN_DURATION = 1000; // ms
+    static final int MAX_DURATION = 60000; // ms
+    static final int DEFAULT_BUDGET = 50; // ms of IPC per second
+    static final int MAX_FRAME_UPDATES = 50;
+    // Marker movement below this is not sent, about 10 cm
+    private static final double EPSILON = 1E-6;
+    private static final long STATISTICS_WINDOW = 10000; // ms
+    // Predicted positions with larger confidence radius are shown as uncertain
+    static final double UNCERTAIN_RADIUS = 200; // m
+
+    /**
+     * Position of animated marker to be sent to map.
+     */
+    static class Frame {
+        final Situation situation;
+        final double latitude;
+        final double longitude;
+        final boolean uncertain;
+        // Marker style should change as position became uncertain or certain again
+        final boolean restyle;
+
+        Frame(Situation situation, double latitude, double longitude, boolean uncertain, boolean restyle) {
+            this.situation = situation;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.uncertain = uncertain;
+            this.restyle = restyle;
+        }
+    }
+
+    private static class Track {
+        // Latest view of the user
+        Situation situation;
+        double fromLatitude;
+        double fromLongitude;
+        double toLatitude;
+        double toLongitude;
+        double latitude;
+        double longitude;
+        long start;
+        long duration;
+        long lastFix;
+        boolean moving;
+        boolean uncertain;
+
+        Track(Situation situation) {
+            this.situation = situation;
+        }
+
+        void jump(double latitude, double longitude) {
+            fromLatitude = toLatitude = this.latitude = latitude;
+            fromLongitude = toLongitude = this.longitude = longitude;
+            moving = false;
+            uncertain = false;
+        }
+    }
+
+    // Tracks by user name
+    private final Map<String, Track> tracks = new HashMap<>();
+    private final List<Track> order = new ArrayList<>();
+    private int next = 0;
+    private DeadReckoning predictor;
+    private final DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+    // Difference between local and user clocks
+    private long timeCorrection;
+    private final long budget; // ns per second
+    private long tokens;
+    private long lastRefill = -1;
+
+    // Statistics
+    private long windowStart = -1;
+    private int windowUpdates;
+    private long windowTime;
+    private double rate;
+    private double ipcTime;
+
+    /**
+     * @param budget IPC time in milliseconds per second animator may consume
+     */
+    MarkerAnimator(int budget) {
+        this.budget = budget * 1000000L;
+        this.tokens = this.budget;
+    }
+
+    /**
+     * Sets estimator of current user positions, if null markers are moved to the last fix.
+     */
+    synchronized void setPredictor(DeadReckoning predictor) {
+        this.predictor = predictor;
+    }
+
+    synchronized void setTimeCorrection(long timeCorrection) {
+        this.timeCorrection = timeCorrection;
+    }
+
+    /**
+     * Registers new fix of the user.
+     *
+     * @return true if marker is animated and its position should not be sent to map directly
+     */
+    synchronized boolean onFix(Situation situation, long now) {
+        Track track = tracks.get(situation.name);
+        boolean first = track == null;
+        long interval = 0;
+        if (first) {
+            track = new Track(situation);
+            tracks.put(situation.name, track);
+            order.add(track);
+            track.jump(situation.latitude, situation.longitude);
+        } else {
+            track.situation = situation;
+            interval = now - track.lastFix;
+        }
+        track.lastFix = now;
+        // Silent users and users that were silent for a long time jump to their fix
+        if (situation.silent || (predictor == null && (first || interval > MAX_DURATION))) {
+            track.jump(situation.latitude, situation.longitude);
+            return false;
+        }
+        track.fromLatitude = track.latitude;
+        track.fromLongitude = track.longitude;
+        track.toLatitude = situation.latitude;
+        track.toLongitude = situation.longitude;
+        track.start = now;
+        // Predicted position is blended with the new fix
+        track.duration = predictor != null ? MIN_DURATION : Math.max(interval, MIN_DURATION);
+        track.moving = true;
+        // First fix is put on map directly
+        return !first;
+    }
+
+    /**
+     * Returns true if position sent to map was set by animator.
+     */
+    synchronized boolean isAnimated(Situation situation) {
+        Track track = tracks.get(situation.name);
+        return track != null && track.moving;
+    }
+
+    /**
+     * Returns true if predicted position of the user is too uncertain and marker should be
+     * shown faded.
+     */
+    synchronized boolean isUncertain(Situation situation) {
+        Track track = tracks.get(situation.name);
+        return track != null && track.uncertain;
+    }
+
+    /**
+     * Registers newer view of the user whose position has not changed, e.g. with new speed
+     * or map object id.
+     */
+    synchronized void update(Situation situation) {
+        Track track = tracks.get(situation.name);
+        if (track != null)
+            track.situation = situation;
+    }
+
+    synchronized void remove(Situation situation) {
+        Track track = tracks.remove(situation.name);
+        if (track != null)
+            order.remove(track);
+    }
+
+    synchronized void clear() {
+        tracks.clear();
+        order.clear();
+    }
+
+    /**
+     * Returns true if there are markers in motion.
+     */
+    synchronized boolean isActive() {
+        for (Track track : order) {
+            if (track.moving)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns marker positions to send in this frame, empty if IPC budget is exhausted.
+     */
+    synchronized List<Frame> frame(long now) {
+        if (lastRefill >= 0)
+            tokens = Math.min(budget, tokens + (now - lastRefill) * budget / 1000);
+        lastRefill = now;
+        List<Frame> frames = new ArrayList<>();
+        if (tokens <= 0 || order.isEmpty())
+            return frames;
+        int size = order.size();
+        int i = 0;
+        for (; i < size && frames.size() < MAX_FRAME_UPDATES; i++) {
+            Track track = order.get((next + i) % size);
+            if (!track.moving || track.situation.id == 0)
+                continue;
+            double toLatitude = track.toLatitude;
+            double toLongitude = track.toLongitude;
+            boolean predicted = predictor != null && predictor.estimate(track.situation, now - timeCorrection, estimate);
+            if (predicted) {
+                toLatitude = estimate.latitude;
+                toLongitude = estimate.longitude;
+            }
+            double progress = Math.min((now - track.start) / (double) track.duration, 1);
+            double latitude = track.fromLatitude + (toLatitude - track.fromLatitude) * progress;
+            double longitude = track.fromLongitude + (toLongitude - track.fromLongitude) * progress;
+            // Prediction goes on until user stops, goes silent or fix becomes too old
+            if (progress >= 1 && !predicted)
+                track.moving = false;
+            boolean uncertain = predicted && estimate.radius > UNCERTAIN_RADIUS;
+            boolean restyle = uncertain != track.uncertain;
+            track.uncertain = uncertain;
+            if (Math.abs(latitude - track.latitude) < EPSILON && Math.abs(longitude - track.longitude) < EPSILON && track.moving && !restyle)
+                continue;
+            track.latitude = latitude;
+            track.longitude = longitude;
+            frames.add(new Frame(track.situation, latitude, longitude, uncertain, restyle));
+        }
+        next = (next + i) % size;
+        return frames;
+    }
+
+    /**
+     * Accounts map update made for a frame.
+     *
+     * @param updates number of updated markers
+     * @param time    time spent in IPC, nanoseconds
+     */
+    synchronized void onFrameSent(long now, int updates, long time) {
+        tokens -= time;
+        if (windowStart < 0)
+            windowStart = now;
+        windowUpdates += updates;
+        windowTime += time;
+        long elapsed = now - windowStart;
+        if (elapsed >= STATISTICS_WINDOW) {
+            rate = windowUpdates * 1000.0 / elapsed;
+            ipcTime = windowTime / 1000000.0 * 1000 / elapsed;
+            windowStart = now;
+            windowUpdates = 0;
+            windowTime = 0;
+        }
+    }
+
+    /**
+     * Returns marker updates per second over last statistics window.
+     */
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns IPC milliseconds per second over last statistics window.
+     */
+    synchronized double getIpcTime() {
+        return ipcTime;
+    }
+
+    synchronized String getStatistics() {
+        return String.format(Locale.ROOT, "%d markers, %.1f updates/s, IPC %.1f ms/s of %d",
+                order.size(), rate, ipcTime, budget / 1000000);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * LRU cache of encoded marker bitmaps. Marker appearance depends only on few quantized
+ * parameters, so in a large session most users share the same few markers. Eviction is bounded
+ * by total size of cached data.
+ */
+class MarkerCache {
+    static final int TRACK_STEP = 5; // degrees
+    static final int TRACK_BUCKETS = 360 / TRACK_STEP;
+    static final int SPEED_BUCKETS = 10;
+    static final int DEFAULT_BUDGET = 2 * 1024 * 1024;
+
+    private final LinkedHashMap<Long, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final int budget;
+    private int bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    MarkerCache(int budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns track bucket, markers are drawn rotated to the bucket center.
+     */
+    static int trackBucket(double track) {
+        int bucket = (int) Math.round(track / TRACK_STEP) % TRACK_BUCKETS;
+        return bucket < 0 ? bucket + TRACK_BUCKETS : bucket;
+    }
+
+    /**
+     * Returns speed bucket, speed vector length grows logarithmically with speed, buckets are
+     * evenly spaced on that scale. Speeds above ~66 m/s fall into the last bucket.
+     */
+    static int speedBucket(double speed) {
+        // https://graphsketch.com/?eqn1_color=1&eqn1_eqn=log(x%2F3.6*2%2B1)&eqn2_color=2&eqn2_eqn=&eqn3_color=3&eqn3_eqn=&eqn4_color=4&eqn4_eqn=&eqn5_color=5&eqn5_eqn=&eqn6_color=6&eqn6_eqn=&x_min=-20&x_max=300&y_min=-2&y_max=3&x_tick=10&y_tick=1&x_label_freq=5&y_label_freq=1&do_grid=0&do_grid=1&bold_labeled_lines=0&bold_labeled_lines=1&line_width=4&image_w=850&image_h=525
+        int bucket = (int) Math.round(Math.log10(Math.max(speed, 0) * 2 + 1) * 4);
+        return Math.min(bucket, SPEED_BUCKETS - 1);
+    }
+
+    /**
+     * Builds cache key of marker render state.
+     *
+     * @param trackBucket track bucket returned by {@link #trackBucket(double)}
+     * @param length      speed vector length in pixels
+     * @param silent      whether user is silent
+     * @param color       tag color
+     * @param pointWidth  tag size
+     */
+    static long key(int trackBucket, int length, boolean silent, int color, int pointWidth) {
+        return ((long) color << 32)
+                | ((long) (pointWidth & 0xff) << 24)
+                | ((long) (length & 0x7fff) << 9)
+                | ((long) (trackBucket & 0xff) << 1)
+                | (silent ? 1 : 0);
+    }
+
+    /**
+     * Builds cache key of labeled marker. Cache is cleared on color change, so label id takes
+     * place of the color. Labeled keys never match unlabeled ones.
+     *
+     * @param label label id, unique within marker style
+     */
+    static long labelKey(int label, int trackBucket, int length, boolean silent, int pointWidth) {
+        return Long.MIN_VALUE | key(trackBucket, length, silent, label & 0x7fffffff, pointWidth);
+    }
+
+    synchronized byte[] get(long key) {
+        byte[] data = entries.get(key);
+        if (data != null)
+            hits++;
+        else
+            misses++;
+        return data;
+    }
+
+    synchronized void put(long key, byte[] data) {
+        byte[] previous = entries.put(key, data);
+        if (previous != null)
+            bytes -= previous.length;
+        bytes += data.length;
+        Iterator<Map.Entry<Long, byte[]>> iterator = entries.entrySet().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = iterator.next();
+            // Never evict just added entry
+            if (eldest.getKey() == key)
+                continue;
+            bytes -= eldest.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops all markers, should be called when marker appearance settings change.
+     */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int getBytes() {
+        return bytes;
+    }
+
+    synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total > 0 ? (double) hits / total : Double.NaN;
+    }
+
+    synchronized String getStatistics() {
+        return String.format(Locale.ROOT, "%d markers, %d bytes, hit ratio %.2f (%d/%d)",
+                entries.size(), bytes, getHitRatio(), hits, hits + misses);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Renders user markers. Markers are taken from cache whenever possible, otherwise they are
+ * drawn on per thread scratch surface which is reused until marker style changes, so steady
+ * state rendering does not allocate bitmaps. Surface is shrunk to the extent of the marker,
+ * slow users take much less pixels to encode.
+ * <p>
+ * If atlas builder is provided, all markers of current style are pre-rendered in background
+ * after each style change. Once atlas is ready, rendering is a plain array lookup.
+ * <p>
+ * Markers can carry user name. Name label is rasterized once per user and style, labeled
+ * markers are cached as any other markers.
+ */
+class MarkerRenderer {
+    /**
+     * Scratch drawing surface, used by single thread.
+     */
+    interface Target {
+        /**
+         * Draws marker centered in a square and encodes it.
+         *
+         * @param size        square side, never exceeds maximum size of the target
+         * @param trackBucket track bucket returned by {@link MarkerCache#trackBucket(double)}
+         * @param length      speed vector length in pixels
+         * @param silent      whether user is silent
+         * @param out         stream to write encoded image to
+         */
+        void render(int size, int trackBucket, int length, boolean silent, ByteArrayOutputStream out);
+
+        /**
+         * Draws marker with label below it. Marker stays in the center of the image.
+         */
+        default void render(int size, int trackBucket, int length, boolean silent, Label label, ByteArrayOutputStream out) {
+            render(size, trackBucket, length, silent, out);
+        }
+    }
+
+    interface TargetFactory {
+        Target create(int maxSize, int color, int pointWidth);
+    }
+
+    /**
+     * Rasterized user name.
+     */
+    interface Label {
+        int getWidth();
+
+        int getHeight();
+    }
+
+    interface LabelFactory {
+        Label create(String name, int color, int pointWidth);
+    }
+
+    private static class LabelEntry {
+        final Label label;
+        final int id;
+
+        LabelEntry(Label label, int id) {
+            this.label = label;
+            this.id = id;
+        }
+    }
+
+    private static class Scratch {
+        final Target target;
+        final int generation;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+        Scratch(Target target, int generation) {
+            this.target = target;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Markers of one style for every track, speed and silent state.
+     */
+    private static class Atlas {
+        final int generation;
+        final byte[][] sprites;
+        final long bytes;
+        final long time;
+
+        Atlas(int generation, byte[][] sprites, long time) {
+            this.generation = generation;
+            this.sprites = sprites;
+            long bytes = 0;
+            for (byte[] sprite : sprites)
+                bytes += sprite.length;
+            this.bytes = bytes;
+            this.time = time;
+        }
+    }
+
+    static final int ATLAS_SIZE = 2 * MarkerCache.SPEED_BUCKETS * MarkerCache.TRACK_BUCKETS;
+    static final int MAX_LABELS = 256;
+
+    private final MarkerCache cache;
+    private final TargetFactory factory;
+    private final Executor atlasBuilder;
+    private final LabelFactory labelFactory;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<>();
+    // Labels by user name, least recently used are dropped
+    private final LinkedHashMap<String, LabelEntry> labels = new LinkedHashMap<>(64, 0.75f, true);
+    private int nextLabel = 0;
+    private long labelsCreated = 0;
+
+    private volatile int generation = 0;
+    private volatile int color;
+    private volatile int pointWidth = 1;
+    private volatile Atlas atlas;
+    private int targets = 0;
+
+    MarkerRenderer(MarkerCache cache, TargetFactory factory) {
+        this(cache, factory, null, null);
+    }
+
+    /**
+     * @param atlasBuilder executor to pre-render atlas on, null to render markers on demand
+     * @param labelFactory factory of name labels, null to render markers without names
+     */
+    MarkerRenderer(MarkerCache cache, TargetFactory factory, Executor atlasBuilder, LabelFactory labelFactory) {
+        this.cache = cache;
+        this.factory = factory;
+        this.atlasBuilder = atlasBuilder;
+        this.labelFactory = labelFactory;
+    }
+
+    /**
+     * Sets marker style, cached markers and scratch surfaces are dropped. Atlas is rebuilt
+     * asynchronously, meanwhile markers are rendered on demand.
+     */
+    synchronized void setStyle(int color, int pointWidth) {
+        // Alpha is defined by silent flag
+        this.color = color & 0xffffff;
+        this.pointWidth = pointWidth;
+        generation++;
+        atlas = null;
+        labels.clear();
+        cache.clear();
+        if (atlasBuilder != null) {
+            final int generation = this.generation;
+            atlasBuilder.execute(() -> buildAtlas(generation, color & 0xffffff, pointWidth));
+        }
+    }
+
+    /**
+     * Returns speed vector length in pixels.
+     */
+    static int getVectorLength(double speed, int pointWidth) {
+        return getBucketLength(MarkerCache.speedBucket(speed), pointWidth);
+    }
+
+    static int getBucketLength(int speedBucket, int pointWidth) {
+        return (int) Math.round(speedBucket * pointWidth * 1.5);
+    }
+
+    static int getMaxSize(int pointWidth) {
+        return pointWidth * 44;
+    }
+
+    /**
+     * Returns side of the square holding marker: outer circle with half of the stroke or speed
+     * vector, whichever is longer, plus a pixel for antialiasing.
+     */
+    static int getSize(int length, int pointWidth) {
+        int half = Math.max(pointWidth * 7, pointWidth * 6 + length) + 1;
+        return Math.min(half * 2, getMaxSize(pointWidth));
+    }
+
+    private static int atlasIndex(int trackBucket, int speedBucket, boolean silent) {
+        return ((silent ? MarkerCache.SPEED_BUCKETS : 0) + speedBucket) * MarkerCache.TRACK_BUCKETS + trackBucket;
+    }
+
+    /**
+     * Returns key of the marker with current style, markers with the same key look the same.
+     */
+    long getKey(double track, double speed, boolean silent) {
+        int pointWidth = this.pointWidth;
+        return MarkerCache.key(MarkerCache.trackBucket(track), getVectorLength(speed, pointWidth), silent, color, pointWidth);
+    }
+
+    /**
+     * Returns key of the marker labeled with user name, name may be null for unlabeled marker.
+     */
+    long getKey(double track, double speed, boolean silent, String name) {
+        if (name == null || labelFactory == null)
+            return getKey(track, speed, silent);
+        int pointWidth = this.pointWidth;
+        LabelEntry label = getLabel(name);
+        return MarkerCache.labelKey(label.id, MarkerCache.trackBucket(track), getVectorLength(speed, pointWidth), silent, pointWidth);
+    }
+
+    /**
+     * Renders marker labeled with user name, name may be null for unlabeled marker.
+     */
+    byte[] render(double track, double speed, boolean silent, String name) {
+        if (name == null || labelFactory == null)
+            return render(track, speed, silent);
+        int pointWidth = this.pointWidth;
+        int color = this.color;
+        int generation = this.generation;
+        LabelEntry label = getLabel(name);
+        int bucket = MarkerCache.trackBucket(track);
+        int length = getVectorLength(speed, pointWidth);
+        long key = MarkerCache.labelKey(label.id, bucket, length, silent, pointWidth);
+        byte[] data = cache.get(key);
+        if (data != null)
+            return data;
+        data = draw(bucket, length, silent, label.label, color, pointWidth, generation);
+        cache.put(key, data);
+        return data;
+    }
+
+    /**
+     * Returns label of the user, creating it if necessary.
+     */
+    private synchronized LabelEntry getLabel(String name) {
+        LabelEntry label = labels.get(name);
+        if (label != null)
+            return label;
+        label = new LabelEntry(labelFactory.create(name, color, pointWidth), nextLabel++);
+        labels.put(name, label);
+        labelsCreated++;
+        Iterator<LabelEntry> iterator = labels.values().iterator();
+        while (labels.size() > MAX_LABELS) {
+            iterator.next();
+            iterator.remove();
+        }
+        return label;
+    }
+
+    byte[] render(double track, double speed, boolean silent) {
+        int pointWidth = this.pointWidth;
+        int color = this.color;
+        int generation = this.generation;
+        int bucket = MarkerCache.trackBucket(track);
+        int speedBucket = MarkerCache.speedBucket(speed);
+        Atlas atlas = this.atlas;
+        if (atlas != null && atlas.generation == generation)
+            return atlas.sprites[atlasIndex(bucket, speedBucket, silent)];
+
+        int length = getBucketLength(speedBucket, pointWidth);
+        long key = MarkerCache.key(bucket, length, silent, color, pointWidth);
+        byte[] data = cache.get(key);
+        if (data != null)
+            return data;
+        data = draw(bucket, length, silent, null, color, pointWidth, generation);
+        cache.put(key, data);
+        return data;
+    }
+
+    private byte[] draw(int trackBucket, int length, boolean silent, Label label, int color, int pointWidth, int generation) {
+        Scratch scratch = this.scratch.get();
+        if (scratch == null || scratch.generation != generation) {
+            scratch = new Scratch(factory.create(getMaxSize(pointWidth), color, pointWidth), generation);
+            this.scratch.set(scratch);
+            synchronized (this) {
+                targets++;
+            }
+        }
+        scratch.out.reset();
+        if (label != null)
+            scratch.target.render(getSize(length, pointWidth), trackBucket, length, silent, label, scratch.out);
+        else
+            scratch.target.render(getSize(length, pointWidth), trackBucket, length, silent, scratch.out);
+        return scratch.out.toByteArray();
+    }
+
+    /**
+     * Pre-renders all markers of the style, gives up as soon as style changes again.
+     */
+    void buildAtlas(int generation, int color, int pointWidth) {
+        long time = System.nanoTime();
+        byte[][] sprites = new byte[ATLAS_SIZE][];
+        for (int silent = 0; silent < 2; silent++) {
+            for (int speedBucket = 0; speedBucket < MarkerCache.SPEED_BUCKETS; speedBucket++) {
+                int length = getBucketLength(speedBucket, pointWidth);
+                for (int bucket = 0; bucket < MarkerCache.TRACK_BUCKETS; bucket++) {
+                    if (this.generation != generation)
+                        return;
+                    sprites[atlasIndex(bucket, speedBucket, silent == 1)] = draw(bucket, length, silent == 1, null, color, pointWidth, generation);
+                }
+            }
+        }
+        // Surface is not needed until next style change
+        scratch.remove();
+        synchronized (this) {
+            if (this.generation != generation)
+                return;
+            atlas = new Atlas(generation, sprites, System.nanoTime() - time);
+            // Atlas covers everything cached so far
+            cache.clear();
+        }
+    }
+
+    boolean isAtlasReady() {
+        Atlas atlas = this.atlas;
+        return atlas != null && atlas.generation == generation;
+    }
+
+    /**
+     * Returns number of labels rasterized so far.
+     */
+    synchronized long getLabelsCreated() {
+        return labelsCreated;
+    }
+
+    /**
+     * Returns number of scratch surfaces created so far.
+     */
+    synchronized int getTargets() {
+        return targets;
+    }
+
+    String getStatistics() {
+        Atlas atlas = this.atlas;
+        String labels = getLabelsCreated() + " labels";
+        if (atlas != null)
+            return String.format(Locale.ROOT, "atlas of %d markers, %d bytes, built in %d ms, %s, %d surfaces",
+                    atlas.sprites.length, atlas.bytes, atlas.time / 1000000, labels, getTargets());
+        return cache.getStatistics() + ", " + labels + ", " + getTargets() + " surfaces";
+    }
+}
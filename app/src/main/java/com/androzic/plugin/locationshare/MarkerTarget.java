@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reusable bitmap surface for {@link MarkerRenderer}. Bitmap is allocated once at maximum size
+ * and reconfigured in place to the size of each marker. It is enlarged only if labeled marker
+ * does not fit.
+ */
+class MarkerTarget implements MarkerRenderer.Target {
+    /**
+     * Name rasterized with outline, to be readable on any map.
+     */
+    static class Label implements MarkerRenderer.Label {
+        private final Bitmap bitmap;
+
+        Label(String name, Paint paint) {
+            Paint outline = new Paint(paint);
+            outline.setStyle(Paint.Style.STROKE);
+            outline.setStrokeWidth(paint.getTextSize() / 6);
+            outline.setColor(Color.WHITE);
+            Paint.FontMetrics metrics = paint.getFontMetrics();
+            int margin = (int) Math.ceil(outline.getStrokeWidth());
+            int width = (int) Math.ceil(paint.measureText(name)) + margin * 2;
+            int height = (int) Math.ceil(metrics.descent - metrics.ascent) + margin * 2;
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            canvas.drawText(name, margin, margin - metrics.ascent, outline);
+            canvas.drawText(name, margin, margin - metrics.ascent, paint);
+        }
+
+        @Override
+        public int getWidth() {
+            return bitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return bitmap.getHeight();
+        }
+    }
+
+    private Bitmap bitmap;
+    private final Canvas canvas = new Canvas();
+    private final Paint paint = new Paint();
+    private final int pointWidth;
+
+    MarkerTarget(int maxSize, int color, int pointWidth) {
+        this.pointWidth = pointWidth;
+        bitmap = Bitmap.createBitmap(maxSize, maxSize, Bitmap.Config.ARGB_8888);
+        paint.setAntiAlias(true);
+        paint.setStrokeWidth(pointWidth * 2);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(color);
+    }
+
+    @Override
+    public void render(int size, int trackBucket, int length, boolean silent, ByteArrayOutputStream out) {
+        prepare(size, size);
+        drawMarker(size, trackBucket, length, silent);
+        // PNG is lossless, quality is ignored
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+    }
+
+    @Override
+    public void render(int size, int trackBucket, int length, boolean silent, MarkerRenderer.Label label, ByteArrayOutputStream out) {
+        int width = Math.max(size, label.getWidth());
+        // Keep marker centered, space above label is left empty
+        int height = size + label.getHeight() * 2;
+        prepare(width, height);
+        canvas.save();
+        canvas.translate((width - size) / 2f, (height - size) / 2f);
+        drawMarker(size, trackBucket, length, silent);
+        canvas.restore();
+        paint.setAlpha(silent ? 128 : 255);
+        canvas.drawBitmap(((Label) label).bitmap, (width - label.getWidth()) / 2f, (height + size) / 2f, paint);
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+    }
+
+    private void prepare(int width, int height) {
+        if (bitmap.getAllocationByteCount() < width * height * 4) {
+            bitmap.recycle();
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        canvas.setBitmap(bitmap);
+    }
+
+    private void drawMarker(int size, int trackBucket, int length, boolean silent) {
+        paint.setAlpha(silent ? 128 : 255);
+        float center = size / 2f;
+        canvas.save();
+        canvas.translate(center, center);
+        canvas.drawCircle(0, 0, pointWidth, paint);
+        canvas.drawCircle(0, 0, pointWidth * 6, paint);
+        canvas.rotate(trackBucket * MarkerCache.TRACK_STEP, 0, 0);
+        canvas.drawLine(0, -6 * pointWidth, 0, -6 * pointWidth - length, paint);
+        canvas.restore();
+    }
+}
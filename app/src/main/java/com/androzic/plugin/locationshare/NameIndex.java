@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+/**
+ * Maps user names to store slots. Open addressing with linear probing keeps lookups free of
+ * entry objects and boxing, removal shifts following entries back so no tombstones are left.
+ * Not thread safe, but <code>get()</code> does not fail or loop when table is modified
+ * concurrently, so it can be used in optimistic reads.
+ */
+class NameIndex {
+    private String[] keys;
+    // Hash and slot of each key side by side, so that probing reads one array
+    private int[] entries;
+    private int mask;
+    private int size;
+
+    NameIndex(int capacity) {
+        allocate(tableSize(capacity));
+    }
+
+    /**
+     * Returns slot of the name or -1 if there is no such name.
+     */
+    int get(String name) {
+        int hash = hash(name);
+        // Table can be replaced by writer, read it once and probe at most its length
+        String[] keys = this.keys;
+        int[] entries = this.entries;
+        if (entries.length != keys.length * 2)
+            return -1;
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        for (int n = 0; n < keys.length; n++, i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key == null)
+                break;
+            if (entries[i << 1] == hash && key.equals(name))
+                return entries[(i << 1) + 1];
+        }
+        return -1;
+    }
+
+    /**
+     * Sets slot of the name, replacing previous one.
+     */
+    void put(String name, int slot) {
+        int hash = hash(name);
+        int i = hash & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (entries[i << 1] == hash && keys[i].equals(name)) {
+                entries[(i << 1) + 1] = slot;
+                return;
+            }
+        }
+        keys[i] = name;
+        entries[i << 1] = hash;
+        entries[(i << 1) + 1] = slot;
+        // Hashes are compared before names, so probing is cheap even at high load factor
+        if (++size * 4 > keys.length * 3)
+            rehash(keys.length * 2);
+    }
+
+    /**
+     * Removes the name.
+     *
+     * @return slot of removed name or -1 if there was no such name
+     */
+    int remove(String name) {
+        int hash = hash(name);
+        int i = hash & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (entries[i << 1] == hash && keys[i].equals(name))
+                break;
+        }
+        if (keys[i] == null)
+            return -1;
+        int slot = entries[(i << 1) + 1];
+        keys[i] = null;
+        size--;
+        // Move back entries that can not be reached through emptied position any more
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = entries[j << 1] & mask;
+            boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+            if (reachable)
+                continue;
+            keys[i] = keys[j];
+            entries[i << 1] = entries[j << 1];
+            entries[(i << 1) + 1] = entries[(j << 1) + 1];
+            keys[j] = null;
+            i = j;
+        }
+        return slot;
+    }
+
+    void clear() {
+        allocate(keys.length);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(int length) {
+        String[] oldKeys = keys;
+        int[] oldEntries = entries;
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null)
+                continue;
+            int j = oldEntries[i << 1] & mask;
+            while (keys[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            entries[j << 1] = oldEntries[i << 1];
+            entries[(j << 1) + 1] = oldEntries[(i << 1) + 1];
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new String[length];
+        entries = new int[length * 2];
+        mask = length - 1;
+    }
+
+    private static int tableSize(int capacity) {
+        int length = 2;
+        while (length * 3 < capacity * 4)
+            length <<= 1;
+        return length;
+    }
+
+    private static int hash(String name) {
+        // Spread string hash so that similar names do not cluster
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
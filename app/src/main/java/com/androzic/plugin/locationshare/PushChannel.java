@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+/**
+ * State of long-poll push channel. Server that supports push advertises maximum time it can hold
+ * request in <code>X-Sharing-Wait</code> reply header. Client then keeps one request pending,
+ * passing <code>wait</code> and <code>since</code> parameters. Server replies as soon as any peer
+ * fix newer than cursor arrives or when wait time expires. Own fixes go up with the pending
+ * request, it is restarted if fix was not sent for too long. If push request fails client tries
+ * to reconnect resuming from the last cursor and falls back to polling if that does not help.
+ */
+class PushChannel {
+    static final String HEADER = "X-Sharing-Wait";
+    static final int MAX_RECONNECTS = 2;
+
+    private int wait = 0;
+    private int failures = 0;
+    private long lastUpload = 0;
+
+    /**
+     * Returns true if next request should be a long-poll.
+     */
+    synchronized boolean isActive() {
+        return wait > 0;
+    }
+
+    /**
+     * Returns time in seconds server can hold request.
+     */
+    synchronized int getWait() {
+        return wait;
+    }
+
+    /**
+     * Processes successful reply.
+     *
+     * @param advertisedWait wait time advertised by server, 0 if push is not supported
+     * @return true if push is active and next request should be issued immediately
+     */
+    synchronized boolean onResponse(int advertisedWait) {
+        wait = Math.max(advertisedWait, 0);
+        failures = 0;
+        return wait > 0;
+    }
+
+    /**
+     * Processes failed push request.
+     *
+     * @return true if client should reconnect immediately, false if it should fall back to polling
+     */
+    synchronized boolean onFailure() {
+        failures++;
+        if (failures > MAX_RECONNECTS) {
+            wait = 0;
+            failures = 0;
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void onUpload(long time) {
+        lastUpload = time;
+    }
+
+    /**
+     * Returns true if pending push request should be restarted to deliver new own fix.
+     */
+    synchronized boolean shouldUpload(long time, int interval) {
+        return wait > 0 && time - lastUpload >= interval;
+    }
+
+    synchronized void reset() {
+        wait = 0;
+        failures = 0;
+        lastUpload = 0;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import androidx.annotation.Nullable;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Client side of sharing protocol, independent of transport. Builds request carrying own fix,
+ * sync cursor and area of interest, and merges reply into the store following protocol chosen
+ * by server. Requests are prepared on pipeline thread, replies are merged on the thread
+ * writing to store.
+ */
+class SharingClient {
+    static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    /**
+     * Sharing request ready to be sent.
+     */
+    static class Query {
+        final String url;
+        // Request body, null if there is nothing to post
+        @Nullable
+        final byte[] body;
+        final String contentType;
+        // True if server is asked to hold request
+        final boolean push;
+        // True if backlog is sent along with own fix
+        final boolean backlog;
+
+        Query(String url, @Nullable byte[] body, String contentType, boolean push, boolean backlog) {
+            this.url = url;
+            this.body = body;
+            this.contentType = contentType;
+            this.push = push;
+            this.backlog = backlog;
+        }
+    }
+
+    private final SituationStore store;
+    private final BinaryCodec codec = new BinaryCodec();
+    private volatile boolean binaryProtocol = false;
+    // Area of interest and own fix of the last request, accessed only from pipeline thread
+    private String area = "";
+    @Nullable
+    private Situation lastFix;
+
+    SharingClient(SituationStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Builds sharing request.
+     *
+     * @param server  server url
+     * @param fix     own fix, null if location is unknown, then area of interest stays
+     *                centered at the last known one
+     * @param backlog fixes taken while server was unreachable, sent along with current one if
+     *                server supports incremental sync or binary protocol, legacy servers do not
+     *                accept it
+     * @param radius  radius of area of interest in meters, 0 for whole session
+     * @param limit   maximum number of users in area of interest
+     * @param wait    time in seconds server can hold request, 0 if push is not active
+     */
+    Query prepare(String server, String session, String user, @Nullable Situation fix, List<Situation> backlog,
+                  int radius, int limit, int wait) throws IOException {
+        String query = "session=" + URLEncoder.encode(session, "UTF-8");
+        // Area of interest is centered at own location. While location is lost, the last fix is
+        // sent again, otherwise area would turn into whole session and back, each time forcing
+        // full snapshot. Server takes the same fix as no change.
+        if (fix != null)
+            lastFix = fix;
+        else if (radius > 0)
+            fix = lastFix;
+        String area = fix != null && radius > 0 ? ";radius=" + radius + ";limit=" + limit : "";
+        if (!area.equals(this.area)) {
+            // Delta against different area is meaningless, request full snapshot
+            store.resetCursor();
+            this.area = area;
+        }
+        long cursor = store.getCursor();
+        boolean sendBacklog = !backlog.isEmpty() && (binaryProtocol || cursor != SharingResponse.NO_CURSOR);
+        byte[] body = null;
+        String contentType = BinaryCodec.CONTENT_TYPE;
+        if (fix != null) {
+            query = query + ";user=" + URLEncoder.encode(user, "UTF-8");
+            if (binaryProtocol) {
+                body = BinaryCodec.encodeFix(fix, sendBacklog ? backlog : Collections.emptyList());
+            } else {
+                query = query
+                        + ";lat=" + fix.latitude
+                        + ";lon=" + fix.longitude
+                        + ";track=" + fix.track
+                        + ";speed=" + fix.speed
+                        + ";ftime=" + fix.time;
+                if (sendBacklog) {
+                    body = FixOutbox.toJson(backlog);
+                    contentType = JSON_CONTENT_TYPE;
+                }
+            }
+        }
+        query = query + area;
+        if (cursor != SharingResponse.NO_CURSOR)
+            query = query + ";since=" + cursor;
+        // Push requires cursor, otherwise server has nothing to compare with
+        boolean push = wait > 0 && cursor != SharingResponse.NO_CURSOR;
+        if (push)
+            query = query + ";wait=" + wait;
+        String url = server + (server.indexOf('?') < 0 ? "?" : ";") + query;
+        return new Query(url, body, contentType, push, sendBacklog);
+    }
+
+    /**
+     * Applies reply to the store. Binary reply is decoded here, as decoding changes codec state.
+     * Server decides which protocol to use, client follows it when sending own fix.
+     *
+     * @param user own user name, it is not added to store
+     * @return users that left session or area of interest
+     * @throws IOException if binary reply is malformed, store is not changed then
+     */
+    List<Situation> merge(SharingResponse response, String user) throws IOException {
+        response.decodeBody(codec);
+        binaryProtocol = response.binary;
+        return store.apply(response, user);
+    }
+
+    /**
+     * Forgets protocol state of previous session.
+     */
+    void reset() {
+        codec.reset();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import androidx.annotation.Nullable;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Sharing server request. Reply is streamed directly into columns of fixes without building
+ * intermediate JSON objects. Client always announces that it understands binary protocol,
+ * server decides which one to use for reply. Binary reply is decoded by receiver, once it is
+ * known to be current, see {@link SharingResponse#parse}.
+ */
+class SharingRequest extends Request<SharingResponse> implements UpdatePipeline.Exchange {
+    private static final String ACCEPT = BinaryCodec.CONTENT_TYPE + ", application/json;q=0.9";
+
+    private final Object lock = new Object();
+    @Nullable
+    private final byte[] body;
+    private final String bodyContentType;
+
+    @Nullable
+    private Response.Listener<SharingResponse> listener;
+
+    /**
+     * @param body            own fix encoded with {@link BinaryCodec#encodeFix} or backlog of fixes
+     *                        encoded with {@link FixOutbox#toJson}, if not null it is posted
+     * @param bodyContentType content type of the body
+     */
+    SharingRequest(String url, @Nullable byte[] body, String bodyContentType, Response.Listener<SharingResponse> listener, @Nullable Response.ErrorListener errorListener) {
+        super(body != null ? Method.POST : Method.GET, url, errorListener);
+        this.body = body;
+        this.bodyContentType = bodyContentType;
+        this.listener = listener;
+        setShouldCache(false);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return Collections.singletonMap("Accept", ACCEPT);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return bodyContentType;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (lock) {
+            listener = null;
+        }
+    }
+
+    @Override
+    protected Response<SharingResponse> parseNetworkResponse(NetworkResponse response) {
+        try {
+            String charset = HttpHeaderParser.parseCharset(response.headers, "UTF-8");
+            SharingResponse sharingResponse = SharingResponse.parse(response.data, response.headers, charset);
+            return Response.success(sharingResponse, HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(SharingResponse response) {
+        Response.Listener<SharingResponse> listener;
+        synchronized (lock) {
+            listener = this.listener;
+        }
+        if (listener != null)
+            listener.onResponse(response);
+    }
+}
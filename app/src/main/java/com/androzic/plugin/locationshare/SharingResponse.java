@@ -0,0 +1,325 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.Nullable;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reply of sharing server. Servers that support incremental sync return <code>cursor</code>
+ * with every reply. If client passes it back as <code>since</code> parameter, server replies
+ * with <code>delta</code> flag set and lists only users whose fix has changed after that
+ * cursor, and names of users that have left the session in <code>removed</code> array.
+ * Legacy servers do not return cursor and always reply with full snapshot. Servers supporting
+ * binary protocol can send reply in {@link BinaryCodec} format instead of JSON. If client
+ * requests area of interest, server lists only users within <code>radius</code> meters from
+ * client, not more than <code>limit</code> nearest of them, reports users that left the area
+ * as removed and returns number of all session members in <code>total</code>.
+ * <p>
+ * User fixes are kept in columns, one array per field, so that reply does not hold an object
+ * per user. Parsers fill them field by field. Applied reply can be recycled, then next one
+ * reuses its columns.
+ */
+class SharingResponse implements BinaryCodec.Receiver {
+    static final long NO_CURSOR = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final AtomicReference<SharingResponse> spare = new AtomicReference<>();
+
+    private int size;
+    String[] names = new String[INITIAL_CAPACITY];
+    double[] latitudes = new double[INITIAL_CAPACITY];
+    double[] longitudes = new double[INITIAL_CAPACITY];
+    double[] speeds = new double[INITIAL_CAPACITY];
+    double[] tracks = new double[INITIAL_CAPACITY];
+    long[] times = new long[INITIAL_CAPACITY];
+    final List<String> removed = new ArrayList<>();
+    long cursor = NO_CURSOR;
+    boolean delta = false;
+    boolean binary = false;
+    /**
+     * Number of session members if reply is limited to area of interest, -1 otherwise
+     */
+    int total = -1;
+    /**
+     * Maximum time in seconds server can hold push request, 0 if push is not supported
+     */
+    int wait = 0;
+    // Binary reply not yet decoded
+    @Nullable
+    private byte[] body;
+
+    /**
+     * Returns recycled reply or new one if there is none.
+     */
+    static SharingResponse obtain() {
+        SharingResponse response = spare.getAndSet(null);
+        return response != null ? response : new SharingResponse();
+    }
+
+    /**
+     * Clears reply and keeps it for reuse, it should not be accessed afterwards.
+     */
+    void recycle() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        removed.clear();
+        cursor = NO_CURSOR;
+        delta = false;
+        binary = false;
+        total = -1;
+        wait = 0;
+        body = null;
+        spare.set(this);
+    }
+
+    /**
+     * Returns number of user fixes in reply.
+     */
+    int size() {
+        return size;
+    }
+
+    void add(String name, double latitude, double longitude, double speed, double track, long time) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            speeds = Arrays.copyOf(speeds, capacity);
+            tracks = Arrays.copyOf(tracks, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+        names[size] = name;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        speeds[size] = speed;
+        tracks[size] = track;
+        times[size] = time;
+        size++;
+    }
+
+    void add(Situation situation) {
+        add(situation.name, situation.latitude, situation.longitude, situation.speed, situation.track, situation.time);
+    }
+
+    /**
+     * Returns new situation holding fix of the user.
+     */
+    Situation get(int i) {
+        Situation situation = new Situation(names[i]);
+        situation.latitude = latitudes[i];
+        situation.longitude = longitudes[i];
+        situation.speed = speeds[i];
+        situation.track = tracks[i];
+        situation.time = times[i];
+        return situation;
+    }
+
+    @Override
+    public void onFrame(long cursor, boolean delta, int total) {
+        this.cursor = cursor;
+        this.delta = delta;
+        this.total = total;
+    }
+
+    @Override
+    public void onUser(String name, double latitude, double longitude, double speed, double track, long time) {
+        add(name, latitude, longitude, speed, track, time);
+    }
+
+    @Override
+    public void onRemoved(String name) {
+        removed.add(name);
+    }
+
+    /**
+     * Parses server reply. Binary reply is only recognized, it is decoded with
+     * {@link #decodeBody} when it is known to be applied, as decoding changes codec state.
+     *
+     * @param data    reply body
+     * @param headers reply headers
+     * @param charset charset of JSON reply
+     */
+    static SharingResponse parse(byte[] data, @Nullable Map<String, String> headers, String charset) throws IOException {
+        String contentType = headers != null ? headers.get("Content-Type") : null;
+        SharingResponse response;
+        if (contentType != null && contentType.startsWith(BinaryCodec.CONTENT_TYPE)) {
+            response = obtain();
+            response.binary = true;
+            response.body = data;
+        } else {
+            try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), charset))) {
+                response = read(reader);
+            } catch (IllegalStateException | NumberFormatException e) {
+                throw new IOException(e);
+            }
+        }
+        response.wait = parseWait(headers);
+        return response;
+    }
+
+    /**
+     * Decodes body of binary reply, does nothing if reply is already decoded.
+     */
+    void decodeBody(BinaryCodec codec) throws IOException {
+        if (body == null)
+            return;
+        byte[] data = body;
+        body = null;
+        codec.decode(data, 0, data.length, this);
+    }
+
+    private static int parseWait(@Nullable Map<String, String> headers) {
+        String wait = headers != null ? headers.get(PushChannel.HEADER) : null;
+        if (wait == null)
+            return 0;
+        try {
+            return Integer.parseInt(wait.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Decodes reply received with binary protocol.
+     */
+    static SharingResponse decode(BinaryCodec codec, byte[] data) throws IOException {
+        SharingResponse response = obtain();
+        codec.decode(data, 0, data.length, response);
+        response.binary = true;
+        return response;
+    }
+
+    /**
+     * Reads server reply from stream. Malformed user entries are skipped.
+     */
+    static SharingResponse read(JsonReader reader) throws IOException {
+        SharingResponse response = obtain();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "cursor":
+                    response.cursor = reader.nextLong();
+                    break;
+                case "delta":
+                    response.delta = reader.nextBoolean();
+                    break;
+                case "total":
+                    response.total = reader.nextInt();
+                    break;
+                case "users":
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        readSituation(reader, response);
+                    reader.endArray();
+                    break;
+                case "removed":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() == JsonToken.STRING)
+                            response.removed.add(reader.nextString());
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    /**
+     * Reads user entry and adds it to response unless it is malformed.
+     */
+    private static void readSituation(JsonReader reader, SharingResponse response) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        String name = null;
+        double latitude = Double.NaN, longitude = Double.NaN, time = Double.NaN;
+        double speed = 0, track = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "user":
+                    if (reader.peek() == JsonToken.STRING)
+                        name = reader.nextString();
+                    else
+                        reader.skipValue();
+                    break;
+                case "lat":
+                    latitude = readDouble(reader);
+                    break;
+                case "lon":
+                    longitude = readDouble(reader);
+                    break;
+                case "speed":
+                    speed = readDouble(reader);
+                    break;
+                case "track":
+                    track = readDouble(reader);
+                    break;
+                case "ftime":
+                    time = readDouble(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (name == null || Double.isNaN(time) || !(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180))
+            return;
+        response.add(name, latitude, longitude, Double.isNaN(speed) ? 0 : speed, Double.isNaN(track) ? 0 : track, (long) time);
+    }
+
+    /**
+     * Reads numeric value, returns NaN if value is absent or is not a number.
+     */
+    private static double readDouble(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER)
+            return reader.nextDouble();
+        if (token == JsonToken.STRING) {
+            try {
+                return Double.parseDouble(reader.nextString());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        reader.skipValue();
+        return Double.NaN;
+    }
+}
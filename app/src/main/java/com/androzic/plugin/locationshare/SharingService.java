@@ -18,13 +18,9 @@
 package com.androzic.plugin.locationshare;
 
 import static mobi.maptrek.provider.DataContract.MAPOBJECTS_URI;
-import static mobi.maptrek.provider.DataContract.MAPOBJECT_BITMAP_COLUMN;
-import static mobi.maptrek.provider.DataContract.MAPOBJECT_COLOR_COLUMN;
 import static mobi.maptrek.provider.DataContract.MAPOBJECT_COLUMNS;
-import static mobi.maptrek.provider.DataContract.MAPOBJECT_ID_SELECTION;
 import static mobi.maptrek.provider.DataContract.MAPOBJECT_LATITUDE_COLUMN;
 import static mobi.maptrek.provider.DataContract.MAPOBJECT_LONGITUDE_COLUMN;
-import static mobi.maptrek.provider.DataContract.MAPOBJECT_NAME_COLUMN;
 
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -33,9 +29,8 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -44,43 +39,46 @@ import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.Typeface;
 import android.location.Location;
-import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.os.RemoteException;
 import android.util.Log;
 
 import androidx.annotation.ColorInt;
 import androidx.preference.PreferenceManager;
 
-import com.android.volley.Request;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.ParseError;
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.Volley;
 import com.androzic.data.Situation;
 import com.androzic.util.StringFormatter;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.ByteArrayOutputStream;
-import java.net.URLEncoder;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import mobi.maptrek.location.ILocationRemoteService;
@@ -101,6 +99,8 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
 
     private static final String TAG = "LocationSharing";
     private static final int NOTIFICATION_ID = 24164;
+    private static final int PUSH_TIMEOUT_MARGIN = 15; // seconds
+    private static final int LOW_BATTERY_LEVEL = 15; // percent
 
     public static final String BROADCAST_SITUATION_CHANGED = "com.androzic.plugin.locationshare.SituationChanged";
 
@@ -110,29 +110,75 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
 
     private PendingIntent contentIntent;
 
-    ThreadPoolExecutor executorThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1));
-    private Timer timer;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final UpdatePipeline pipeline = new UpdatePipeline(executor, this::startExchange);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
     RequestQueue requestQueue;
 
     private ContentProviderClient contentProvider;
+    private MapObjectSink mapObjects;
+    private MapObjectRegistry registry;
+    // Map objects left by previous run, by user name, until they are reconciled
+    private Map<String, Long> restoredObjects;
+    // Map objects were added or removed since registry was saved
+    private boolean registryChanged;
 
     final Location currentLocation = new Location("fake");
+    String server;
     String session;
     String user;
     int updateInterval = 10000; // 10 seconds (default)
+    int minInterval = 10000;
+    int maxInterval = 600000;
     int timeoutInterval = 600000; // 10 minutes (default)
+    int areaRadius = 0; // meters, 0 - whole session
+    int areaLimit = 100;
     long timeCorrection = 0;
     double speedFactor = 1;
     String speedAbbr = "m/s";
     boolean isLocated = false;
 
-    private final Map<String, Situation> situations = new HashMap<>();
-    final List<Situation> situationList = new ArrayList<>();
+    final SituationStore store = new SituationStore();
+    // Velocity of users shown in situation list, used on main thread
+    final DeadReckoning reckoning = new DeadReckoning(store);
+    // Published for UI after each update, UI reads it without locking
+    volatile SituationSnapshot snapshot = SituationSnapshot.EMPTY;
+    private final Object snapshotLock = new Object();
+    private final SharingClient client = new SharingClient(store);
+    private final PushChannel pushChannel = new PushChannel();
+    final UpdateScheduler scheduler = new UpdateScheduler();
+    private final FailurePolicy failurePolicy = new FailurePolicy();
+    private final UpdateLoop loop = new UpdateLoop((task, delay) -> timer.schedule(task, delay, TimeUnit.MILLISECONDS),
+            pipeline, pushChannel, failurePolicy, this::getNextInterval);
+    private FixOutbox outbox;
 
     // Drawing resources
     private Paint linePaint;
     private Paint textPaint;
     private int pointWidth;
+    // Map rows written and skipped as unchanged during the last update
+    volatile int mapRowsSent;
+    volatile int mapRowsSkipped;
+    // Marker atlas is built in background, so it delays neither preference changes nor updates
+    private final ExecutorService atlasExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MarkerAtlas");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    final ClusterIndex clusters = new ClusterIndex(0);
+    private final Map<Integer, byte[]> clusterBitmaps = new HashMap<>();
+    private final MarkerRenderer markerRenderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET),
+            MarkerTarget::new, atlasExecutor, this::createLabel);
+    // Name labels are shown while there are not more users than the limit
+    private int labelLimit = 0;
+    private boolean labels = false;
+    private final MapObjectValues mapObjectValues = new MapObjectValues(MAPOBJECT_COLUMNS, markerRenderer, this::getClusterBitmap);
+    // Animation runs on main thread as all other map updates, null if disabled
+    private MarkerAnimator animator;
+    private boolean predict;
+    private final Handler animationHandler = new Handler(Looper.getMainLooper());
+    private final Runnable animationFrame = this::animateMarkers;
+    private boolean animationScheduled;
 
     @Override
     public void onCreate() {
@@ -174,14 +220,34 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         textPaint.setTypeface(Typeface.SANS_SERIF);
         textPaint.setColor(tagColor);
 
+        // Open outbox before preferences are read, they define its owner
+        try {
+            outbox = new FixOutbox(new File(getFilesDir(), "outbox"), FixOutbox.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open outbox", e);
+        }
+        registry = new MapObjectRegistry(new File(getFilesDir(), "mapobjects"));
+
         // Initialize preferences
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_session));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_user));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_server));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_updateinterval));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_adaptive));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_mininterval));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_maxinterval));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_notifications));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_tagcolor));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_tagsize));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_area));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_arealimit));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_cluster));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_labels));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_detailed));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_animate));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_predict));
+        onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_history));
         onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_sharing_timeout));
         sharedPreferences.registerOnSharedPreferenceChangeListener(this);
 
@@ -191,6 +257,15 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
             stopSelf();
             return;
         }
+        mapObjects = new MapObjectSink(new MapObjectProvider(contentProvider));
+        // Reuse map objects left by previous run, those that can not be reused are removed
+        restoredObjects = registry.takeUsers();
+        List<Long> orphans = registry.takeOrphans();
+        if (!orphans.isEmpty()) {
+            mapObjects.delete(orphans);
+            flushMapObjects();
+        }
+        Log.i(TAG, "Restored " + restoredObjects.size() + " map objects, " + orphans.size() + " orphans");
 
         speedFactor = 3.6f;
         speedAbbr = "kmh";
@@ -199,7 +274,7 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
 
         requestQueue = Volley.newRequestQueue(this);
         startForeground(NOTIFICATION_ID, getNotification(R.mipmap.ic_stat_sharing));
-        startTimer();
+        loop.start(0);
 
         // Connect to location service
         connect();
@@ -215,7 +290,9 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         disconnect();
 
         stopForeground(true);
-        stopTimer();
+        loop.stop();
+        timer.shutdownNow();
+        animationHandler.removeCallbacks(animationFrame);
         if (requestQueue != null) {
             requestQueue.stop();
             requestQueue = null;
@@ -223,133 +300,266 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
 
         // Clear data
         clearSituations();
+        executor.shutdown();
+        atlasExecutor.shutdownNow();
 
         // Release data provider
         if (contentProvider != null)
             contentProvider.release();
 
+        if (outbox != null)
+            outbox.close();
+
         contentIntent = null;
 
         Log.i(TAG, "Service stopped");
     }
 
     private void clearSituations() {
-        String[] args;
-        synchronized (situationList) {
-            args = new String[situationList.size()];
-            int i = 0;
-            for (Situation situation : situationList) {
-                args[i] = String.valueOf(situation.id);
-                i++;
+        removeMapObjects(store.clear());
+        removeMapObjects(clusters.clear());
+        if (animator != null)
+            animator.clear();
+        if (mapObjects != null) {
+            if (restoredObjects != null && !restoredObjects.isEmpty())
+                mapObjects.delete(restoredObjects.values());
+            restoredObjects = null;
+            flushMapObjects();
+            try {
+                registry.clear();
+                registryChanged = false;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to clear map objects registry", e);
             }
         }
-        synchronized (situations) {
-            synchronized (situationList) {
-                situationList.clear();
-            }
-            situations.clear();
+        client.reset();
+        publishSnapshot();
+        sendBroadcast(new Intent(BROADCAST_SITUATION_CHANGED));
+        // Pending request, possibly push held by server, belongs to previous session
+        if (requestQueue != null)
+            loop.restart();
+        else
+            pipeline.cancel();
+    }
+
+    /**
+     * Queues removal of situations from map, they are removed with next flush.
+     */
+    private void removeMapObjects(List<? extends Situation> removed) {
+        if (mapObjects == null)
+            return;
+        List<Long> ids = new ArrayList<>(removed.size());
+        for (Situation situation : removed) {
+            clusters.remove(situation);
+            if (animator != null)
+                animator.remove(situation);
+            // Situation could be not yet sent to map
+            if (situation.id != 0)
+                ids.add(situation.id);
         }
-        // Remove situations from map
+        if (!ids.isEmpty()) {
+            mapObjects.delete(ids);
+            registryChanged = true;
+        }
+    }
+
+    private void flushMapObjects() {
+        if (mapObjects == null)
+            return;
         try {
-            if (contentProvider != null)
-                contentProvider.delete(MAPOBJECTS_URI, MAPOBJECT_ID_SELECTION, args);
-        } catch (RemoteException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            mapObjects.flush();
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to update map objects", e);
         }
-        sendBroadcast(new Intent(BROADCAST_SITUATION_CHANGED));
     }
 
-    protected void updateSituations() {
-        executorThread.getQueue().poll();
-        executorThread.execute(() -> {
-            Log.d(TAG, "updateSituations");
-            try {
-                String query;
-                synchronized (currentLocation) {
-                    query = "session=" + URLEncoder.encode(session, "UTF-8");
-                    if (isLocated) {
-                        query = query
-                                + ";user=" + URLEncoder.encode(user, "UTF-8")
-                                + ";lat=" + currentLocation.getLatitude()
-                                + ";lon=" + currentLocation.getLongitude()
-                                + ";track=" + currentLocation.getBearing()
-                                + ";speed=" + currentLocation.getSpeed()
-                                + ";ftime=" + currentLocation.getTime();
-                    }
-                }
-                String url = "https://trekarta.info/sharing/?" + query;
-
-                JsonObjectRequest jsonObjectRequest = new JsonObjectRequest(
-                        Request.Method.GET,
-                        url,
-                        null,
-                        response -> {
-                            updateNotification(R.mipmap.ic_stat_sharing_in);
+    /**
+     * Builds and queues sharing request, runs on pipeline thread.
+     */
+    private UpdatePipeline.Exchange startExchange(final long token) {
+        Log.d(TAG, "updateSituations");
+        try {
+            String session;
+            final Situation fix;
+            synchronized (currentLocation) {
+                session = this.session;
+                fix = isLocated ? getOwnFix() : null;
+            }
+            // Fixes taken while server was unreachable are sent along with current one
+            final List<Situation> backlog = fix != null && outbox != null ?
+                    outbox.peek(FixOutbox.MAX_BATCH) : Collections.emptyList();
+            int wait = pushChannel.isActive() ? pushChannel.getWait() : 0;
+            SharingClient.Query query = client.prepare(server, session, user, fix, backlog, areaRadius, areaLimit, wait);
+            final boolean push = query.push;
+            final List<Situation> sent = query.backlog ? backlog : Collections.emptyList();
+
+            SharingRequest sharingRequest = new SharingRequest(
+                    query.url,
+                    query.body,
+                    query.contentType,
+                    response -> {
+                        // Reply to cancelled or superseded request
+                        if (!pipeline.isCurrent(token)) {
+                            response.recycle();
+                            return;
+                        }
+                        // Replies are delivered on main thread, the only one writing to store, whole
+                        // reply is applied at once
+                        List<Situation> left;
+                        try {
+                            left = client.merge(response, user);
+                        } catch (IOException e) {
+                            response.recycle();
+                            onExchangeFailed(token, new ParseError(e), fix, sent, push);
+                            return;
+                        }
+                        failurePolicy.onSuccess();
+                        boolean pending = false;
+                        if (!sent.isEmpty()) {
                             try {
-                                JSONArray entries = response.getJSONArray("users");
-                                for (int i = 0; i < entries.length(); i++) {
-                                    JSONObject situation = entries.getJSONObject(i);
-                                    String name = situation.getString("user");
-                                    if (name.equals(user))
-                                        continue;
-                                    synchronized (situations) {
-                                        Situation s = situations.get(name);
-                                        if (s == null) {
-                                            s = new Situation(name);
-                                            situations.put(name, s);
-                                            synchronized (situationList) {
-                                                situationList.add(s);
-                                            }
-                                        }
-                                        s.latitude = situation.getDouble("lat");
-                                        s.longitude = situation.getDouble("lon");
-                                        s.speed = situation.getDouble("speed");
-                                        s.track = situation.getDouble("track");
-                                        s.time = situation.getLong("ftime");
-                                    }
-                                }
-                                finishSituationsUpdate(true);
-                            } catch (JSONException e) {
-                                throw new RuntimeException(e);
+                                outbox.remove(sent);
+                                pending = outbox.size() > 0;
+                            } catch (IOException e) {
+                                Log.e(TAG, "Failed to update outbox", e);
                             }
-                        },
-                        error -> {
-                            // TODO: Handle error
-                            finishSituationsUpdate(false);
                         }
-                );
+                        updateNotification(R.mipmap.ic_stat_sharing_in);
+                        // Users that left session or area of interest are removed along with other map updates
+                        removeMapObjects(left);
+                        finishSituationsUpdate(true);
+                        // Keep push request pending while server supports it
+                        boolean hold = loop.onReply(response.wait);
+                        response.recycle();
+                        // Upload rest of the backlog right away
+                        pipeline.finish(token, hold || pending);
+                        Log.d(TAG, pipeline.getStatistics());
+                    },
+                    error -> onExchangeFailed(token, error, fix, sent, push)
+            );
+            if (push) {
+                // Server holds request up to wait time, do not let it time out earlier
+                sharingRequest.setRetryPolicy(new DefaultRetryPolicy((wait + PUSH_TIMEOUT_MARGIN) * 1000, 0, 1f));
+            }
+            if (isLocated)
+                pushChannel.onUpload(System.currentTimeMillis());
 
-                updateNotification(R.mipmap.ic_stat_sharing_out);
-                requestQueue.add(jsonObjectRequest);
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+            updateNotification(R.mipmap.ic_stat_sharing_out);
+            requestQueue.add(sharingRequest);
+            return sharingRequest;
+        } catch (Exception e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void onExchangeFailed(long token, VolleyError error, Situation fix, List<Situation> backlog, boolean push) {
+        if (!pipeline.isCurrent(token))
+            return;
+        // Reply could not be decoded, request full snapshot next time
+        if (error instanceof ParseError)
+            store.resetCursor();
+        FailurePolicy.Kind kind = onRequestFailure(error);
+        if (kind == FailurePolicy.Kind.CLIENT && !backlog.isEmpty()) {
+            // Server does not accept backlog, it would be rejected forever
+            try {
+                outbox.remove(backlog);
+                Log.w(TAG, "Backlog rejected, " + backlog.size() + " fixes dropped");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to update outbox", e);
+            }
+        } else if (kind != FailurePolicy.Kind.PARSE && fix != null) {
+            // Keep fix that was not delivered
+            recordFix(fix);
+        }
+        finishSituationsUpdate(false);
+        loop.onFailure(push);
+        pipeline.fail(token);
+    }
+
+    /**
+     * Returns own fix, caller should hold <code>currentLocation</code> lock.
+     */
+    private Situation getOwnFix() {
+        Situation fix = new Situation();
+        fix.latitude = currentLocation.getLatitude();
+        fix.longitude = currentLocation.getLongitude();
+        fix.track = currentLocation.getBearing();
+        fix.speed = currentLocation.getSpeed();
+        fix.time = currentLocation.getTime();
+        return fix;
+    }
+
+    private void recordFix(Situation fix) {
+        if (outbox == null)
+            return;
+        try {
+            if (outbox.add(fix))
+                Log.d(TAG, "Fix saved to outbox, " + outbox.size() + " pending");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save fix", e);
+        }
+    }
+
+    private FailurePolicy.Kind onRequestFailure(VolleyError error) {
+        FailurePolicy.Kind kind;
+        long retryAfter = 0;
+        if (error instanceof ParseError) {
+            kind = FailurePolicy.Kind.PARSE;
+        } else if (error instanceof TimeoutError) {
+            kind = FailurePolicy.Kind.TIMEOUT;
+        } else if (error.networkResponse != null) {
+            kind = FailurePolicy.classify(error.networkResponse.statusCode);
+            String header = error.networkResponse.headers != null ? error.networkResponse.headers.get("Retry-After") : null;
+            if (header != null) {
+                try {
+                    retryAfter = Long.parseLong(header.trim()) * 1000;
+                } catch (NumberFormatException ignore) {
+                    // HTTP date is not supported
+                }
             }
-        });
+        } else {
+            kind = FailurePolicy.Kind.NETWORK;
+        }
+        failurePolicy.onFailure(kind, System.currentTimeMillis(), retryAfter);
+        Log.w(TAG, "Request failed: " + kind + ", breaker " + failurePolicy.getState() + ", " + failurePolicy.getFailures() + " failures");
+        return kind;
     }
 
     private void finishSituationsUpdate(boolean updated) {
         Log.d(TAG, "finishSituations");
-        synchronized (situations) {
-            long curTime = System.currentTimeMillis() - timeCorrection;
-            for (Situation situation : situations.values()) {
-                situation.silent = situation.time + timeoutInterval < curTime;
+        boolean silenceChanged = store.updateSilence(System.currentTimeMillis() - timeCorrection, timeoutInterval);
+        if (updated || silenceChanged) {
+            try {
+                sendMapObjects();
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to send map objects", e);
             }
-        }
-        if (updated)
+            // Published after map update, so that snapshot contains map object ids
+            publishSnapshot();
             sendBroadcast(new Intent(BROADCAST_SITUATION_CHANGED));
-
-        try {
-            sendMapObjects();
-        } catch (RemoteException e) {
-            // TODO Auto-generated catch block
-            Log.e(TAG, "Failed to send map objects", e);
+            Log.d(TAG, "Markers: " + markerRenderer.getStatistics());
+            if (animator != null)
+                Log.d(TAG, "Animation: " + animator.getStatistics());
         }
 
         updateNotification(R.mipmap.ic_stat_sharing);
     }
 
+    private void publishSnapshot() {
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        synchronized (currentLocation) {
+            if (!"fake".equals(currentLocation.getProvider())) {
+                latitude = currentLocation.getLatitude();
+                longitude = currentLocation.getLongitude();
+            }
+        }
+        synchronized (snapshotLock) {
+            snapshot = store.snapshot(latitude, longitude);
+        }
+    }
+
     protected void sendNewSituationNotification(Situation situation) {
         Intent i = new Intent("mobi.maptrek.action.CENTER_ON_COORDINATES");
         i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
@@ -377,80 +587,298 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         notificationManager.notify((int) situation.id, builder.build());
     }
 
-    private void sendMapObjects() throws RemoteException {
-        synchronized (situationList) {
-            boolean firstRun = true;
-            for (Situation situation : situationList) {
-                if (situation.id != 0) {
-                    firstRun = false;
-                    break;
+    private void sendMapObjects() throws RemoteException, OperationApplicationException {
+        if (mapObjects == null)
+            return;
+        // Store is written by this thread only, its slots are scanned directly and situations are
+        // made only for users whose map objects change
+        int slots = store.getSlots();
+        int users = 0;
+        boolean firstRun = true;
+        for (int slot = 0; slot < slots; slot++) {
+            if (store.getName(slot) == null)
+                continue;
+            users++;
+            if (store.getId(slot) != 0)
+                firstRun = false;
+        }
+        // First update after restart, reuse map objects of known users and remove the rest
+        Set<String> restored = new HashSet<>();
+        if (restoredObjects != null) {
+            for (int slot = 0; slot < slots; slot++) {
+                String name = store.getName(slot);
+                if (name == null)
+                    continue;
+                Long id = restoredObjects.remove(name);
+                if (store.getId(slot) == 0 && id != null) {
+                    store.setMapObject(slot, id, 0);
+                    restored.add(name);
                 }
             }
-            for (Situation situation : situationList) {
-                byte[] bitmap = getSituationBitmap(situation);
-                ContentValues values = new ContentValues();
-                // Name is not required if bitmap is used, but we need it for navigation service.
-                // See SituationList for navigation initiation code.
-                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_NAME_COLUMN], situation.name);
-                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_LATITUDE_COLUMN], situation.latitude);
-                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_LONGITUDE_COLUMN], situation.longitude);
-                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_BITMAP_COLUMN], bitmap);
-                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_COLOR_COLUMN], linePaint.getColor());
-                // If this is a new object insert it
-                if (situation.id == 0) {
-                    Uri uri = contentProvider.insert(MAPOBJECTS_URI, values);
-                    situation.id = ContentUris.parseId(uri);
-                    if (notifyNewSituation && !firstRun)
-                        sendNewSituationNotification(situation);
+            if (!restoredObjects.isEmpty())
+                mapObjects.delete(restoredObjects.values());
+            restoredObjects = null;
+            registryChanged = true;
+        }
+        // Too many labels clutter the map, drop them in crowded session
+        boolean labels = users <= labelLimit;
+        int relabel = labels != this.labels ? Situation.DIRTY_VISUALS : 0;
+        this.labels = labels;
+        mapObjectValues.setLabels(labels);
+        // Changed users and users not yet on map
+        List<Situation> changed = new ArrayList<>();
+        List<Integer> changes = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (store.getName(slot) == null)
+                continue;
+            int dirty = store.takeDirty(slot) | relabel;
+            if (dirty == 0 && store.getId(slot) != 0)
+                continue;
+            Situation situation = store.view(slot);
+            changed.add(situation);
+            changes.add(dirty);
+            // Moving users can join or leave clusters
+            if ((dirty & Situation.DIRTY_POSITION) != 0)
+                clusters.update(situation);
+        }
+        // Users hidden in clusters and clusters that are not shown anymore
+        List<Long> hidden = new ArrayList<>();
+        for (ClusterIndex.Cluster cluster : clusters.takeRemoved())
+            hideMapObject(cluster, hidden);
+        int clustered = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            String name = store.getName(slot);
+            if (name == null || clusters.get(name) == null)
+                continue;
+            clustered++;
+            long id = store.getId(slot);
+            if (id != 0) {
+                hidden.add(id);
+                store.setMapObject(slot, 0, 0);
+                if (animator != null)
+                    animator.remove(store.view(slot));
+            }
+        }
+        List<Situation> objects = new ArrayList<>(changed.size());
+        List<Integer> objectChanges = new ArrayList<>(changed.size());
+        for (int i = 0; i < changed.size(); i++) {
+            Situation situation = changed.get(i);
+            if (clusters.get(situation) != null)
+                continue;
+            objects.add(situation);
+            objectChanges.add(changes.get(i));
+        }
+        int shown = 0;
+        for (ClusterIndex.Cluster cluster : clusters.getClusters()) {
+            if (!cluster.isVisible()) {
+                hideMapObject(cluster, hidden);
+                continue;
+            }
+            shown++;
+            objects.add(cluster);
+            objectChanges.add(cluster.dirty);
+            cluster.dirty = 0;
+        }
+        if (!hidden.isEmpty()) {
+            mapObjects.delete(hidden);
+            registryChanged = true;
+        }
+
+        int skipped = 0;
+        long now = System.currentTimeMillis();
+        if (animator != null)
+            animator.setTimeCorrection(timeCorrection);
+        List<MapObjectSink.Operation> operations = new ArrayList<>(objects.size());
+        // Dirty flags and markers to restore if operation fails
+        int[] dirties = new int[objects.size()];
+        long[] markers = new long[objects.size()];
+        for (int i = 0; i < objects.size(); i++) {
+            Situation situation = objects.get(i);
+            int dirty = objectChanges.get(i);
+            long marker = situation.marker;
+            boolean animated = false;
+            boolean uncertain = false;
+            if (animator != null && !(situation instanceof ClusterIndex.Cluster)) {
+                // Animated markers are moved to new position by animator, it follows the latest view
+                boolean wasUncertain = animator.isUncertain(situation);
+                if ((dirty & Situation.DIRTY_POSITION) == 0)
+                    animator.update(situation);
+                else
+                    animated = animator.onFix(situation, now) && situation.id != 0;
+                // Markers with uncertain predicted position are faded, see animateMarkers()
+                uncertain = animator.isUncertain(situation);
+                if (uncertain != wasUncertain)
+                    dirty |= Situation.DIRTY_VISUALS;
+            }
+            Map<String, Object> values = mapObjectValues.get(situation, dirty, situation.silent || uncertain);
+            if (animated) {
+                values.remove(MAPOBJECT_COLUMNS[MAPOBJECT_LATITUDE_COLUMN]);
+                values.remove(MAPOBJECT_COLUMNS[MAPOBJECT_LONGITUDE_COLUMN]);
+            }
+            if (values.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            dirties[operations.size()] = dirty;
+            markers[operations.size()] = marker;
+            // If this is a new object insert it, otherwise update it
+            operations.add(situation.id == 0 ? mapObjects.insert(situation, values) : mapObjects.update(situation, values));
+        }
+        // Deletions and all changes are sent in one batch
+        int transactions = 0;
+        try {
+            transactions = mapObjects.flush();
+        } finally {
+            for (int i = 0; i < operations.size(); i++) {
+                MapObjectSink.Operation operation = operations.get(i);
+                boolean cluster = operation.situation instanceof ClusterIndex.Cluster;
+                if (!operation.isApplied()) {
+                    // Send changes next time, clusters keep their changes by themselves
+                    if (cluster)
+                        operation.situation.dirty |= dirties[i];
+                    else
+                        store.markDirty(operation.situation, dirties[i]);
+                    operation.situation.marker = markers[i];
+                } else if (!cluster && operation.isMissing() && restored.contains(operation.situation.name)) {
+                    // Map application has been restarted too, insert object next time
+                    operation.situation.id = 0;
+                    store.markDirty(operation.situation, Situation.DIRTY_ALL);
+                    registryChanged = true;
+                } else if (operation.type == MapObjectSink.Operation.INSERT) {
+                    registryChanged = true;
+                    // Users leaving clusters are inserted again, only those that have just joined are new
+                    if (notifyNewSituation && !firstRun && !cluster && !store.wasPlaced(operation.situation))
+                        sendNewSituationNotification(operation.situation);
                 }
-                // Otherwise update it
-                else {
-                    Uri uri = ContentUris.withAppendedId(MAPOBJECTS_URI, situation.id);
-                    contentProvider.update(uri, values, null, null);
+            }
+            // Map object ids and markers of users are kept in store
+            for (Situation situation : objects) {
+                if (!(situation instanceof ClusterIndex.Cluster))
+                    store.setMapObject(situation);
+            }
+        }
+        if (animator != null && animator.isActive())
+            scheduleAnimation();
+        // Registry lists map objects, it is saved only when they are added or removed
+        if (registryChanged) {
+            try {
+                List<Situation> saved = store.getSituations();
+                saved.addAll(clusters.getClusters());
+                registry.save(saved);
+                registryChanged = false;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save map objects registry", e);
+            }
+        }
+        mapRowsSent = operations.size();
+        mapRowsSkipped = skipped;
+        Log.d(TAG, "Map objects: " + operations.size() + " sent in " + transactions + " transactions, "
+                + skipped + " skipped, " + clustered + " users in " + shown + " clusters, " + hidden.size() + " removed (" + mapObjects.getStatistics() + ")");
+    }
+
+    private void scheduleAnimation() {
+        if (animationScheduled)
+            return;
+        animationScheduled = true;
+        animationHandler.postDelayed(animationFrame, MarkerAnimator.FRAME_INTERVAL);
+    }
+
+    /**
+     * Sends animated marker positions to map, runs until all markers reach their fixes.
+     */
+    private void animateMarkers() {
+        animationScheduled = false;
+        if (animator == null || mapObjects == null)
+            return;
+        long now = System.currentTimeMillis();
+        List<MarkerAnimator.Frame> frames = animator.frame(now);
+        if (!frames.isEmpty()) {
+            for (MarkerAnimator.Frame frame : frames) {
+                Map<String, Object> values;
+                if (frame.restyle) {
+                    // Users whose predicted position is too uncertain are shown faded, like silent ones
+                    Situation situation = frame.situation;
+                    values = mapObjectValues.get(situation, Situation.DIRTY_VISUALS, situation.silent || frame.uncertain);
+                    store.setMapObject(situation);
+                } else {
+                    values = new HashMap<>();
                 }
+                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_LATITUDE_COLUMN], frame.latitude);
+                values.put(MAPOBJECT_COLUMNS[MAPOBJECT_LONGITUDE_COLUMN], frame.longitude);
+                mapObjects.update(frame.situation, values);
             }
+            long start = System.nanoTime();
+            flushMapObjects();
+            animator.onFrameSent(now, frames.size(), System.nanoTime() - start);
         }
+        if (animator.isActive())
+            scheduleAnimation();
     }
 
-    private byte[] getSituationBitmap(Situation situation) {
-        Bitmap b;
-        b = Bitmap.createBitmap(pointWidth * 44, pointWidth * 44, Config.ARGB_8888);
-        Canvas bc = new Canvas(b);
-        linePaint.setAlpha(situation.silent ? 128 : 255);
-        bc.translate(pointWidth * 22, pointWidth * 22);
-        bc.drawCircle(0, 0, pointWidth, linePaint);
-        bc.drawCircle(0, 0, pointWidth * 6, linePaint);
-        bc.save();
-        bc.rotate((float) situation.track, 0, 0);
-        // https://graphsketch.com/?eqn1_color=1&eqn1_eqn=log(x%2F3.6*2%2B1)&eqn2_color=2&eqn2_eqn=&eqn3_color=3&eqn3_eqn=&eqn4_color=4&eqn4_eqn=&eqn5_color=5&eqn5_eqn=&eqn6_color=6&eqn6_eqn=&x_min=-20&x_max=300&y_min=-2&y_max=3&x_tick=10&y_tick=1&x_label_freq=5&y_label_freq=1&do_grid=0&do_grid=1&bold_labeled_lines=0&bold_labeled_lines=1&line_width=4&image_w=850&image_h=525
-        int h = (int) Math.round(Math.log10(situation.speed * 2 + 1) * pointWidth * 6);
-        bc.drawLine(0, -6 * pointWidth, 0, -6 * pointWidth - h, linePaint);
-        bc.restore();
-
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        b.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        return stream.toByteArray();
+    /**
+     * Rasterizes user name, called once per user and marker style.
+     */
+    private MarkerRenderer.Label createLabel(String name, int color, int pointWidth) {
+        Paint paint = new Paint(textPaint);
+        paint.setColor(0xff000000 | color);
+        return new MarkerTarget.Label(name, paint);
+    }
+
+    private void markClustersDirty() {
+        for (ClusterIndex.Cluster cluster : clusters.getClusters()) {
+            cluster.dirty |= Situation.DIRTY_VISUALS;
+            cluster.marker = 0;
+        }
+    }
+
+    private void hideMapObject(Situation situation, List<Long> ids) {
+        if (animator != null)
+            animator.remove(situation);
+        if (situation.id == 0)
+            return;
+        ids.add(situation.id);
+        situation.id = 0;
+        situation.marker = 0;
+    }
+
+    /**
+     * Draws cluster marker: circle with number of users in it.
+     */
+    private byte[] getClusterBitmap(int count) {
+        byte[] data = clusterBitmaps.get(count);
+        if (data != null)
+            return data;
+        String label = count < MapObjectValues.MAX_CLUSTER_COUNT ? String.valueOf(count) : (MapObjectValues.MAX_CLUSTER_COUNT - 1) + "+";
+        int size = pointWidth * 20;
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint fill = new Paint(linePaint);
+        fill.setStyle(Paint.Style.FILL);
+        fill.setAlpha(64);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - pointWidth, fill);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - pointWidth, linePaint);
+        Paint text = new Paint(textPaint);
+        text.setTextAlign(Align.CENTER);
+        text.setTextSize(size / 3f);
+        text.setFakeBoldText(true);
+        canvas.drawText(label, size / 2f, size / 2f - (text.descent() + text.ascent()) / 2, text);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        data = out.toByteArray();
+        clusterBitmaps.put(count, data);
+        return data;
     }
 
     // This is not used in code, but included to demonstrate, how to remove
     // single map object from Trekarta map.
     @SuppressWarnings("unused")
     private void removeMapObject(String name) {
-        Situation situation = situations.get(name);
+        Situation situation = store.remove(name);
         if (situation == null)
             return;
-        synchronized (situationList) {
-            situationList.remove(situation);
-        }
-        synchronized (situations) {
-            situations.remove(name);
-        }
-        Uri uri = ContentUris.withAppendedId(MAPOBJECTS_URI, situation.id);
-        try {
-            contentProvider.delete(uri, null, null);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+        removeMapObjects(Collections.singletonList(situation));
+        flushMapObjects();
     }
 
     private void connect() {
@@ -476,20 +904,48 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         }
     }
 
-    private void startTimer() {
-        Log.d(TAG, "startTimer");
-        if (timer != null)
-            stopTimer();
-
-        timer = new Timer();
-        TimerTask updateTask = new UpdateSituationsTask();
-        timer.scheduleAtFixedRate(updateTask, 0, updateInterval);
+    /**
+     * Calculates interval till next update based on motion and device state.
+     */
+    private int getNextInterval() {
+        double ownSpeed = Double.NaN;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        synchronized (currentLocation) {
+            if (isLocated) {
+                ownSpeed = currentLocation.getSpeed();
+                latitude = currentLocation.getLatitude();
+                longitude = currentLocation.getLongitude();
+            }
+        }
+        double peersSpeed = store.getMaxSpeed(latitude, longitude, UpdateScheduler.NEARBY_DISTANCE);
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        BatteryManager batteryManager = (BatteryManager) getSystemService(BATTERY_SERVICE);
+        boolean batteryLow = !batteryManager.isCharging()
+                && batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY) <= LOW_BATTERY_LEVEL;
+        int interval = scheduler.update(System.currentTimeMillis(), ownSpeed, peersSpeed, powerManager.isInteractive(), batteryLow);
+        Log.d(TAG, "Next update in " + interval + "ms (" + scheduler.getReason() + "), saved "
+                + scheduler.getSavedRequests(System.currentTimeMillis()) + " requests");
+        return interval;
     }
 
-    private void stopTimer() {
-        if (timer != null)
-            timer.cancel();
-        timer = null;
+    private String getIntervalReason(UpdateScheduler.Reason reason) {
+        switch (reason) {
+            case MOVING:
+                return getString(R.string.interval_moving);
+            case PEERS_MOVING:
+                return getString(R.string.interval_peers_moving);
+            case STATIONARY:
+                return getString(R.string.interval_stationary);
+            case SCREEN_OFF:
+                return getString(R.string.interval_screen_off);
+            case BATTERY_LOW:
+                return getString(R.string.interval_battery_low);
+            case REGULAR:
+                return getString(R.string.interval_regular);
+            default:
+                return getString(R.string.interval_fixed);
+        }
     }
 
     private Notification getNotification(int icon) {
@@ -500,7 +956,23 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         builder.setSmallIcon(icon);
         builder.setContentIntent(contentIntent);
         builder.setContentTitle(getText(R.string.pref_sharing_title));
-        builder.setContentText(getText(R.string.notif_sharing));
+        long retry = Math.max(failurePolicy.getRetryTime() - System.currentTimeMillis(), 0) / 1000;
+        switch (failurePolicy.getState()) {
+            case OPEN:
+                builder.setContentText(getText(R.string.notif_error));
+                builder.setSubText(getString(R.string.notif_retry, retry));
+                break;
+            case HALF_OPEN:
+                builder.setContentText(getText(R.string.notif_error));
+                builder.setSubText(getText(R.string.notif_probing));
+                break;
+            default:
+                builder.setContentText(getText(R.string.notif_sharing));
+                if (failurePolicy.getFailures() > 0)
+                    builder.setSubText(getString(R.string.notif_retry, retry));
+                else if (scheduler.isAdaptive() && !pushChannel.isActive())
+                    builder.setSubText(getString(R.string.notif_interval, scheduler.getInterval() / 1000, getIntervalReason(scheduler.getReason())));
+        }
         builder.setGroup("maptrek");
         if (Build.VERSION.SDK_INT >= 28)
             builder.setCategory(Notification.CATEGORY_NAVIGATION);
@@ -559,32 +1031,100 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         String oldsession = session;
         String olduser = user;
 
-        if (getString(R.string.pref_sharing_session).equals(key)) {
+        if (getString(R.string.pref_sharing_server).equals(key)) {
+            String url = sharedPreferences.getString(key, "").trim();
+            if (url.isEmpty())
+                url = getString(R.string.def_sharing_server);
+            // Other server knows nothing about our sync state
+            if (server != null && !server.equals(url))
+                clearSituations();
+            server = url;
+        } else if (getString(R.string.pref_sharing_session).equals(key)) {
             session = sharedPreferences.getString(key, "");
         } else if (getString(R.string.pref_sharing_user).equals(key)) {
             user = sharedPreferences.getString(key, "");
         } else if (getString(R.string.pref_sharing_updateinterval).equals(key)) {
             updateInterval = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_updateinterval)) * 1000;
-            if (timer != null) {
-                stopTimer();
-                startTimer();
-            }
+            scheduler.setIntervals(updateInterval, minInterval, maxInterval);
+            if (loop.isRunning())
+                loop.start(0);
+        } else if (getString(R.string.pref_sharing_adaptive).equals(key)) {
+            scheduler.setAdaptive(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_adaptive)));
+        } else if (getString(R.string.pref_sharing_mininterval).equals(key)) {
+            minInterval = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_mininterval)) * 1000;
+            scheduler.setIntervals(updateInterval, minInterval, maxInterval);
+        } else if (getString(R.string.pref_sharing_maxinterval).equals(key)) {
+            maxInterval = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_maxinterval)) * 1000;
+            scheduler.setIntervals(updateInterval, minInterval, maxInterval);
         } else if (getString(R.string.pref_sharing_notifications).equals(key)) {
             notifyNewSituation = sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_notifications));
         } else if (getString(R.string.pref_sharing_tagcolor).equals(key)) {
             @ColorInt int color = getResources().getColor(R.color.usertag, getTheme());
             linePaint.setColor(sharedPreferences.getInt(key, color));
             textPaint.setColor(sharedPreferences.getInt(key, color));
+            markerRenderer.setStyle(linePaint.getColor(), pointWidth);
+            mapObjectValues.setColor(linePaint.getColor());
+            clusterBitmaps.clear();
+            store.markDirty(Situation.DIRTY_VISUALS);
+            markClustersDirty();
         } else if (getString(R.string.pref_sharing_tagsize).equals(key)) {
             int width = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_tagsize));
             linePaint.setStrokeWidth(width * 2);
+            textPaint.setTextSize(width * 10);
             pointWidth = width;
+            markerRenderer.setStyle(linePaint.getColor(), pointWidth);
+            clusterBitmaps.clear();
+            store.markDirty(Situation.DIRTY_VISUALS);
+            markClustersDirty();
+        } else if (getString(R.string.pref_sharing_area).equals(key)) {
+            areaRadius = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_area)) * 1000;
+        } else if (getString(R.string.pref_sharing_arealimit).equals(key)) {
+            areaLimit = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_arealimit));
+        } else if (getString(R.string.pref_sharing_cluster).equals(key)) {
+            clusters.setDistance(sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_cluster)));
+            // Users are shown either separately or in clusters now
+            store.markDirty(Situation.DIRTY_POSITION);
+        } else if (getString(R.string.pref_sharing_detailed).equals(key)) {
+            mapObjectValues.setDetailed(sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_detailed)));
+            store.markDirty(Situation.DIRTY_VISUALS);
+            markClustersDirty();
+        } else if (getString(R.string.pref_sharing_animate).equals(key)) {
+            boolean animate = sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_animate));
+            if (animate && animator == null) {
+                animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+                animator.setPredictor(predict ? new DeadReckoning(store) : null);
+            } else if (!animate && animator != null) {
+                animator = null;
+                animationHandler.removeCallbacks(animationFrame);
+                animationScheduled = false;
+                // Move markers to their actual positions, uncertain ones are not faded anymore
+                store.markDirty(Situation.DIRTY_POSITION | Situation.DIRTY_VISUALS);
+            }
+        } else if (getString(R.string.pref_sharing_predict).equals(key)) {
+            predict = sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_predict));
+            if (animator != null)
+                animator.setPredictor(predict ? new DeadReckoning(store) : null);
+        } else if (getString(R.string.pref_sharing_history).equals(key)) {
+            store.setHistoryCapacity(sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_history)));
+        } else if (getString(R.string.pref_sharing_labels).equals(key)) {
+            labelLimit = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_labels));
         } else if (getString(R.string.pref_sharing_timeout).equals(key)) {
             timeoutInterval = sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_sharing_timeout)) * 60000;
         }
 
         if (!session.equals(oldsession) || !user.equals(olduser)) {
             clearSituations();
+            // Outbox survives restarts, but not change of session or user
+            if (outbox != null && user != null) {
+                try {
+                    outbox.setOwner((session + '\n' + user).hashCode());
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to reset outbox", e);
+                }
+            }
+            // Same for map objects, those of previous member are removed on start
+            if (user != null)
+                registry.setOwner((session + '\n' + user).hashCode());
         }
         if ((session != null && session.trim().equals("")) || (user != null && user.trim().equals("")))
             stopSelf();
@@ -626,10 +1166,22 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
         @Override
         public void onLocationChanged() throws RemoteException {
             Location location = mapTrekLocationService.getLocation();
+            Situation fix;
             synchronized (currentLocation) {
                 currentLocation.set(location);
                 timeCorrection = System.currentTimeMillis() - currentLocation.getTime();
+                fix = getOwnFix();
             }
+            synchronized (snapshotLock) {
+                snapshot = snapshot.withLocation(fix.latitude, fix.longitude);
+            }
+            // Server is unreachable, keep fix for later upload
+            if (isLocated && failurePolicy.getFailures() > 0)
+                recordFix(fix);
+            // Restart pending push request to deliver own fix
+            long now = System.currentTimeMillis();
+            if (isLocated && pushChannel.shouldUpload(now, scheduler.getInterval()) && failurePolicy.allowRequest(now))
+                pipeline.supersede();
         }
 
         @Override
@@ -638,10 +1190,4 @@ public class SharingService extends Service implements OnSharedPreferenceChangeL
             isLocated = mapTrekLocationService.getStatus() == GPS_OK;
         }
     };
-
-    class UpdateSituationsTask extends TimerTask {
-        public void run() {
-            updateSituations();
-        }
-    }
 }
@@ -392,39 +392,37 @@ public class SituationList extends AppCompatActivity implements SharedPreference
     public class SituationListAdapter extends BaseAdapter {
         private final LayoutInflater mInflater;
         private final int mItemLayout;
+        // Snapshot is taken once per data change, so that layout pass sees consistent list
+        private SituationSnapshot snapshot = SituationSnapshot.EMPTY;
+        private final double[] velocity = new double[2];
 
         SituationListAdapter(Context context) {
             mItemLayout = R.layout.situation_list_item;
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         }
 
+        @Override
+        public void notifyDataSetChanged() {
+            SharingService service = sharingService;
+            snapshot = service != null ? service.snapshot : SituationSnapshot.EMPTY;
+            super.notifyDataSetChanged();
+        }
+
         public Situation getItem(int position) {
-            if (sharingService != null) {
-                synchronized (sharingService.situationList) {
-                    return sharingService.situationList.get(position);
-                }
-            }
-            return null;
+            return snapshot.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-            if (sharingService != null) {
-                synchronized (sharingService.situationList) {
-                    return sharingService.situationList.get(position).id;
-                }
-            }
+            Situation situation = snapshot.get(position);
+            if (situation != null)
+                return situation.id;
             return Integer.MIN_VALUE + position;
         }
 
         @Override
         public int getCount() {
-            if (sharingService != null) {
-                synchronized (sharingService.situationList) {
-                    return sharingService.situationList.size();
-                }
-            }
-            return 0;
+            return snapshot.size();
         }
 
         @Override
@@ -445,26 +443,29 @@ public class SituationList extends AppCompatActivity implements SharedPreference
                     text.setText(stn.name);
                 }
                 String distance = "";
-                synchronized (sharingService.currentLocation) {
-                    if (!"fake".equals(sharingService.currentLocation.getProvider())) {
-                        double dist = Geo.distance(stn.latitude, stn.longitude, sharingService.currentLocation.getLatitude(), sharingService.currentLocation.getLongitude());
-                        distance = StringFormatter.distanceH(dist);
-                    }
+                if (snapshot.isLocated()) {
+                    double dist = Geo.distance(stn.latitude, stn.longitude, snapshot.latitude, snapshot.longitude);
+                    distance = StringFormatter.distanceH(dist);
                 }
                 text = (TextView) v.findViewById(R.id.distance);
                 if (text != null) {
                     text.setText(distance);
                 }
-                //FIXME Should initialize StringFormatter for angles
-                String track = StringFormatter.angleH(stn.track);
+                String track = "";
+                String speed = "";
+                // Speed and direction that are not reported are estimated from fix history
+                if (sharingService.reckoning.getVelocity(stn, velocity)) {
+                    //FIXME Should initialize StringFormatter for angles
+                    track = StringFormatter.angleH(velocity[1]);
+                    speed = Math.round(velocity[0] * sharingService.speedFactor) + " " + sharingService.speedAbbr;
+                }
                 text = (TextView) v.findViewById(R.id.track);
                 if (text != null) {
                     text.setText(track);
                 }
-                String speed = String.valueOf(Math.round(stn.speed * sharingService.speedFactor));
                 text = (TextView) v.findViewById(R.id.speed);
                 if (text != null) {
-                    text.setText(speed + " " + sharingService.speedAbbr);
+                    text.setText(speed);
                 }
                 long now = System.currentTimeMillis();
                 long d = stn.time - sharingService.timeCorrection;
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+/**
+ * Immutable state of session published by service after each update. UI reads it through
+ * volatile reference without locking, situations in snapshot are copies that are never
+ * modified, unchanged users share copies with previous snapshot.
+ */
+class SituationSnapshot {
+    static final SituationSnapshot EMPTY = new SituationSnapshot(0, new Situation[0], Double.NaN, Double.NaN);
+
+    /**
+     * Number of store update this snapshot reflects.
+     */
+    final long version;
+    /**
+     * Own location, NaN if it is not known.
+     */
+    final double latitude;
+    final double longitude;
+    private final Situation[] situations;
+
+    SituationSnapshot(long version, Situation[] situations, double latitude, double longitude) {
+        this.version = version;
+        this.situations = situations;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Returns snapshot with the same situations and new own location.
+     */
+    SituationSnapshot withLocation(double latitude, double longitude) {
+        return new SituationSnapshot(version, situations, latitude, longitude);
+    }
+
+    int size() {
+        return situations.length;
+    }
+
+    /**
+     * Returns situation at position or null if there is no such position.
+     */
+    Situation get(int position) {
+        return position >= 0 && position < situations.length ? situations[position] : null;
+    }
+
+    boolean isLocated() {
+        return !Double.isNaN(latitude);
+    }
+}
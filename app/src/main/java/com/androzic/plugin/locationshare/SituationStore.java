@@ -0,0 +1,615 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds situations of session members and keeps them in sync with server replies. Fixes, map
+ * object ids and markers are kept in primitive arrays indexed by slot, so that applying a reply
+ * and scanning users does not touch objects. Store keeps no object per user: situations are
+ * made from slots only for those who need them, map updates take views of changed users and
+ * UI gets immutable snapshots, that share copies of users unchanged since previous snapshot.
+ * Slots of users that have left are reused.
+ * <p>
+ * Store is written from one thread, which applies whole reply under single write lock. Slot
+ * access methods, views and snapshots belong to that thread. Other threads read fixes through
+ * optimistic reads that are validated and retried under read lock if reply was applied
+ * meanwhile, so they never see a half applied fix.
+ */
+class SituationStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+    private final NameIndex index = new NameIndex(INITIAL_CAPACITY);
+    // User names, null for free slots
+    private String[] names = new String[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private double[] speeds = new double[INITIAL_CAPACITY];
+    private double[] tracks = new double[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] markers = new long[INITIAL_CAPACITY];
+    private boolean[] silent = new boolean[INITIAL_CAPACITY];
+    private byte[] dirty = new byte[INITIAL_CAPACITY];
+    // True if user has had map object since joining the session
+    private boolean[] placed = new boolean[INITIAL_CAPACITY];
+    // Full snapshot number in which slot was last seen
+    private int[] seen = new int[INITIAL_CAPACITY];
+    private int snapshot;
+    // Position of slot copy in last published snapshot, -1 if slot has changed since
+    private int[] shown = new int[INITIAL_CAPACITY];
+    private Situation[] published = new Situation[0];
+    // Slots ever used and released slots available for reuse
+    private int slots;
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private final FixHistory history = new FixHistory(FixHistory.DEFAULT_CAPACITY, FixHistory.DEFAULT_BUDGET);
+
+    private long version;
+    private long cursor = SharingResponse.NO_CURSOR;
+    private int total = -1;
+
+    SituationStore() {
+        history.ensureSlots(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns cursor of the last applied reply or <code>NO_CURSOR</code> if server does not
+     * support incremental sync or nothing was received yet.
+     */
+    long getCursor() {
+        long stamp = lock.tryOptimisticRead();
+        long cursor = this.cursor;
+        if (lock.validate(stamp))
+            return cursor;
+        stamp = lock.readLock();
+        try {
+            return this.cursor;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns number of session members reported by server if it limits reply to area of
+     * interest, -1 otherwise.
+     */
+    int getTotal() {
+        long stamp = lock.tryOptimisticRead();
+        int total = this.total;
+        if (lock.validate(stamp))
+            return total;
+        stamp = lock.readLock();
+        try {
+            return this.total;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Forces full snapshot on next request.
+     */
+    void resetCursor() {
+        long stamp = lock.writeLock();
+        try {
+            cursor = SharingResponse.NO_CURSOR;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns number of session members.
+     */
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies current fix of the user, can be called from any thread.
+     *
+     * @param name user name
+     * @param fix  receives position, speed, track, time and silence of the user
+     * @return false if there is no such user
+     */
+    boolean read(String name, Situation fix) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean found = copyFix(name, fix);
+            if (lock.validate(stamp))
+                return found;
+        }
+        stamp = lock.readLock();
+        try {
+            return copyFix(name, fix);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Applies server reply to the store.
+     *
+     * @param response server reply
+     * @param self     name of current user, it is never added to the store
+     * @return situations that have left the session and should be removed from map
+     */
+    List<Situation> apply(SharingResponse response, String self) {
+        List<Situation> left = new ArrayList<>();
+        long stamp = lock.writeLock();
+        try {
+            // Full snapshot of incremental sync server lists all session members, others have left.
+            // Legacy server snapshot can not be trusted for that, users there just become silent.
+            boolean full = !response.delta && response.cursor != SharingResponse.NO_CURSOR;
+            if (full)
+                snapshot++;
+            for (int i = 0; i < response.size(); i++) {
+                String name = response.names[i];
+                if (name.equals(self))
+                    continue;
+                double latitude = response.latitudes[i];
+                double longitude = response.longitudes[i];
+                double speed = response.speeds[i];
+                double track = response.tracks[i];
+                long time = response.times[i];
+                int slot = index.get(name);
+                int changes;
+                if (slot < 0) {
+                    slot = allocate(name);
+                    changes = Situation.DIRTY_ALL;
+                } else {
+                    changes = 0;
+                    if (latitudes[slot] != latitude || longitudes[slot] != longitude)
+                        changes |= Situation.DIRTY_POSITION;
+                    if (speeds[slot] != speed || tracks[slot] != track)
+                        changes |= Situation.DIRTY_VISUALS;
+                }
+                if (full)
+                    seen[slot] = snapshot;
+                if (changes == 0 && times[slot] == time)
+                    continue;
+                if ((changes & Situation.DIRTY_POSITION) != 0 || times[slot] != time)
+                    history.append(slot, time, latitude, longitude);
+                latitudes[slot] = latitude;
+                longitudes[slot] = longitude;
+                speeds[slot] = speed;
+                tracks[slot] = track;
+                times[slot] = time;
+                dirty[slot] |= changes;
+                shown[slot] = -1;
+            }
+            for (String name : response.removed) {
+                int slot = index.get(name);
+                if (slot >= 0)
+                    left.add(release(slot));
+            }
+            if (full) {
+                for (int slot = 0; slot < slots; slot++) {
+                    if (names[slot] != null && seen[slot] != snapshot)
+                        left.add(release(slot));
+                }
+            }
+            cursor = response.cursor;
+            total = response.total;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return left;
+    }
+
+    Situation remove(String name) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = index.get(name);
+            return slot >= 0 ? release(slot) : null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes all situations and resets sync cursor.
+     *
+     * @return removed situations
+     */
+    List<Situation> clear() {
+        long stamp = lock.writeLock();
+        try {
+            List<Situation> removed = views();
+            index.clear();
+            Arrays.fill(names, 0, slots, null);
+            slots = 0;
+            freeCount = 0;
+            published = new Situation[0];
+            history.clear();
+            cursor = SharingResponse.NO_CURSOR;
+            total = -1;
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns new views of all situations, in slot order.
+     */
+    List<Situation> getSituations() {
+        long stamp = lock.readLock();
+        try {
+            return views();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Creates immutable snapshot of situations for UI. Copies of users that have not changed
+     * since previous snapshot are reused.
+     *
+     * @param latitude  own latitude, NaN if unknown
+     * @param longitude own longitude
+     */
+    SituationSnapshot snapshot(double latitude, double longitude) {
+        long stamp = lock.writeLock();
+        try {
+            Situation[] situations = new Situation[index.size()];
+            int n = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (names[slot] == null)
+                    continue;
+                int i = shown[slot];
+                situations[n] = i >= 0 ? published[i] : view(slot);
+                shown[slot] = n++;
+            }
+            published = situations;
+            return new SituationSnapshot(++version, situations, latitude, longitude);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies recent fixes of the user, oldest first, can be called from any thread.
+     *
+     * @return number of copied fixes, limited by length of arrays, 0 if there is no such user
+     */
+    int getHistory(String name, long[] times, double[] latitudes, double[] longitudes) {
+        long stamp = lock.readLock();
+        try {
+            int slot = index.get(name);
+            return slot >= 0 ? history.copy(slot, times, latitudes, longitudes) : 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sets number of recent fixes kept for each user. All users share the same memory budget,
+     * so in large sessions each of them gets fewer fixes.
+     */
+    void setHistoryCapacity(int capacity) {
+        long stamp = lock.writeLock();
+        try {
+            history.setCapacity(capacity);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns number of slots, slots of users that have left are free until reused.
+     */
+    int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Returns name of user in slot, null if slot is free.
+     */
+    String getName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * Returns id of user map object, 0 if user is not on map.
+     */
+    long getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * Returns new situation holding fix, map object id and marker of user in slot.
+     */
+    Situation view(int slot) {
+        Situation view = new Situation(names[slot]);
+        view.id = ids[slot];
+        view.marker = markers[slot];
+        view.latitude = latitudes[slot];
+        view.longitude = longitudes[slot];
+        view.speed = speeds[slot];
+        view.track = tracks[slot];
+        view.time = times[slot];
+        view.silent = silent[slot];
+        return view;
+    }
+
+    /**
+     * Sets map object of user in slot.
+     *
+     * @param id     map object id, 0 if user is not on map
+     * @param marker key of marker shown on map
+     */
+    void setMapObject(int slot, long id, long marker) {
+        long stamp = lock.writeLock();
+        try {
+            if (ids[slot] != id)
+                shown[slot] = -1;
+            ids[slot] = id;
+            markers[slot] = marker;
+            placed[slot] |= id != 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Keeps map object id and marker of user view after map update, does nothing if user has
+     * left meanwhile.
+     */
+    void setMapObject(Situation view) {
+        int slot = index.get(view.name);
+        if (slot >= 0)
+            setMapObject(slot, view.id, view.marker);
+    }
+
+    /**
+     * Returns true if user has already had map object, i.e. it is not new to the map user even
+     * if its object has been removed, e.g. while it was hidden in cluster.
+     */
+    boolean wasPlaced(Situation view) {
+        int slot = index.get(view.name);
+        return slot >= 0 && placed[slot];
+    }
+
+    /**
+     * Returns changes of user in slot not yet sent to map and marks it clean.
+     */
+    int takeDirty(int slot) {
+        long stamp = lock.writeLock();
+        try {
+            int changes = dirty[slot];
+            dirty[slot] = 0;
+            return changes;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns changes of the user not yet sent to map and marks it clean.
+     */
+    int takeDirty(Situation situation) {
+        int slot = index.get(situation.name);
+        return slot >= 0 ? takeDirty(slot) : 0;
+    }
+
+    /**
+     * Marks user changed, e.g. when its changes failed to reach map.
+     */
+    void markDirty(Situation situation, int dirty) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = index.get(situation.name);
+            if (slot >= 0)
+                this.dirty[slot] |= dirty;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Marks all situations changed.
+     */
+    void markDirty(int dirty) {
+        long stamp = lock.writeLock();
+        try {
+            for (int slot = 0; slot < slots; slot++)
+                this.dirty[slot] |= dirty;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns maximum speed of active situations within given distance from location.
+     *
+     * @param latitude  latitude of location, if NaN all situations are considered
+     * @param longitude longitude of location
+     * @param distance  distance in meters
+     * @return speed in m/s or NaN if there are no active situations around
+     */
+    double getMaxSpeed(double latitude, double longitude, double distance) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            double speed = maxSpeed(latitude, longitude, distance);
+            if (lock.validate(stamp))
+                return speed;
+        }
+        stamp = lock.readLock();
+        try {
+            return maxSpeed(latitude, longitude, distance);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Marks situations which were not updated for the timeout interval as silent.
+     *
+     * @return true if any situation has changed its state
+     */
+    boolean updateSilence(long curTime, int timeoutInterval) {
+        boolean changed = false;
+        long stamp = lock.writeLock();
+        try {
+            for (int slot = 0; slot < slots; slot++) {
+                if (names[slot] == null)
+                    continue;
+                boolean silent = times[slot] + timeoutInterval < curTime;
+                if (silent != this.silent[slot]) {
+                    this.silent[slot] = silent;
+                    dirty[slot] |= Situation.DIRTY_VISUALS;
+                    shown[slot] = -1;
+                    changed = true;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return changed;
+    }
+
+    /**
+     * Scans situations, tolerates concurrent writes as result is validated by caller.
+     */
+    private double maxSpeed(double latitude, double longitude, double distance) {
+        double speed = Double.NaN;
+        // Equirectangular approximation is good enough for selecting peers
+        double dLatMax = distance / 111320;
+        double cos = Math.cos(Math.toRadians(latitude));
+        // Arrays can be replaced by writer, read each once
+        String[] names = this.names;
+        boolean[] silent = this.silent;
+        double[] latitudes = this.latitudes;
+        double[] longitudes = this.longitudes;
+        double[] speeds = this.speeds;
+        int slots = Math.min(this.slots, Math.min(Math.min(names.length, silent.length),
+                Math.min(Math.min(latitudes.length, longitudes.length), speeds.length)));
+        for (int slot = 0; slot < slots; slot++) {
+            if (names[slot] == null || silent[slot])
+                continue;
+            if (!Double.isNaN(latitude)) {
+                double dLat = latitudes[slot] - latitude;
+                double dLon = (longitudes[slot] - longitude) * cos;
+                if (dLat * dLat + dLon * dLon > dLatMax * dLatMax)
+                    continue;
+            }
+            if (Double.isNaN(speed) || speeds[slot] > speed)
+                speed = speeds[slot];
+        }
+        return speed;
+    }
+
+    /**
+     * Copies fix of the user, tolerates concurrent writes as result is validated by caller.
+     */
+    private boolean copyFix(String name, Situation fix) {
+        int slot = index.get(name);
+        String[] names = this.names;
+        double[] latitudes = this.latitudes;
+        double[] longitudes = this.longitudes;
+        double[] speeds = this.speeds;
+        double[] tracks = this.tracks;
+        long[] times = this.times;
+        boolean[] silent = this.silent;
+        if (slot < 0 || slot >= names.length || slot >= latitudes.length || slot >= longitudes.length
+                || slot >= speeds.length || slot >= tracks.length || slot >= times.length || slot >= silent.length)
+            return false;
+        if (names[slot] == null)
+            return false;
+        fix.latitude = latitudes[slot];
+        fix.longitude = longitudes[slot];
+        fix.speed = speeds[slot];
+        fix.track = tracks[slot];
+        fix.time = times[slot];
+        fix.silent = silent[slot];
+        return true;
+    }
+
+    private List<Situation> views() {
+        List<Situation> views = new ArrayList<>(index.size());
+        for (int slot = 0; slot < slots; slot++) {
+            if (names[slot] != null)
+                views.add(view(slot));
+        }
+        return views;
+    }
+
+    private int allocate(String name) {
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (slots == names.length)
+                grow(slots + (slots >> 1));
+            slot = slots++;
+        }
+        names[slot] = name;
+        history.clear(slot);
+        ids[slot] = 0;
+        markers[slot] = 0;
+        silent[slot] = false;
+        dirty[slot] = 0;
+        placed[slot] = false;
+        shown[slot] = -1;
+        index.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * Frees slot, returns view of the user that has left.
+     */
+    private Situation release(int slot) {
+        Situation view = view(slot);
+        index.remove(names[slot]);
+        names[slot] = null;
+        free[freeCount++] = slot;
+        return view;
+    }
+
+    private void grow(int capacity) {
+        names = Arrays.copyOf(names, capacity);
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        speeds = Arrays.copyOf(speeds, capacity);
+        tracks = Arrays.copyOf(tracks, capacity);
+        times = Arrays.copyOf(times, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        markers = Arrays.copyOf(markers, capacity);
+        silent = Arrays.copyOf(silent, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        placed = Arrays.copyOf(placed, capacity);
+        seen = Arrays.copyOf(seen, capacity);
+        shown = Arrays.copyOf(shown, capacity);
+        free = Arrays.copyOf(free, capacity);
+        history.ensureSlots(capacity);
+    }
+}
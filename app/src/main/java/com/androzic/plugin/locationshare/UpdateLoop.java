@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import java.util.concurrent.Future;
+
+/**
+ * Drives situation updates. Poll triggers exchange and schedules the next one after interval
+ * given by host, or after backoff if server fails. While push channel holds request polling
+ * stops, it is resumed when push ends or fails. When session changes request held by server
+ * is dropped and polling starts anew, otherwise updates would stall until push times out.
+ */
+class UpdateLoop {
+    interface Scheduler {
+        /**
+         * Runs task after given delay in milliseconds.
+         *
+         * @return handle cancelling the task
+         */
+        Future<?> schedule(Runnable task, long delay);
+    }
+
+    interface Intervals {
+        /**
+         * Returns regular interval in milliseconds till next poll.
+         */
+        long getNextInterval();
+    }
+
+    private final Scheduler scheduler;
+    private final UpdatePipeline pipeline;
+    private final PushChannel pushChannel;
+    private final FailurePolicy failurePolicy;
+    private final Intervals intervals;
+
+    private Future<?> task;
+    // Polls scheduled before last start or stop are outdated
+    private long generation = 0;
+
+    UpdateLoop(Scheduler scheduler, UpdatePipeline pipeline, PushChannel pushChannel, FailurePolicy failurePolicy, Intervals intervals) {
+        this.scheduler = scheduler;
+        this.pipeline = pipeline;
+        this.pushChannel = pushChannel;
+        this.failurePolicy = failurePolicy;
+        this.intervals = intervals;
+    }
+
+    /**
+     * Starts polling after given delay, rescheduling poll if it is already running.
+     */
+    synchronized void start(long delay) {
+        stop();
+        schedule(delay);
+    }
+
+    synchronized void stop() {
+        generation++;
+        if (task != null)
+            task.cancel(false);
+        task = null;
+    }
+
+    /**
+     * Returns true if poll is scheduled, false if loop is stopped or push request is held.
+     */
+    synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * Processes successful reply, polling stops while server keeps push request pending.
+     *
+     * @param wait wait time advertised by server, 0 if push is not supported
+     * @return true if next push request should be issued right away
+     */
+    synchronized boolean onReply(int wait) {
+        boolean hold = pushChannel.onResponse(wait);
+        if (hold)
+            stop();
+        else if (task == null)
+            schedule(0);
+        return hold;
+    }
+
+    /**
+     * Processes failed exchange. Failed push request is reconnected resuming from cursor or falls
+     * back to polling, after backoff.
+     *
+     * @param push true if exchange was push request
+     */
+    synchronized void onFailure(boolean push) {
+        if (!push)
+            return;
+        long interval = pushChannel.onFailure() ? 0 : intervals.getNextInterval();
+        start(failurePolicy.getDelay(interval, System.currentTimeMillis()));
+    }
+
+    /**
+     * Drops exchange in flight, it belongs to previous session, and polls new session right away.
+     */
+    synchronized void restart() {
+        pipeline.cancel();
+        pushChannel.reset();
+        start(0);
+    }
+
+    private void schedule(long delay) {
+        final long generation = this.generation;
+        task = scheduler.schedule(() -> poll(generation), delay);
+    }
+
+    private void poll(long generation) {
+        synchronized (this) {
+            if (generation != this.generation)
+                return;
+        }
+        long now = System.currentTimeMillis();
+        if (failurePolicy.allowRequest(now)) {
+            pipeline.trigger();
+            synchronized (this) {
+                // Push request takes over, polling resumes when it ends
+                if (generation == this.generation && pushChannel.isActive()) {
+                    task = null;
+                    return;
+                }
+            }
+        }
+        long delay = failurePolicy.getDelay(intervals.getNextInterval(), now);
+        synchronized (this) {
+            if (generation == this.generation)
+                schedule(delay);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs sharing server exchanges one at a time. Triggers that arrive while exchange is in flight
+ * are coalesced into single follow-up exchange started when the current one finishes. Every
+ * exchange gets a token, replies carrying outdated token belong to cancelled or superseded
+ * exchanges and should be ignored, so older data never overwrites newer one.
+ */
+class UpdatePipeline {
+    static final long NO_TOKEN = 0;
+
+    interface Exchange {
+        void cancel();
+    }
+
+    interface Starter {
+        /**
+         * Starts exchange, called on executor thread.
+         *
+         * @param token exchange token that should be passed back to {@link #finish}
+         * @return started exchange or null if nothing was started
+         */
+        Exchange start(long token);
+    }
+
+    private final Executor executor;
+    private final Starter starter;
+
+    private long token = NO_TOKEN;
+    private boolean busy = false;
+    private boolean pending = false;
+    private Exchange exchange;
+
+    private long triggerTime;
+    private long startTime;
+    private long queueTime;
+    private long flightTime;
+    private int exchanges;
+    private int coalesced;
+    private int superseded;
+
+    UpdatePipeline(Executor executor, Starter starter) {
+        this.executor = executor;
+        this.starter = starter;
+    }
+
+    /**
+     * Requests exchange. If one is already in flight, follow-up exchange is scheduled.
+     */
+    synchronized void trigger() {
+        if (busy) {
+            if (pending)
+                coalesced++;
+            else
+                triggerTime = System.nanoTime();
+            pending = true;
+            return;
+        }
+        triggerTime = System.nanoTime();
+        launch();
+    }
+
+    /**
+     * Cancels exchange in flight, if any, and starts new one.
+     */
+    synchronized void supersede() {
+        if (busy) {
+            superseded++;
+            abort();
+        }
+        if (!pending)
+            triggerTime = System.nanoTime();
+        pending = false;
+        launch();
+    }
+
+    /**
+     * Cancels exchange in flight and any follow-up.
+     */
+    synchronized void cancel() {
+        abort();
+        pending = false;
+    }
+
+    /**
+     * Checks if reply belongs to exchange in flight.
+     */
+    synchronized boolean isCurrent(long token) {
+        return busy && token == this.token;
+    }
+
+    /**
+     * Marks exchange finished and starts follow-up if it was requested meanwhile.
+     *
+     * @param again start another exchange even if it was not requested
+     * @return false if exchange is outdated and its reply should be ignored
+     */
+    synchronized boolean finish(long token, boolean again) {
+        if (!isCurrent(token))
+            return false;
+        flightTime = System.nanoTime() - startTime;
+        exchange = null;
+        busy = false;
+        if (again && !pending)
+            triggerTime = System.nanoTime();
+        if (pending || again) {
+            pending = false;
+            launch();
+        }
+        return true;
+    }
+
+    /**
+     * Marks exchange failed. Follow-up requested meanwhile is dropped, retry is up to caller.
+     */
+    synchronized void fail(long token) {
+        if (isCurrent(token)) {
+            pending = false;
+            finish(token, false);
+        }
+    }
+
+    synchronized boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * Returns time in milliseconds the last exchange waited for the previous one.
+     */
+    synchronized long getQueueTime() {
+        return queueTime / 1000000;
+    }
+
+    /**
+     * Returns time in milliseconds the last finished exchange was in flight.
+     */
+    synchronized long getFlightTime() {
+        return flightTime / 1000000;
+    }
+
+    synchronized String getStatistics() {
+        return exchanges + " exchanges, " + coalesced + " coalesced, " + superseded + " superseded, last queued "
+                + getQueueTime() + "ms, in flight " + getFlightTime() + "ms";
+    }
+
+    private void launch() {
+        busy = true;
+        final long token = ++this.token;
+        try {
+            executor.execute(() -> start(token));
+        } catch (RejectedExecutionException e) {
+            // Executor has been shut down
+            busy = false;
+        }
+    }
+
+    private void start(long token) {
+        synchronized (this) {
+            if (!isCurrent(token))
+                return;
+            startTime = System.nanoTime();
+            queueTime = startTime - triggerTime;
+            exchanges++;
+        }
+        Exchange exchange = starter.start(token);
+        synchronized (this) {
+            if (isCurrent(token)) {
+                if (exchange != null) {
+                    this.exchange = exchange;
+                    return;
+                }
+                // Nothing was started, let next trigger proceed
+                finish(token, false);
+                return;
+            }
+        }
+        // Superseded while being started
+        if (exchange != null)
+            exchange.cancel();
+    }
+
+    private void abort() {
+        if (exchange != null)
+            exchange.cancel();
+        exchange = null;
+        busy = false;
+        token++;
+    }
+}
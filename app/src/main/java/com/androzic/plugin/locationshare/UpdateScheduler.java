@@ -0,0 +1,133 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare;
+
+/**
+ * Chooses update interval depending on own and peers motion and device state. Interval is
+ * shortened when somebody nearby moves fast, lengthened when everybody stays still, screen is off
+ * or battery is low, and is always kept within user set bounds.
+ */
+class UpdateScheduler {
+    static final double FAST_SPEED = 5; // m/s (18 km/h)
+    static final double STATIONARY_SPEED = 0.5; // m/s
+    static final double NEARBY_DISTANCE = 10000; // meters
+    static final int STATIONARY_FACTOR = 4;
+    static final int SCREEN_OFF_FACTOR = 2;
+
+    enum Reason {
+        FIXED,
+        REGULAR,
+        MOVING,
+        PEERS_MOVING,
+        STATIONARY,
+        SCREEN_OFF,
+        BATTERY_LOW
+    }
+
+    private boolean adaptive = true;
+    private int baseInterval = 10000;
+    private int minInterval = 10000;
+    private int maxInterval = 300000;
+
+    private int interval = baseInterval;
+    private Reason reason = Reason.FIXED;
+
+    private long firstUpdate = 0;
+    private long updates = 0;
+
+    synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets intervals, in milliseconds.
+     */
+    synchronized void setIntervals(int base, int min, int max) {
+        baseInterval = base;
+        minInterval = Math.min(min, max);
+        maxInterval = Math.max(min, max);
+        if (updates == 0)
+            interval = base;
+    }
+
+    /**
+     * Calculates interval till next update.
+     *
+     * @param time       current time
+     * @param ownSpeed   own speed in m/s, NaN if location is not known
+     * @param peersSpeed maximum speed of active nearby peers in m/s, NaN if there are no such peers
+     * @param screenOn   true if device is interactive
+     * @param batteryLow true if battery is low and device is not charging
+     * @return interval in milliseconds
+     */
+    synchronized int update(long time, double ownSpeed, double peersSpeed, boolean screenOn, boolean batteryLow) {
+        if (updates == 0)
+            firstUpdate = time;
+        updates++;
+
+        if (!adaptive) {
+            interval = baseInterval;
+            reason = Reason.FIXED;
+            return interval;
+        }
+
+        long next = baseInterval;
+        reason = Reason.REGULAR;
+        if (ownSpeed >= FAST_SPEED) {
+            next = minInterval;
+            reason = Reason.MOVING;
+        } else if (peersSpeed >= FAST_SPEED) {
+            next = minInterval;
+            reason = Reason.PEERS_MOVING;
+        } else if (!(ownSpeed >= STATIONARY_SPEED) && !(peersSpeed >= STATIONARY_SPEED)) {
+            // Nobody moves, or there is nobody to look at
+            next = (long) baseInterval * STATIONARY_FACTOR;
+            reason = Reason.STATIONARY;
+        }
+        if (batteryLow) {
+            next = maxInterval;
+            reason = Reason.BATTERY_LOW;
+        } else if (!screenOn && next < (long) baseInterval * SCREEN_OFF_FACTOR) {
+            next = (long) baseInterval * SCREEN_OFF_FACTOR;
+            reason = Reason.SCREEN_OFF;
+        }
+        interval = (int) Math.max(minInterval, Math.min(maxInterval, next));
+        return interval;
+    }
+
+    synchronized int getInterval() {
+        return interval;
+    }
+
+    synchronized Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns number of requests saved compared to fixed rate polling with base interval.
+     */
+    synchronized long getSavedRequests(long time) {
+        if (updates == 0)
+            return 0;
+        return (time - firstUpdate) / baseInterval + 1 - updates;
+    }
+}
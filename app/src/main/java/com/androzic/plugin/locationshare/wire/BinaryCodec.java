@@ -0,0 +1,404 @@
+/*
+ * Copyright 2024 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package com.androzic.plugin.locationshare.wire;
+
+import com.androzic.data.Situation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of sharing server exchange. Coordinates are transferred as fixed-point
+ * integers (1e-6 degree), speed is quantized to 0.1 m/s and track to whole degrees. Each user
+ * gets session scoped integer id, ids are assigned in order starting from 0 with every full
+ * frame. Name is sent only once, when id is introduced. Fix of known user
+ * is sent as zig-zag varint delta against previous fix of that user, so both sides keep the last
+ * transferred fix of every user. Delta frame refers to the cursor it is based on, if receiver
+ * state does not match it decoding fails and receiver should request full frame.
+ * <p>
+ * Frame layout (all integers are varints):
+ * <pre>
+ * version, flags, [cursor], [base cursor], [total], user count,
+ *   { id &lt;&lt; 1 | has name, [name length, name], lat, lon, time, speed, track } ...,
+ * removed count, { id } ...
+ * </pre>
+ * Own fix is sent as <code>version, lat, lon, time, speed, track</code>, all absolute. It can be
+ * followed by backlog of earlier fixes: <code>count, { lat, lon, time, speed, track } ...</code>,
+ * oldest first, each one delta encoded against the previous one (the first against own fix).
+ * Servers unaware of backlog read only own fix.
+ */
+public class BinaryCodec {
+    public static final String CONTENT_TYPE = "application/x-trekarta-sharing";
+    public static final long NO_CURSOR = -1;
+
+    private static final int VERSION = 1;
+    private static final int FLAG_CURSOR = 1;
+    private static final int FLAG_DELTA = 2;
+    private static final int FLAG_TOTAL = 4;
+    private static final double COORDINATE_SCALE = 1e6;
+    private static final double SPEED_SCALE = 10;
+    // Smallest encoded user entry: id and five one byte fields
+    private static final int MIN_USER_SIZE = 6;
+
+    /**
+     * Receives decoded reply. Fixes are passed field by field, so that decoding does not create
+     * object per user.
+     */
+    public interface Receiver {
+        /**
+         * Called first, with frame header.
+         *
+         * @param total number of session members when reply is limited to area of interest, -1 otherwise
+         */
+        void onFrame(long cursor, boolean delta, int total);
+
+        void onUser(String name, double latitude, double longitude, double speed, double track, long time);
+
+        void onRemoved(String name);
+    }
+
+    public static class Reply implements Receiver {
+        public final List<Situation> users = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+        public long cursor = NO_CURSOR;
+        public boolean delta = false;
+        /**
+         * Number of session members when reply is limited to area of interest, -1 otherwise
+         */
+        public int total = -1;
+
+        @Override
+        public void onFrame(long cursor, boolean delta, int total) {
+            this.cursor = cursor;
+            this.delta = delta;
+            this.total = total;
+        }
+
+        @Override
+        public void onUser(String name, double latitude, double longitude, double speed, double track, long time) {
+            Situation situation = new Situation(name);
+            situation.latitude = latitude;
+            situation.longitude = longitude;
+            situation.speed = speed;
+            situation.track = track;
+            situation.time = time;
+            users.add(situation);
+        }
+
+        @Override
+        public void onRemoved(String name) {
+            removed.add(name);
+        }
+    }
+
+    private static class Peer {
+        final int id;
+        final String name;
+        int latitude;
+        int longitude;
+        long time;
+
+        Peer(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Peer> peersByName = new HashMap<>();
+    private final List<Peer> peersById = new ArrayList<>();
+    private long cursor = NO_CURSOR;
+
+    /**
+     * Returns cursor of the last encoded or decoded frame.
+     */
+    public synchronized long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Forgets all transferred state, next frame should be full.
+     */
+    public synchronized void reset() {
+        peersByName.clear();
+        peersById.clear();
+        cursor = NO_CURSOR;
+    }
+
+    /**
+     * Encodes reply. Delta reply is based on the state of previously encoded frame.
+     */
+    public synchronized byte[] encode(Reply reply) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + reply.users.size() * 16);
+        out.write(VERSION);
+        int flags = 0;
+        if (reply.cursor != NO_CURSOR)
+            flags |= FLAG_CURSOR;
+        if (reply.delta)
+            flags |= FLAG_DELTA;
+        if (reply.total >= 0)
+            flags |= FLAG_TOTAL;
+        out.write(flags);
+        if (reply.cursor != NO_CURSOR)
+            VarInt.write(out, reply.cursor);
+        if (reply.delta)
+            VarInt.write(out, cursor);
+        else
+            reset();
+        if (reply.total >= 0)
+            VarInt.write(out, reply.total);
+
+        VarInt.write(out, reply.users.size());
+        for (Situation situation : reply.users) {
+            Peer peer = peersByName.get(situation.name);
+            if (peer == null) {
+                peer = new Peer(peersById.size(), situation.name);
+                peersById.add(peer);
+                peersByName.put(peer.name, peer);
+                byte[] name = peer.name.getBytes(StandardCharsets.UTF_8);
+                VarInt.write(out, ((long) peer.id << 1) | 1);
+                VarInt.write(out, name.length);
+                out.write(name, 0, name.length);
+            } else {
+                VarInt.write(out, (long) peer.id << 1);
+            }
+            int latitude = toFixed(situation.latitude);
+            int longitude = toFixed(situation.longitude);
+            VarInt.writeSigned(out, (long) latitude - peer.latitude);
+            VarInt.writeSigned(out, (long) longitude - peer.longitude);
+            VarInt.writeSigned(out, situation.time - peer.time);
+            VarInt.write(out, quantizeSpeed(situation.speed));
+            VarInt.write(out, quantizeTrack(situation.track));
+            peer.latitude = latitude;
+            peer.longitude = longitude;
+            peer.time = situation.time;
+        }
+
+        int removed = 0;
+        for (String name : reply.removed) {
+            if (peersByName.containsKey(name))
+                removed++;
+        }
+        VarInt.write(out, removed);
+        for (String name : reply.removed) {
+            Peer peer = peersByName.remove(name);
+            if (peer != null) {
+                VarInt.write(out, peer.id);
+                peersById.set(peer.id, null);
+            }
+        }
+        cursor = reply.cursor;
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes reply. On any failure state is reset and full frame should be requested.
+     */
+    public Reply decode(byte[] data, int offset, int length) throws IOException {
+        Reply reply = new Reply();
+        decode(data, offset, length, reply);
+        return reply;
+    }
+
+    /**
+     * Decodes reply passing its content to receiver. On any failure state is reset and full
+     * frame should be requested, receiver can get part of the reply by then.
+     */
+    public synchronized void decode(byte[] data, int offset, int length, Receiver receiver) throws IOException {
+        try {
+            decode(ByteBuffer.wrap(data, offset, length), receiver);
+        } catch (IOException | RuntimeException e) {
+            reset();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private void decode(ByteBuffer in, Receiver receiver) throws IOException {
+        int version = in.get();
+        if (version != VERSION)
+            throw new IOException("Unsupported version: " + version);
+        int flags = in.get();
+        long cursor = NO_CURSOR;
+        if ((flags & FLAG_CURSOR) != 0)
+            cursor = VarInt.read(in);
+        boolean delta = (flags & FLAG_DELTA) != 0;
+        if (delta) {
+            long base = VarInt.read(in);
+            if (base != this.cursor)
+                throw new IOException("Out of sync: " + base + " != " + this.cursor);
+        } else {
+            reset();
+        }
+        int total = -1;
+        if ((flags & FLAG_TOTAL) != 0)
+            total = VarInt.readInt(in);
+        receiver.onFrame(cursor, delta, total);
+
+        // Sizes come from network, check them against frame length before allocating anything
+        int count = VarInt.readInt(in);
+        if (count > in.remaining() / MIN_USER_SIZE)
+            throw new IOException("Truncated frame: " + count + " users");
+        for (int i = 0; i < count; i++) {
+            long key = VarInt.read(in);
+            // Ids are introduced in order, so known ones are followed only by the next one
+            if (key >>> 1 > peersById.size())
+                throw new IOException("Unexpected user id: " + (key >>> 1));
+            int id = (int) (key >>> 1);
+            Peer peer;
+            if ((key & 1) != 0) {
+                int length = VarInt.readInt(in);
+                if (length > in.remaining())
+                    throw new IOException("Truncated name: " + length + " bytes");
+                String name = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                peer = new Peer(id, name);
+                if (id == peersById.size())
+                    peersById.add(peer);
+                else
+                    peersById.set(id, peer);
+            } else {
+                peer = id < peersById.size() ? peersById.get(id) : null;
+                if (peer == null)
+                    throw new IOException("Unknown user id: " + id);
+            }
+            peer.latitude += (int) VarInt.readSigned(in);
+            peer.longitude += (int) VarInt.readSigned(in);
+            peer.time += VarInt.readSigned(in);
+            double speed = VarInt.read(in) / SPEED_SCALE;
+            double track = VarInt.read(in);
+            receiver.onUser(peer.name, peer.latitude / COORDINATE_SCALE, peer.longitude / COORDINATE_SCALE, speed, track, peer.time);
+        }
+
+        count = VarInt.readInt(in);
+        if (count > in.remaining())
+            throw new IOException("Truncated frame: " + count + " removed users");
+        for (int i = 0; i < count; i++) {
+            int id = VarInt.readInt(in);
+            Peer peer = id < peersById.size() ? peersById.get(id) : null;
+            if (peer == null)
+                continue;
+            peersById.set(id, null);
+            receiver.onRemoved(peer.name);
+        }
+        this.cursor = cursor;
+    }
+
+    public static byte[] encodeFix(Situation fix) {
+        return encodeFix(fix, Collections.emptyList());
+    }
+
+    /**
+     * Encodes own fix together with backlog of earlier fixes.
+     *
+     * @param backlog earlier fixes, oldest first
+     */
+    public static byte[] encodeFix(Situation fix, List<Situation> backlog) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24 + backlog.size() * 12);
+        out.write(VERSION);
+        int latitude = toFixed(fix.latitude);
+        int longitude = toFixed(fix.longitude);
+        VarInt.writeSigned(out, latitude);
+        VarInt.writeSigned(out, longitude);
+        VarInt.write(out, fix.time);
+        VarInt.write(out, quantizeSpeed(fix.speed));
+        VarInt.write(out, quantizeTrack(fix.track));
+        if (backlog.isEmpty())
+            return out.toByteArray();
+        VarInt.write(out, backlog.size());
+        long time = fix.time;
+        for (Situation situation : backlog) {
+            int lat = toFixed(situation.latitude);
+            int lon = toFixed(situation.longitude);
+            VarInt.writeSigned(out, (long) lat - latitude);
+            VarInt.writeSigned(out, (long) lon - longitude);
+            VarInt.writeSigned(out, situation.time - time);
+            VarInt.write(out, quantizeSpeed(situation.speed));
+            VarInt.write(out, quantizeTrack(situation.track));
+            latitude = lat;
+            longitude = lon;
+            time = situation.time;
+        }
+        return out.toByteArray();
+    }
+
+    public static Situation decodeFix(byte[] data) throws IOException {
+        List<Situation> track = decodeTrack(data);
+        return track.get(track.size() - 1);
+    }
+
+    /**
+     * Decodes own fix with backlog.
+     *
+     * @return backlog fixes, oldest first, followed by own fix
+     */
+    public static List<Situation> decodeTrack(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.get() != VERSION)
+                throw new IOException("Unsupported version");
+            Situation fix = new Situation();
+            int latitude = (int) VarInt.readSigned(in);
+            int longitude = (int) VarInt.readSigned(in);
+            fix.latitude = latitude / COORDINATE_SCALE;
+            fix.longitude = longitude / COORDINATE_SCALE;
+            fix.time = VarInt.read(in);
+            fix.speed = VarInt.read(in) / SPEED_SCALE;
+            fix.track = VarInt.read(in);
+            int count = in.hasRemaining() ? VarInt.readInt(in) : 0;
+            // Each fix takes at least five bytes
+            if (count > in.remaining() / 5)
+                throw new IOException("Truncated backlog: " + count);
+            List<Situation> track = new ArrayList<>(count + 1);
+            long time = fix.time;
+            for (int i = 0; i < count; i++) {
+                Situation situation = new Situation();
+                latitude += (int) VarInt.readSigned(in);
+                longitude += (int) VarInt.readSigned(in);
+                time += VarInt.readSigned(in);
+                situation.latitude = latitude / COORDINATE_SCALE;
+                situation.longitude = longitude / COORDINATE_SCALE;
+                situation.time = time;
+                situation.speed = VarInt.read(in) / SPEED_SCALE;
+                situation.track = VarInt.read(in);
+                track.add(situation);
+            }
+            track.add(fix);
+            return track;
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int toFixed(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    private static long quantizeSpeed(double speed) {
+        return speed > 0 ? Math.round(speed * SPEED_SCALE) : 0;
+    }
+
+    private static long quantizeTrack(double track) {
+        return ((Math.round(track) % 360) + 360) % 360;
+    }
+}
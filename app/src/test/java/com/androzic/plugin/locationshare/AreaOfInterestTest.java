@@ -0,0 +1,144 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class AreaOfInterestTest {
+    private static final String SELF = "me";
+    private static final double KM = 1 / 111.32; // degrees of latitude
+
+    /**
+     * Places users on a line to the north of the client, one per kilometer.
+     */
+    private static SharingServerStub populate(int count) {
+        SharingServerStub server = new SharingServerStub(false);
+        server.update(SELF, 55, 37, 0, 0, 1000);
+        for (int i = 1; i <= count; i++)
+            server.update("user" + i, 55 + i * KM - KM / 2, 37, 1, 0, 1000);
+        return server;
+    }
+
+    private static String query(SituationStore store, int radius, int limit) {
+        String query = "session=test;user=" + SELF + ";radius=" + radius + ";limit=" + limit;
+        if (store.getCursor() != SharingResponse.NO_CURSOR)
+            query = query + ";since=" + store.getCursor();
+        return query;
+    }
+
+    private static List<Situation> poll(SharingServerStub server, SituationStore store, int radius, int limit) throws Exception {
+        return store.apply(SharingServerStub.parse(server.handle(query(store, radius, limit))), SELF);
+    }
+
+    private static Set<String> names(SituationStore store) {
+        Set<String> names = new HashSet<>();
+        for (Situation situation : store.getSituations())
+            names.add(situation.name);
+        return names;
+    }
+
+    private static Set<String> range(int from, int to) {
+        Set<String> names = new HashSet<>();
+        for (int i = from; i <= to; i++)
+            names.add("user" + i);
+        return names;
+    }
+
+    @Test
+    public void limitsReplyToArea() throws Exception {
+        SharingServerStub server = populate(1000);
+        SituationStore store = new SituationStore();
+        poll(server, store, 10000, 100);
+        assertEquals(range(1, 10), names(store));
+        assertEquals(1000, store.getTotal());
+
+        // Nearest users are preferred when limit is reached
+        store = new SituationStore();
+        poll(server, store, 10000, 5);
+        assertEquals(range(1, 5), names(store));
+
+        int full = server.handle("session=test").length();
+        int area = server.handle("session=test;user=" + SELF + ";radius=10000;limit=100").length();
+        assertTrue(area * 50 < full);
+    }
+
+    @Test
+    public void tracksUsersEnteringAndLeaving() throws Exception {
+        SharingServerStub server = populate(20);
+        SituationStore store = new SituationStore();
+        poll(server, store, 10000, 100);
+        assertEquals(range(1, 10), names(store));
+
+        // Peer walks away and another one comes closer
+        server.update("user3", 56, 37, 1, 0, 2000);
+        server.update("user15", 55.01, 37, 1, 0, 2000);
+        List<Situation> left = poll(server, store, 10000, 100);
+        assertEquals(1, left.size());
+        assertEquals("user3", left.get(0).name);
+        Set<String> expected = range(1, 10);
+        expected.remove("user3");
+        expected.add("user15");
+        assertEquals(expected, names(store));
+
+        // Client moves 5 km north, unchanged users enter the area
+        server.update(SELF, 55 + 5 * KM, 37, 1, 0, 3000);
+        left = poll(server, store, 10000, 100);
+        expected = range(1, 15);
+        expected.remove("user3");
+        assertEquals(expected, names(store));
+        assertTrue(left.isEmpty());
+
+        // Peer leaves session
+        server.leave("user10");
+        left = poll(server, store, 10000, 100);
+        assertEquals(1, left.size());
+        expected.remove("user10");
+        assertEquals(expected, names(store));
+    }
+
+    @Test
+    public void recoversFromLostReply() throws Exception {
+        SharingServerStub server = populate(20);
+        SituationStore store = new SituationStore();
+        poll(server, store, 10000, 100);
+
+        // Reply telling that user2 has left the area is lost
+        server.update("user2", 56, 37, 1, 0, 2000);
+        server.handle(query(store, 10000, 100));
+
+        // Server notices cursor mismatch and sends full area snapshot
+        List<Situation> left = poll(server, store, 10000, 100);
+        assertEquals(1, left.size());
+        assertEquals("user2", left.get(0).name);
+        Set<String> expected = range(1, 10);
+        expected.remove("user2");
+        assertEquals(expected, names(store));
+    }
+
+    @Test
+    public void worksOverBinaryProtocol() throws Exception {
+        SharingServerStub server = populate(200);
+        SituationStore store = new SituationStore();
+        BinaryCodec codec = new BinaryCodec();
+        for (int step = 0; step < 5; step++) {
+            server.update(SELF, 55 + step * 2 * KM, 37, 1, 0, 1000 + step);
+            byte[] reply = server.handleBinary(query(store, 10000, 50), null);
+            store.apply(SharingResponse.decode(codec, reply), SELF);
+            Set<String> expected = new HashSet<>();
+            for (int i = Math.max(1, 2 * step - 9); i <= 2 * step + 10; i++)
+                expected.add("user" + i);
+            assertEquals(expected, names(store));
+            assertEquals(200, store.getTotal());
+        }
+    }
+}
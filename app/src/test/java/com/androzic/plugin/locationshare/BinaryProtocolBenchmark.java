@@ -0,0 +1,64 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares reply size and decoding time of binary and JSON protocols.
+ * Benchmark takes a while, it is skipped unless <code>loadtest.enabled</code> system property
+ * is set.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BinaryProtocolBenchmark {
+    private static final int USERS = 500;
+    private static final int MOVING = 50;
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void compareProtocols() throws Exception {
+        Assume.assumeTrue("Benchmark is disabled", Boolean.getBoolean("loadtest.enabled"));
+        Random random = new Random(1);
+        SharingServerStub server = new SharingServerStub(false);
+        for (int i = 0; i < USERS; i++)
+            server.update("user" + i, 55 + random.nextDouble(), 37 + random.nextDouble(), random.nextDouble() * 10, random.nextDouble() * 360, 1700000000000L + i);
+
+        String jsonFull = server.handle("session=test");
+        byte[] binaryFull = server.handleBinary("session=test;user=me", null);
+        long cursor = SharingServerStub.parse(jsonFull).cursor;
+
+        // Some users have moved
+        for (int i = 0; i < MOVING; i++) {
+            SharingServerStub.User user = server.users.get("user" + i * (USERS / MOVING));
+            server.update(user.name, user.lat + random.nextGaussian() * 1e-3, user.lon + random.nextGaussian() * 1e-3, random.nextDouble() * 10, random.nextDouble() * 360, user.time + 10000);
+        }
+        String jsonDelta = server.handle("session=test;since=" + cursor);
+        byte[] binaryDelta = server.handleBinary("session=test;user=me;since=" + cursor, null);
+
+        int jsonFullSize = jsonFull.getBytes(StandardCharsets.UTF_8).length;
+        int jsonDeltaSize = jsonDelta.getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf("full:  json %6d bytes, binary %6d bytes%n", jsonFullSize, binaryFull.length);
+        System.out.printf("delta: json %6d bytes, binary %6d bytes%n", jsonDeltaSize, binaryDelta.length);
+        assertTrue(binaryFull.length * 3 < jsonFullSize);
+        assertTrue(binaryDelta.length * 3 < jsonDeltaSize);
+
+        byte[] json = jsonFull.getBytes(StandardCharsets.UTF_8);
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            assertEquals(USERS, SharingServerStub.parse(new String(json, StandardCharsets.UTF_8)).size());
+        long jsonTime = (System.nanoTime() - time) / ITERATIONS;
+        time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            assertEquals(USERS, new BinaryCodec().decode(binaryFull, 0, binaryFull.length).users.size());
+        long binaryTime = (System.nanoTime() - time) / ITERATIONS;
+        System.out.printf("decode full: json %6d us, binary %6d us%n", jsonTime / 1000, binaryTime / 1000);
+    }
+}
@@ -0,0 +1,148 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClusterIndexTest {
+    // About 10 meters
+    private static final double STEP = 0.0001;
+
+    private static Situation situation(String name, double latitude, double longitude) {
+        Situation situation = new Situation(name);
+        situation.latitude = latitude;
+        situation.longitude = longitude;
+        return situation;
+    }
+
+    private static List<Situation> crowd(ClusterIndex index, int count, double latitude, double longitude) {
+        List<Situation> crowd = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Situation situation = situation("user" + i, latitude + i % 3 * STEP, longitude + i / 3 * STEP);
+            crowd.add(situation);
+            index.update(situation);
+        }
+        return crowd;
+    }
+
+    @Test
+    public void groupsCloseUsers() {
+        ClusterIndex index = new ClusterIndex(1000);
+        double latitude = 55.8141 - 55.8141 % (1000 / 111320.0) + 0.001;
+        List<Situation> crowd = crowd(index, 21, latitude, 37.4001);
+        Situation far = situation("far", latitude + 0.5, 37.4001);
+        assertNull(index.update(far));
+
+        ClusterIndex.Cluster cluster = index.get(crowd.get(0));
+        assertNotNull(cluster);
+        assertEquals(21, cluster.getSize());
+        assertEquals("21", cluster.name);
+        for (Situation situation : crowd)
+            assertSame(cluster, index.get(situation));
+        assertNull(index.get(far));
+        assertEquals(latitude + STEP, cluster.latitude, 1e-9);
+    }
+
+    @Test
+    public void groupsUsersAcrossCellBorder() {
+        ClusterIndex index = new ClusterIndex(100);
+        // Cell border, users are one meter apart on both sides of it
+        double latitude = 55.8 - 55.8 % (100 / 111320.0);
+        List<Situation> crowd = new ArrayList<>();
+        for (int i = -1; i <= 1; i++) {
+            Situation situation = situation("user" + i, latitude + (i + 0.5) / 111320, 37.4);
+            crowd.add(situation);
+            index.update(situation);
+        }
+        ClusterIndex.Cluster cluster = index.get(crowd.get(0));
+        assertNotNull(cluster);
+        assertEquals(3, cluster.getSize());
+        assertEquals(1, index.getClusters().size());
+    }
+
+    @Test
+    public void keepsDistantUsersApart() {
+        ClusterIndex index = new ClusterIndex(100);
+        double latitude = 55.8 - 55.8 % (100 / 111320.0);
+        double meter = 1 / (111320 * Math.cos(Math.toRadians(latitude)));
+        // Users on diagonal of one cell, 141 meters apart
+        List<Situation> crowd = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Situation situation = situation("user" + i, latitude + (1 + i * 49) / 111320.0, 37.4 + (1 + i * 49) * meter);
+            crowd.add(situation);
+            assertNull(index.update(situation));
+        }
+        assertNull(index.get(crowd.get(1)));
+
+        // Small groups merge as their members move
+        Situation situation = crowd.get(2);
+        situation.latitude = crowd.get(1).latitude;
+        situation.longitude = crowd.get(1).longitude + meter;
+        ClusterIndex.Cluster cluster = index.update(situation);
+        assertNotNull(cluster);
+        assertEquals(3, cluster.getSize());
+    }
+
+    @Test
+    public void updatesIncrementally() {
+        ClusterIndex index = new ClusterIndex(1000);
+        double latitude = 55.8141 - 55.8141 % (1000 / 111320.0) + 0.001;
+        List<Situation> crowd = crowd(index, 3, latitude, 37.4001);
+        ClusterIndex.Cluster cluster = index.get(crowd.get(0));
+        assertTrue(cluster.isVisible());
+        cluster.dirty = 0;
+
+        // Move within cell only shifts center
+        Situation situation = crowd.get(0);
+        double center = cluster.latitude;
+        situation.latitude += 3 * STEP;
+        assertSame(cluster, index.update(situation));
+        assertEquals(center + STEP, cluster.latitude, 1e-9);
+        assertEquals(Situation.DIRTY_POSITION, cluster.dirty);
+        assertEquals(1, index.getClusters().size());
+
+        // User leaves, cluster gets too small to be shown
+        cluster.id = 10;
+        cluster.dirty = 0;
+        situation.latitude += 0.1;
+        assertNull(index.update(situation));
+        assertFalse(cluster.isVisible());
+        assertNull(index.get(crowd.get(1)));
+        assertEquals("2", cluster.name);
+        assertEquals(Situation.DIRTY_ALL, cluster.dirty);
+        assertTrue(index.takeRemoved().isEmpty());
+
+        // Last users leave, cluster object should be removed from map
+        index.remove(crowd.get(1));
+        index.remove(crowd.get(2));
+        List<ClusterIndex.Cluster> removed = index.takeRemoved();
+        assertEquals(1, removed.size());
+        assertSame(cluster, removed.get(0));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void rebuildsOnDistanceChange() {
+        ClusterIndex index = new ClusterIndex(0);
+        List<Situation> crowd = crowd(index, 10, 55.8, 37.4);
+        assertNull(index.get(crowd.get(0)));
+        assertEquals(0, index.size());
+
+        index.setDistance(1000);
+        for (Situation situation : crowd)
+            index.update(situation);
+        assertEquals(10, index.size());
+        assertNotNull(index.get(crowd.get(0)));
+        index.get(crowd.get(0)).id = 1;
+
+        index.setDistance(0);
+        assertEquals(0, index.size());
+        assertNull(index.get(crowd.get(0)));
+        assertEquals(1, index.takeRemoved().size());
+    }
+}
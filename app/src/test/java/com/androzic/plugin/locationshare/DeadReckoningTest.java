@@ -0,0 +1,130 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.util.Geo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeadReckoningTest {
+    private static final int POLL_INTERVAL = 30; // s
+
+    private static Situation fix(double latitude, double longitude, double speed, double track, long time) {
+        Situation situation = new Situation("user");
+        situation.latitude = latitude;
+        situation.longitude = longitude;
+        situation.speed = speed;
+        situation.track = track;
+        situation.time = time;
+        return situation;
+    }
+
+    @Test
+    public void extrapolatesStraightMovement() {
+        DeadReckoning reckoning = new DeadReckoning(null);
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        Situation situation = fix(55, 37, 10, 45, 1000);
+        assertTrue(reckoning.estimate(situation, 31000, estimate));
+        double[] truth = Geo.projection(55, 37, 300, 45);
+        assertEquals(0, Geo.distance(truth[0], truth[1], estimate.latitude, estimate.longitude), 1);
+        // Confidence decreases with age
+        double radius = estimate.radius;
+        assertTrue(radius > DeadReckoning.FIX_ACCURACY);
+        reckoning.estimate(situation, 61000, estimate);
+        assertTrue(estimate.radius > radius);
+    }
+
+    @Test
+    public void keepsFixOfInactiveUsers() {
+        DeadReckoning reckoning = new DeadReckoning(null);
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        Situation silent = fix(55, 37, 10, 45, 0);
+        silent.silent = true;
+        assertFalse(reckoning.estimate(silent, 10000, estimate));
+        assertEquals(55, estimate.latitude, 0);
+        assertEquals(37, estimate.longitude, 0);
+        assertFalse(reckoning.estimate(fix(55, 37, 10, 45, 0), DeadReckoning.MAX_AGE + 1, estimate));
+        assertFalse(reckoning.estimate(fix(55, 37, 0.2, 45, 0), 10000, estimate));
+        // Garbage without history can not be extrapolated
+        assertFalse(reckoning.estimate(fix(55, 37, -1, 45, 0), 10000, estimate));
+    }
+
+    @Test
+    public void derivesVelocityFromHistory() {
+        SituationStore store = new SituationStore();
+        double[] position = {55, 37};
+        for (int i = 0; i < 4; i++) {
+            SharingResponse response = new SharingResponse();
+            response.delta = true;
+            // Server reports garbage speed and track
+            Situation situation = fix(position[0], position[1], Double.NaN, -1, i * 10000L);
+            response.add(situation);
+            store.apply(response, "me");
+            position = Geo.projection(position[0], position[1], 50, 90);
+        }
+        Situation situation = store.getSituations().get(0);
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        DeadReckoning reckoning = new DeadReckoning(store);
+        assertTrue(reckoning.estimate(situation, 40000, estimate));
+        assertEquals(0, Geo.distance(position[0], position[1], estimate.latitude, estimate.longitude), 2);
+        // The same velocity is shown in situation list
+        double[] velocity = new double[2];
+        assertTrue(reckoning.getVelocity(situation, velocity));
+        assertEquals(5, velocity[0], 0.01);
+        assertEquals(90, velocity[1], 0.1);
+
+        // History can be turned off
+        store.setHistoryCapacity(0);
+        assertFalse(reckoning.getVelocity(situation, velocity));
+        assertTrue(reckoning.getVelocity(fix(55, 37, 3, 180, 0), velocity));
+        assertEquals(3, velocity[0], 0);
+    }
+
+    /**
+     * Compares extrapolated and last reported positions with synthetic tracks of users turning
+     * and changing speed, server is polled every 30 seconds.
+     */
+    @Test
+    public void improvesAccuracyBetweenPolls() {
+        Random random = new Random(1);
+        DeadReckoning reckoning = new DeadReckoning(null);
+        DeadReckoning.Estimate estimate = new DeadReckoning.Estimate();
+        double frozenError = 0;
+        double estimatedError = 0;
+        int covered = 0;
+        int samples = 0;
+        for (int user = 0; user < 50; user++) {
+            double[] position = {55 + random.nextDouble(), 37 + random.nextDouble()};
+            double track = random.nextDouble() * 360;
+            // Walkers, cyclists and cars
+            double cruise = new double[]{1.5, 5, 15}[user % 3];
+            double speed = cruise;
+            Situation fix = null;
+            for (int t = 0; t < 600; t++) {
+                if (t % POLL_INTERVAL == 0)
+                    fix = fix(position[0], position[1], speed, track, t * 1000L);
+                if (t % POLL_INTERVAL != 0) {
+                    assertTrue(reckoning.estimate(fix, t * 1000L, estimate));
+                    double error = Geo.distance(position[0], position[1], estimate.latitude, estimate.longitude);
+                    estimatedError += error;
+                    frozenError += Geo.distance(position[0], position[1], fix.latitude, fix.longitude);
+                    if (error <= estimate.radius)
+                        covered++;
+                    samples++;
+                }
+                track = (track + random.nextGaussian() * 2 + 360) % 360;
+                speed = Math.max(speed + random.nextGaussian() * 0.1 * cruise, cruise / 2);
+                speed = Math.min(speed, cruise * 1.5);
+                position = Geo.projection(position[0], position[1], speed, track);
+            }
+        }
+        estimatedError /= samples;
+        frozenError /= samples;
+        double coverage = covered / (double) samples;
+        assertTrue(estimatedError * 3 < frozenError);
+        assertTrue(coverage > 0.95);
+    }
+}
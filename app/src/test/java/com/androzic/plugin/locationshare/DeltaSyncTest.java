@@ -0,0 +1,127 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeltaSyncTest {
+    private static final String SESSION = "session=test";
+
+    private static SharingServerStub populate(boolean legacy, int count) {
+        SharingServerStub server = new SharingServerStub(legacy);
+        for (int i = 0; i < count; i++)
+            server.update("user" + i, 55 + i * 0.001, 37 + i * 0.001, 1.5, 90, 1000);
+        return server;
+    }
+
+    private static List<Situation> poll(SharingServerStub server, SituationStore store, String self) throws Exception {
+        String query = SESSION;
+        if (store.getCursor() != SharingResponse.NO_CURSOR)
+            query = query + ";since=" + store.getCursor();
+        return store.apply(SharingServerStub.parse(server.handle(query)), self);
+    }
+
+    private static void assertInSync(SharingServerStub server, SituationStore store, String self) {
+        int expected = server.users.size() - (server.users.containsKey(self) ? 1 : 0);
+        assertEquals(expected, store.getSituations().size());
+        for (Situation situation : store.getSituations()) {
+            SharingServerStub.User user = server.users.get(situation.name);
+            assertNotNull(situation.name, user);
+            assertEquals(user.lat, situation.latitude, 0);
+            assertEquals(user.lon, situation.longitude, 0);
+            assertEquals(user.time, situation.time);
+        }
+    }
+
+    @Test
+    public void legacyServerKeepsFullSnapshot() throws Exception {
+        SharingServerStub server = populate(true, 10);
+        SituationStore store = new SituationStore();
+        poll(server, store, "user0");
+        assertEquals(SharingResponse.NO_CURSOR, store.getCursor());
+        assertInSync(server, store, "user0");
+
+        server.update("user5", 56, 38, 2, 180, 2000);
+        poll(server, store, "user0");
+        assertEquals(SharingResponse.NO_CURSOR, store.getCursor());
+        assertInSync(server, store, "user0");
+    }
+
+    @Test
+    public void deltaReturnsOnlyChangedUsers() throws Exception {
+        SharingServerStub server = populate(false, 100);
+        SituationStore store = new SituationStore();
+        poll(server, store, "user0");
+        assertNotEquals(SharingResponse.NO_CURSOR, store.getCursor());
+        assertInSync(server, store, "user0");
+        String full = server.handle(SESSION);
+
+        server.update("user1", 56, 38, 2, 180, 2000);
+        server.update("user2", 57, 39, 2, 180, 2000);
+        server.leave("user3");
+        String delta = server.handle(SESSION + ";since=" + store.getCursor());
+        assertTrue(delta.length() * 10 < full.length());
+
+        List<Situation> left = poll(server, store, "user0");
+        assertEquals(1, left.size());
+        assertEquals("user3", left.get(0).name);
+        assertInSync(server, store, "user0");
+
+        // Nothing changed
+        left = poll(server, store, "user0");
+        assertTrue(left.isEmpty());
+        assertInSync(server, store, "user0");
+    }
+
+    @Test
+    public void fullSnapshotRemovesDepartedUsers() throws Exception {
+        SharingServerStub server = populate(false, 10);
+        SituationStore store = new SituationStore();
+        poll(server, store, "user0");
+        server.leave("user4");
+        store.clear();
+        assertEquals(SharingResponse.NO_CURSOR, store.getCursor());
+        poll(server, store, "user0");
+        assertInSync(server, store, "user0");
+
+        // Client has missed tombstone, fresh snapshot still drops the user
+        SituationStore stale = new SituationStore();
+        stale.apply(SharingServerStub.parse(populate(false, 10).handle(SESSION)), "user0");
+        List<Situation> left = stale.apply(SharingServerStub.parse(server.handle(SESSION)), "user0");
+        assertEquals(1, left.size());
+        assertInSync(server, stale, "user0");
+    }
+
+    @Test
+    public void binaryRepliesKeepStoreInSync() throws Exception {
+        SharingServerStub server = populate(false, 50);
+        SituationStore store = new SituationStore();
+        BinaryCodec codec = new BinaryCodec();
+        for (int round = 0; round < 5; round++) {
+            String query = SESSION + ";user=user0";
+            if (store.getCursor() != SharingResponse.NO_CURSOR)
+                query = query + ";since=" + store.getCursor();
+            byte[] data = server.handleBinary(query, null);
+            SharingResponse response = SharingResponse.decode(codec, data);
+            assertEquals(round > 0, response.delta);
+            store.apply(response, "user0");
+            for (Situation situation : store.getSituations()) {
+                SharingServerStub.User user = server.users.get(situation.name);
+                assertEquals(user.lat, situation.latitude, 1e-6);
+                assertEquals(user.lon, situation.longitude, 1e-6);
+                assertEquals(user.time, situation.time);
+            }
+            assertEquals(server.users.size() - 1, store.getSituations().size());
+            server.update("user" + (round + 1), 50 + round, 30 + round, 1, 1, 5000 + round);
+            server.leave("user" + (round + 10));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FailurePolicyTest {
+    @Test
+    public void backsOffExponentially() {
+        FailurePolicy policy = new FailurePolicy(new Random(1));
+        long time = 0;
+        for (int i = 0; i < FailurePolicy.FAILURE_THRESHOLD - 1; i++) {
+            assertTrue(policy.allowRequest(time));
+            policy.onFailure(FailurePolicy.Kind.NETWORK, time, 0);
+            long delay = FailurePolicy.BASE_BACKOFF << i;
+            long wait = policy.getRetryTime() - time;
+            assertTrue(wait >= delay / 2 && wait <= delay);
+            assertFalse(policy.allowRequest(time + wait - 1));
+            assertEquals(wait, policy.getDelay(0, time));
+            assertEquals(delay * 2, policy.getDelay(delay * 2, time));
+            time += wait;
+        }
+        assertEquals(FailurePolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest(time));
+        policy.onSuccess();
+        assertEquals(0, policy.getFailures());
+        assertEquals(1000, policy.getDelay(1000, time));
+    }
+
+    @Test
+    public void opensAndProbes() {
+        FailurePolicy policy = new FailurePolicy(new Random(2));
+        for (int i = 0; i < FailurePolicy.FAILURE_THRESHOLD; i++)
+            policy.onFailure(FailurePolicy.Kind.SERVER, 0, 0);
+        assertEquals(FailurePolicy.State.OPEN, policy.getState());
+        long open = policy.getRetryTime();
+        assertTrue(open >= FailurePolicy.OPEN_TIMEOUT / 2 && open <= FailurePolicy.OPEN_TIMEOUT);
+        assertFalse(policy.allowRequest(open - 1));
+
+        // Only one probe is allowed
+        assertTrue(policy.allowRequest(open));
+        assertEquals(FailurePolicy.State.HALF_OPEN, policy.getState());
+        assertFalse(policy.allowRequest(open));
+
+        // Failed probe opens breaker for longer time
+        policy.onFailure(FailurePolicy.Kind.TIMEOUT, open, 0);
+        assertEquals(FailurePolicy.State.OPEN, policy.getState());
+        long reopen = policy.getRetryTime() - open;
+        assertTrue(reopen >= FailurePolicy.OPEN_TIMEOUT && reopen <= FailurePolicy.OPEN_TIMEOUT * 2);
+
+        // Successful probe closes it
+        assertTrue(policy.allowRequest(policy.getRetryTime()));
+        policy.onSuccess();
+        assertEquals(FailurePolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest(open));
+    }
+
+    @Test
+    public void honoursServer() {
+        FailurePolicy policy = new FailurePolicy(new Random(3));
+        policy.onFailure(FailurePolicy.Kind.THROTTLED, 0, 60000);
+        assertTrue(policy.getRetryTime() >= 30000);
+        policy.onFailure(FailurePolicy.Kind.CLIENT, 0, 0);
+        assertTrue(policy.getRetryTime() >= FailurePolicy.MAX_BACKOFF / 2);
+        // Parse errors do not count
+        policy.onFailure(FailurePolicy.Kind.PARSE, 0, 0);
+        assertEquals(2, policy.getFailures());
+
+        assertEquals(FailurePolicy.Kind.TIMEOUT, FailurePolicy.classify(408));
+        assertEquals(FailurePolicy.Kind.THROTTLED, FailurePolicy.classify(429));
+        assertEquals(FailurePolicy.Kind.THROTTLED, FailurePolicy.classify(503));
+        assertEquals(FailurePolicy.Kind.CLIENT, FailurePolicy.classify(404));
+        assertEquals(FailurePolicy.Kind.SERVER, FailurePolicy.classify(500));
+    }
+
+    @Test
+    public void spreadsRetries() {
+        // Clients failed at the same moment should not retry at the same moment
+        Random random = new Random(4);
+        long min = Long.MAX_VALUE, max = 0;
+        for (int i = 0; i < 100; i++) {
+            FailurePolicy policy = new FailurePolicy(random);
+            policy.onFailure(FailurePolicy.Kind.NETWORK, 0, 0);
+            min = Math.min(min, policy.getRetryTime());
+            max = Math.max(max, policy.getRetryTime());
+        }
+        assertTrue(max - min > FailurePolicy.BASE_BACKOFF / 4);
+    }
+}
@@ -0,0 +1,85 @@
+package com.androzic.plugin.locationshare;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for Trekarta map objects provider, counts cross-process transactions.
+ */
+class FakeMapObjectProvider implements MapObjectSink.Provider {
+    final Map<Long, Map<String, Object>> objects = new HashMap<>();
+    boolean supportsBatch = true;
+    int transactions = 0;
+    int batches = 0;
+    // Transaction number that fails, 0 - none
+    int failAt = 0;
+    private long nextId = 1;
+
+    @Override
+    public long[] applyBatch(List<MapObjectSink.Operation> operations) {
+        if (!supportsBatch)
+            throw new UnsupportedOperationException();
+        transaction();
+        batches++;
+        long[] ids = new long[operations.size()];
+        for (int i = 0; i < ids.length; i++) {
+            MapObjectSink.Operation operation = operations.get(i);
+            switch (operation.type) {
+                case MapObjectSink.Operation.INSERT:
+                    ids[i] = doInsert(operation.values);
+                    break;
+                case MapObjectSink.Operation.UPDATE:
+                    ids[i] = doUpdate(operation.situation.id, operation.values);
+                    break;
+                case MapObjectSink.Operation.DELETE:
+                    doDelete(operation.ids);
+                    break;
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public long insert(Map<String, Object> values) {
+        transaction();
+        return doInsert(values);
+    }
+
+    @Override
+    public int update(long id, Map<String, Object> values) {
+        transaction();
+        return doUpdate(id, values);
+    }
+
+    @Override
+    public void delete(long[] ids) {
+        transaction();
+        doDelete(ids);
+    }
+
+    private void transaction() {
+        transactions++;
+        if (transactions == failAt)
+            throw new IllegalStateException("Transaction failed");
+    }
+
+    private long doInsert(Map<String, Object> values) {
+        long id = nextId++;
+        objects.put(id, new HashMap<>(values));
+        return id;
+    }
+
+    private int doUpdate(long id, Map<String, Object> values) {
+        Map<String, Object> object = objects.get(id);
+        if (object == null)
+            return 0;
+        object.putAll(values);
+        return 1;
+    }
+
+    private void doDelete(long[] ids) {
+        for (long id : ids)
+            objects.remove(id);
+    }
+}
@@ -0,0 +1,97 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FixHistoryTest {
+    private static final double DELTA = 1E-7;
+
+    @Test
+    public void keepsNewestFixes() {
+        FixHistory history = new FixHistory(4, 1000);
+        history.ensureSlots(2);
+        for (int i = 0; i < 6; i++)
+            history.append(1, 1000 + i, 55 + i * 0.001, 37 - i * 0.001);
+        assertEquals(4, history.size(1));
+        assertEquals(0, history.size(0));
+
+        long[] times = new long[10];
+        double[] latitudes = new double[10];
+        double[] longitudes = new double[10];
+        assertEquals(4, history.copy(1, times, latitudes, longitudes));
+        for (int k = 0; k < 4; k++) {
+            assertEquals(1002 + k, times[k]);
+            assertEquals(55 + (2 + k) * 0.001, latitudes[k], DELTA);
+            assertEquals(37 - (2 + k) * 0.001, longitudes[k], DELTA);
+        }
+        // Shorter arrays receive newest fixes
+        assertEquals(2, history.copy(1, new long[2], new double[2], new double[2]));
+        long[] last = new long[2];
+        history.copy(1, last, new double[2], new double[2]);
+        assertArrayEquals(new long[]{1004, 1005}, last);
+
+        history.clear(1);
+        assertEquals(0, history.size(1));
+    }
+
+    @Test
+    public void sharesBudget() {
+        FixHistory history = new FixHistory(32, 256);
+        history.ensureSlots(4);
+        assertEquals(32, history.getSlotCapacity());
+        for (int i = 0; i < 40; i++)
+            history.append(3, i, 55, 37);
+        // More users get fewer fixes each, newest are kept
+        history.ensureSlots(32);
+        assertEquals(8, history.getSlotCapacity());
+        assertTrue(history.getBytes() <= 256 * 16 + 32 * 8);
+        long[] times = new long[8];
+        assertEquals(8, history.copy(3, times, new double[8], new double[8]));
+        assertEquals(32, times[0]);
+        assertEquals(39, times[7]);
+        history.append(3, 40, 55, 37);
+        history.copy(3, times, new double[8], new double[8]);
+        assertEquals(33, times[0]);
+        assertEquals(40, times[7]);
+
+        history.setCapacity(2);
+        assertEquals(2, history.size(3));
+        assertEquals(2, history.copy(3, times, new double[8], new double[8]));
+        assertEquals(39, times[0]);
+        assertEquals(40, times[1]);
+    }
+
+    @Test
+    public void storeRecordsNewFixes() {
+        SituationStore store = new SituationStore();
+        for (int i = 0; i < 5; i++) {
+            SharingResponse response = new SharingResponse();
+            response.delta = true;
+            Situation situation = new Situation("user1");
+            // Second reply repeats the first one
+            situation.latitude = 55 + (i == 1 ? 0 : i) * 0.001;
+            situation.longitude = 37;
+            situation.time = i == 1 ? 0 : i * 1000;
+            response.add(situation);
+            store.apply(response, "me");
+        }
+        long[] times = new long[10];
+        double[] latitudes = new double[10];
+        assertEquals(4, store.getHistory("user1", times, latitudes, new double[10]));
+        assertEquals(0, times[0]);
+        assertEquals(4000, times[3]);
+        assertEquals(55.004, latitudes[3], DELTA);
+        assertEquals(0, store.getHistory("user2", times, latitudes, new double[10]));
+
+        // User that takes slot of left one starts with empty history
+        store.remove("user1");
+        SharingResponse response = new SharingResponse();
+        response.delta = true;
+        response.add(new Situation("user2"));
+        store.apply(response, "me");
+        assertEquals(1, store.getHistory("user2", times, latitudes, new double[10]));
+    }
+}
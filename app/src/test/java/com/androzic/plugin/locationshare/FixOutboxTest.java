@@ -0,0 +1,162 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class FixOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Situation fix(int i) {
+        Situation fix = new Situation();
+        fix.latitude = 55 + i * 0.0001;
+        fix.longitude = 37 - i * 0.0001;
+        fix.speed = 1.5;
+        fix.track = 90;
+        fix.time = 1000000 + i * FixOutbox.MIN_SPACING;
+        return fix;
+    }
+
+    @Test
+    public void survivesReopen() throws Exception {
+        File file = new File(folder.getRoot(), "outbox");
+        FixOutbox outbox = new FixOutbox(file, 100);
+        outbox.setOwner(1);
+        for (int i = 0; i < 10; i++)
+            assertTrue(outbox.add(fix(i)));
+        // Too frequent fix is skipped
+        Situation frequent = fix(9);
+        frequent.time += 1000;
+        assertFalse(outbox.add(frequent));
+        outbox.close();
+
+        outbox = new FixOutbox(file, 100);
+        assertEquals(10, outbox.size());
+        List<Situation> fixes = outbox.peek(4);
+        assertEquals(4, fixes.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(fix(i).latitude, fixes.get(i).latitude, 0);
+            assertEquals(fix(i).time, fixes.get(i).time);
+        }
+        outbox.remove(fixes);
+        assertEquals(6, outbox.size());
+        assertEquals(fix(4).time, outbox.peek(1).get(0).time);
+
+        // Same owner keeps fixes, other one discards them
+        outbox.setOwner(1);
+        assertEquals(6, outbox.size());
+        outbox.setOwner(2);
+        assertEquals(0, outbox.size());
+        outbox.close();
+    }
+
+    @Test
+    public void boundsDiskUsage() throws Exception {
+        File file = new File(folder.getRoot(), "outbox");
+        FixOutbox outbox = new FixOutbox(file, 50);
+        for (int i = 0; i < 120; i++)
+            outbox.add(fix(i));
+        assertEquals(50, outbox.size());
+        assertTrue(file.length() <= 16 + 50 * FixOutbox.RECORD_SIZE);
+        List<Situation> fixes = outbox.peek(FixOutbox.MAX_BATCH);
+        assertEquals(fix(70).time, fixes.get(0).time);
+        assertEquals(fix(119).time, fixes.get(49).time);
+
+        // Oldest fixes are overwritten while batch is being uploaded
+        List<Situation> batch = outbox.peek(10);
+        outbox.add(fix(120));
+        outbox.add(fix(121));
+        outbox.remove(batch);
+        assertEquals(42, outbox.size());
+        assertEquals(fix(80).time, outbox.peek(1).get(0).time);
+        outbox.close();
+    }
+
+    @Test
+    public void resetsDamagedFile() throws Exception {
+        File file = new File(folder.getRoot(), "outbox");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write("garbage".getBytes(StandardCharsets.UTF_8));
+        }
+        FixOutbox outbox = new FixOutbox(file, 10);
+        assertEquals(0, outbox.size());
+        assertTrue(outbox.add(fix(0)));
+        outbox.close();
+    }
+
+    @Test
+    public void uploadsBacklogInBatches() throws Exception {
+        for (boolean binary : new boolean[]{false, true}) {
+            SharingServerStub server = new SharingServerStub(false);
+            FixOutbox outbox = new FixOutbox(folder.newFile(), FixOutbox.DEFAULT_CAPACITY);
+            // Server is unreachable for a while
+            int offline = FixOutbox.MAX_BATCH * 2 + 30;
+            for (int i = 0; i < offline; i++)
+                outbox.add(fix(i));
+
+            // Reconnected, each request carries current fix and a batch of backlog
+            int requests = 0;
+            int bytes = 0;
+            while (outbox.size() > 0) {
+                Situation current = fix(offline);
+                List<Situation> backlog = outbox.peek(FixOutbox.MAX_BATCH);
+                String query = "session=test;user=me";
+                if (binary) {
+                    byte[] body = BinaryCodec.encodeFix(current, backlog);
+                    bytes += body.length;
+                    server.handleBinary(query, body);
+                } else {
+                    byte[] body = FixOutbox.toJson(backlog);
+                    bytes += body.length;
+                    server.handle(query + ";lat=" + current.latitude + ";lon=" + current.longitude
+                            + ";track=" + current.track + ";speed=" + current.speed + ";ftime=" + current.time,
+                            new String(body, StandardCharsets.UTF_8));
+                }
+                outbox.remove(backlog);
+                requests++;
+            }
+            assertEquals(3, requests);
+
+            List<Situation> track = server.tracks.get("me");
+            assertEquals(offline + 1, track.size());
+            for (int i = 0; i <= offline; i++) {
+                assertEquals(fix(i).time, track.get(i).time);
+                assertEquals(fix(i).latitude, track.get(i).latitude, 1e-6);
+            }
+            // Latest fix wins
+            assertEquals(fix(offline).time, server.users.get("me").time);
+            // Backlog fix takes a dozen bytes in binary protocol and under a hundred in JSON
+            assertTrue(bytes < offline * (binary ? 16 : 128));
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void oldServerReadsCurrentFix() throws Exception {
+        List<Situation> backlog = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            backlog.add(fix(i));
+        byte[] body = BinaryCodec.encodeFix(fix(5), backlog);
+        Situation current = BinaryCodec.decodeFix(body);
+        assertEquals(fix(5).time, current.time);
+        List<Situation> track = BinaryCodec.decodeTrack(body);
+        assertEquals(6, track.size());
+        assertEquals(fix(0).time, track.get(0).time);
+        assertEquals(fix(5).time, track.get(5).time);
+    }
+}
@@ -0,0 +1,83 @@
+package com.androzic.plugin.locationshare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates crowd of session members moving around common center. Every tick each member
+ * moves according to its speed and track, and given share of members leaves the session while
+ * the same number of new members joins it.
+ */
+class LoadGenerator {
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static class Member {
+        final String name;
+        double lat;
+        double lon;
+        double speed;
+        double track;
+
+        Member(String name) {
+            this.name = name;
+        }
+    }
+
+    private final SharingServerStub server;
+    private final Random random;
+    private final double churn;
+    private final List<Member> members = new ArrayList<>();
+    private int serial = 0;
+    private long time;
+
+    /**
+     * @param users number of simultaneous session members
+     * @param churn share of members replaced every tick, from 0 to 1
+     */
+    LoadGenerator(SharingServerStub server, int users, double churn, long seed) {
+        this.server = server;
+        this.churn = churn;
+        random = new Random(seed);
+        time = 1700000000000L;
+        for (int i = 0; i < users; i++)
+            join();
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * Advances simulation by given time.
+     */
+    void tick(long millis) {
+        time += millis;
+        int replaced = (int) Math.round(members.size() * churn);
+        for (int i = 0; i < replaced; i++) {
+            Member member = members.remove(random.nextInt(members.size()));
+            server.leave(member.name);
+        }
+        for (Member member : members) {
+            double distance = member.speed * millis / 1000;
+            double track = Math.toRadians(member.track);
+            member.lat += distance * Math.cos(track) / METERS_PER_DEGREE;
+            member.lon += distance * Math.sin(track) / METERS_PER_DEGREE / Math.cos(Math.toRadians(member.lat));
+            member.track = (member.track + random.nextGaussian() * 10 + 360) % 360;
+            server.update(member.name, member.lat, member.lon, member.speed, member.track, time);
+        }
+        for (int i = 0; i < replaced; i++)
+            join();
+    }
+
+    private void join() {
+        Member member = new Member("user" + serial++);
+        member.lat = 55.75 + random.nextGaussian() * 0.05;
+        member.lon = 37.62 + random.nextGaussian() * 0.05;
+        // Pedestrians, cyclists and cars
+        member.speed = random.nextInt(3) * 5 + random.nextDouble() * 3;
+        member.track = random.nextDouble() * 360;
+        members.add(member);
+        server.update(member.name, member.lat, member.lon, member.speed, member.track, time);
+    }
+}
@@ -0,0 +1,107 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves {@link SharingServerStub} over HTTP on loopback interface, so that client talks to it
+ * exactly as it talks to real sharing server.
+ */
+class LoadTestServer implements AutoCloseable {
+    private static final String PATH = "/sharing/";
+
+    static {
+        // Otherwise Nagle's algorithm adds tens of milliseconds to every small reply
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    final SharingServerStub stub;
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong requests = new AtomicLong();
+    private final boolean binary;
+    private final HttpServer server;
+
+    /**
+     * @param binary reply with binary protocol instead of JSON
+     */
+    LoadTestServer(SharingServerStub stub, boolean binary) throws IOException {
+        this.stub = stub;
+        this.binary = binary;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /**
+     * Returns endpoint to be used instead of default sharing server.
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null)
+                query = "";
+            byte[] body = readBody(exchange.getRequestBody());
+            String bodyType = exchange.getRequestHeaders().getFirst("Content-Type");
+            bytesIn.addAndGet(query.length() + body.length);
+            requests.incrementAndGet();
+
+            byte[] reply;
+            String contentType;
+            if (binary) {
+                reply = stub.handleBinary(query, body.length > 0 && isBinary(bodyType) ? body : null);
+                contentType = BinaryCodec.CONTENT_TYPE;
+            } else {
+                String json = body.length > 0 && !isBinary(bodyType) ? new String(body, StandardCharsets.UTF_8) : null;
+                reply = stub.handle(query, json).getBytes(StandardCharsets.UTF_8);
+                contentType = "application/json; charset=utf-8";
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (stub.pushWait > 0)
+                exchange.getResponseHeaders().set(PushChannel.HEADER, String.valueOf(stub.pushWait));
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+            bytesOut.addAndGet(reply.length);
+        } catch (RuntimeException | IOException e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean isBinary(String contentType) {
+        return contentType != null && contentType.startsWith(BinaryCodec.CONTENT_TYPE);
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
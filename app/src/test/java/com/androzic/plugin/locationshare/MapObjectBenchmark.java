@@ -0,0 +1,78 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares bytes sent to map provider per tick with drawn markers and markers by reference.
+ * Benchmark takes a while, it is skipped unless <code>loadtest.enabled</code> system property
+ * is set.
+ */
+public class MapObjectBenchmark {
+    static final String[] COLUMNS = {"latitude", "longitude", "bitmap", "name", "description", "marker", "color"};
+    private static final int USERS = 500;
+    private static final int TICKS = 10;
+
+    private static long measure(boolean detailed) throws Exception {
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), SoftwareTarget::new);
+        renderer.setStyle(0xffff0000, 2);
+        MapObjectValues values = new MapObjectValues(COLUMNS, renderer, count -> new byte[1000]);
+        values.setColor(0xffff0000);
+        values.setDetailed(detailed);
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        MapObjectSink sink = new MapObjectSink(provider);
+
+        Random random = new Random(1);
+        List<Situation> situations = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            Situation situation = new Situation("user" + i);
+            situation.latitude = 55 + random.nextDouble();
+            situation.longitude = 37 + random.nextDouble();
+            situation.track = random.nextDouble() * 360;
+            situation.speed = random.nextInt(4) * 5 + random.nextDouble() * 3;
+            situations.add(situation);
+        }
+        long bytes = 0;
+        for (int tick = 0; tick <= TICKS; tick++) {
+            long start = sink.getBytes();
+            for (Situation situation : situations) {
+                int dirty = Situation.DIRTY_POSITION;
+                situation.latitude += random.nextGaussian() * 0.0001;
+                situation.longitude += random.nextGaussian() * 0.0001;
+                situation.track = (situation.track + random.nextGaussian() * 10 + 360) % 360;
+                situation.speed = Math.max(situation.speed + random.nextGaussian(), 0);
+                dirty |= Situation.DIRTY_VISUALS;
+                Map<String, Object> changes = values.get(situation, dirty);
+                if (situation.id == 0)
+                    sink.insert(situation, changes);
+                else
+                    sink.update(situation, changes);
+            }
+            sink.flush();
+            // First tick puts users on map
+            if (tick > 0)
+                bytes += sink.getBytes() - start;
+        }
+        bytes /= TICKS;
+        System.out.printf("%-9s %4d users: %8d bytes per tick, %d transactions%n",
+                detailed ? "bitmap" : "reference", USERS, bytes, provider.transactions);
+        return bytes;
+    }
+
+    @Test
+    public void compareModes() throws Exception {
+        Assume.assumeTrue("Benchmark is disabled", Boolean.getBoolean("loadtest.enabled"));
+        long bitmap = measure(true);
+        long reference = measure(false);
+        assertTrue("Markers by reference should take less than half", reference * 2 < bitmap);
+    }
+}
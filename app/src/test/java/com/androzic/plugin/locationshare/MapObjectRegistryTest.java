@@ -0,0 +1,92 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MapObjectRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Situation> users(int count) {
+        List<Situation> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Situation situation = new Situation("user" + i);
+            situation.id = i;
+            situation.latitude = 55.8;
+            situation.longitude = 37.4;
+            users.add(situation);
+        }
+        return users;
+    }
+
+    @Test
+    public void restoresUsersAfterRestart() throws Exception {
+        File path = new File(folder.getRoot(), "mapobjects");
+        MapObjectRegistry registry = new MapObjectRegistry(path);
+        registry.setOwner(1);
+        List<Situation> objects = users(10);
+        ClusterIndex index = new ClusterIndex(1000);
+        for (Situation situation : users(3))
+            index.update(situation);
+        ClusterIndex.Cluster cluster = index.getClusters().get(0);
+        cluster.id = 100;
+        objects.add(cluster);
+        registry.save(objects);
+
+        registry = new MapObjectRegistry(path);
+        registry.setOwner(1);
+        Map<String, Long> users = registry.takeUsers();
+        // User without map object is not saved
+        assertEquals(9, users.size());
+        assertEquals(Long.valueOf(5), users.get("user5"));
+        assertNull(users.get("user0"));
+        assertEquals(Collections.singletonList(100L), registry.takeOrphans());
+        assertTrue(registry.takeUsers().isEmpty());
+    }
+
+    @Test
+    public void dropsObjectsOfOtherOwner() throws Exception {
+        File path = new File(folder.getRoot(), "mapobjects");
+        MapObjectRegistry registry = new MapObjectRegistry(path);
+        registry.setOwner(1);
+        registry.save(users(5));
+
+        registry = new MapObjectRegistry(path);
+        registry.setOwner(2);
+        assertTrue(registry.takeUsers().isEmpty());
+        assertEquals(4, registry.takeOrphans().size());
+
+        registry.clear();
+        registry = new MapObjectRegistry(path);
+        registry.setOwner(2);
+        assertTrue(registry.takeUsers().isEmpty());
+        assertTrue(registry.takeOrphans().isEmpty());
+    }
+
+    @Test
+    public void skipsUnchangedSave() throws Exception {
+        File path = new File(folder.getRoot(), "mapobjects");
+        MapObjectRegistry registry = new MapObjectRegistry(path);
+        List<Situation> users = users(5);
+        registry.save(users);
+        assertTrue(path.delete());
+        // Positions are not saved, file is written only when map objects change
+        users.get(1).latitude += 1;
+        registry.save(users);
+        assertFalse(path.exists());
+        users.get(1).id = 10;
+        registry.save(users);
+        assertTrue(path.exists());
+    }
+}
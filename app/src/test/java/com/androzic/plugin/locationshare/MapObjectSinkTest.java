@@ -0,0 +1,126 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MapObjectSinkTest {
+    private static Map<String, Object> values(String name, byte[] bitmap) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", name);
+        values.put("latitude", 55.0);
+        values.put("longitude", 37.0);
+        if (bitmap != null)
+            values.put("bitmap", bitmap);
+        return values;
+    }
+
+    private static List<Situation> insertAll(MapObjectSink sink, int count) throws Exception {
+        List<Situation> situations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Situation situation = new Situation("user" + i);
+            situations.add(situation);
+            sink.insert(situation, values(situation.name, new byte[100]));
+        }
+        sink.flush();
+        return situations;
+    }
+
+    @Test
+    public void sendsUpdateInOneTransaction() throws Exception {
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        MapObjectSink sink = new MapObjectSink(provider);
+        List<Situation> situations = insertAll(sink, 50);
+        assertEquals(1, provider.transactions);
+        assertEquals(50, provider.objects.size());
+        for (Situation situation : situations) {
+            assertNotEquals(0, situation.id);
+            assertEquals(situation.name, provider.objects.get(situation.id).get("name"));
+        }
+
+        for (int i = 0; i < 10; i++)
+            sink.update(situations.get(i), Collections.singletonMap("latitude", 56.0));
+        sink.delete(Collections.singletonList(situations.get(49).id));
+        assertEquals(1, sink.flush());
+        assertEquals(2, provider.transactions);
+        assertEquals(49, provider.objects.size());
+        assertEquals(56.0, provider.objects.get(situations.get(0).id).get("latitude"));
+        assertEquals(0, sink.getPending());
+    }
+
+    @Test
+    public void fallsBackToSingleCalls() throws Exception {
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        provider.supportsBatch = false;
+        MapObjectSink sink = new MapObjectSink(provider);
+        List<Situation> situations = insertAll(sink, 5);
+        assertFalse(sink.isBatching());
+        assertEquals(5, provider.transactions);
+        for (Situation situation : situations)
+            assertTrue(provider.objects.containsKey(situation.id));
+
+        // Deletions are grouped even without batches
+        List<Long> ids = new ArrayList<>();
+        for (Situation situation : insertAll(sink, 250))
+            ids.add(situation.id);
+        provider.transactions = 0;
+        sink.delete(ids);
+        assertEquals(3, sink.flush());
+        assertEquals(5, provider.objects.size());
+    }
+
+    @Test
+    public void splitsLargeBatches() throws Exception {
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        MapObjectSink sink = new MapObjectSink(provider);
+        for (int i = 0; i < 10; i++)
+            sink.insert(new Situation("user" + i), values("user" + i, new byte[MapObjectSink.MAX_BATCH_SIZE / 4]));
+        assertEquals(4, sink.flush());
+        assertEquals(4, provider.batches);
+        assertEquals(10, provider.objects.size());
+    }
+
+    @Test
+    public void reportsUnappliedOperations() throws Exception {
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        provider.supportsBatch = false;
+        provider.failAt = 3;
+        MapObjectSink sink = new MapObjectSink(provider);
+        List<MapObjectSink.Operation> operations = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            operations.add(sink.insert(new Situation("user" + i), values("user" + i, null)));
+        try {
+            sink.flush();
+            fail();
+        } catch (IllegalStateException ignore) {
+        }
+        assertTrue(operations.get(0).isApplied());
+        assertTrue(operations.get(1).isApplied());
+        for (int i = 2; i < 5; i++) {
+            assertFalse(operations.get(i).isApplied());
+            assertEquals(0, operations.get(i).situation.id);
+        }
+        assertEquals(0, sink.getPending());
+    }
+
+    @Test
+    public void detectsMissingObjects() throws Exception {
+        FakeMapObjectProvider provider = new FakeMapObjectProvider();
+        MapObjectSink sink = new MapObjectSink(provider);
+        List<Situation> situations = insertAll(sink, 2);
+        provider.objects.remove(situations.get(1).id);
+        MapObjectSink.Operation present = sink.update(situations.get(0), Collections.singletonMap("latitude", 56.0));
+        MapObjectSink.Operation missing = sink.update(situations.get(1), Collections.singletonMap("latitude", 56.0));
+        sink.flush();
+        assertFalse(present.isMissing());
+        assertTrue(missing.isMissing());
+    }
+}
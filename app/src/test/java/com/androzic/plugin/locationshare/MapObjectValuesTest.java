@@ -0,0 +1,87 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MapObjectValuesTest {
+    private static MapObjectValues values() {
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), SoftwareTarget::new);
+        renderer.setStyle(0xffff0000, 2);
+        MapObjectValues values = new MapObjectValues(MapObjectBenchmark.COLUMNS, renderer, count -> new byte[count]);
+        values.setColor(0xffff0000);
+        return values;
+    }
+
+    @Test
+    public void sendsOnlyChangedColumns() {
+        MapObjectValues values = values();
+        Situation situation = new Situation("user");
+        situation.speed = 3;
+        Map<String, Object> columns = values.get(situation, Situation.DIRTY_ALL);
+        assertEquals(5, columns.size());
+        assertTrue(columns.get("bitmap") instanceof byte[]);
+
+        situation.id = 1;
+        assertTrue(values.get(situation, 0).isEmpty());
+        columns = values.get(situation, Situation.DIRTY_POSITION);
+        assertEquals(2, columns.size());
+        assertTrue(columns.containsKey("latitude"));
+        // Marker has not changed
+        situation.track = 1;
+        assertTrue(values.get(situation, Situation.DIRTY_VISUALS).isEmpty());
+    }
+
+    @Test
+    public void switchesToReferences() {
+        MapObjectValues values = values();
+        Situation situation = new Situation("user");
+        values.get(situation, Situation.DIRTY_ALL);
+        situation.id = 1;
+
+        values.setDetailed(false);
+        Map<String, Object> columns = values.get(situation, Situation.DIRTY_VISUALS);
+        // Bitmap is dropped, color defines marker
+        assertTrue(columns.containsKey("bitmap"));
+        assertNull(columns.get("bitmap"));
+        assertEquals(0xffff0000, columns.get("color"));
+        assertTrue(values.get(situation, Situation.DIRTY_VISUALS).isEmpty());
+
+        situation.silent = true;
+        columns = values.get(situation, Situation.DIRTY_VISUALS);
+        assertEquals(1, columns.size());
+        assertEquals(0x80ff0000, columns.get("color"));
+
+        // New users get no bitmap at all
+        Situation other = new Situation("other");
+        columns = values.get(other, Situation.DIRTY_ALL);
+        assertFalse(columns.containsKey("bitmap"));
+
+        values.setDetailed(true);
+        assertTrue(values.get(situation, Situation.DIRTY_VISUALS).get("bitmap") instanceof byte[]);
+    }
+
+    @Test
+    public void drawsClustersInReferenceMode() {
+        MapObjectValues values = values();
+        values.setDetailed(false);
+        ClusterIndex index = new ClusterIndex(1000);
+        Situation situation = null;
+        for (int i = 0; i < 40; i++) {
+            situation = new Situation("user" + i);
+            situation.latitude = 55.8;
+            situation.longitude = 37.4;
+            index.update(situation);
+        }
+        ClusterIndex.Cluster cluster = index.get(situation);
+        // Cluster size is visible on its marker
+        Map<String, Object> columns = values.get(cluster, Situation.DIRTY_ALL);
+        assertArrayEquals(new byte[40], (byte[]) columns.get("bitmap"));
+        cluster.id = 1;
+        assertTrue(values.get(cluster, Situation.DIRTY_VISUALS).isEmpty());
+    }
+}
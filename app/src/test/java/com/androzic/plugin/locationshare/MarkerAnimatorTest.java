@@ -0,0 +1,185 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MarkerAnimatorTest {
+    private static final double DELTA = 1E-9;
+
+    private static Situation situation(String name, double latitude, double longitude) {
+        Situation situation = new Situation(name);
+        situation.id = name.hashCode();
+        situation.latitude = latitude;
+        situation.longitude = longitude;
+        return situation;
+    }
+
+    @Test
+    public void interpolatesBetweenFixes() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        Situation situation = situation("user", 55.0, 37.0);
+        // First fix is shown as is
+        assertFalse(animator.onFix(situation, 0));
+        assertFalse(animator.isActive());
+        situation.latitude = 55.01;
+        assertTrue(animator.onFix(situation, 10000));
+        assertTrue(animator.isAnimated(situation));
+
+        List<MarkerAnimator.Frame> frames = animator.frame(15000);
+        assertEquals(1, frames.size());
+        assertEquals(55.005, frames.get(0).latitude, DELTA);
+        assertEquals(37.0, frames.get(0).longitude, DELTA);
+
+        frames = animator.frame(20000);
+        assertEquals(1, frames.size());
+        assertEquals(55.01, frames.get(0).latitude, DELTA);
+        assertFalse(animator.isActive());
+        assertTrue(animator.frame(21000).isEmpty());
+    }
+
+    @Test
+    public void continuesFromDisplayedPosition() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        Situation situation = situation("user", 55.0, 37.0);
+        animator.onFix(situation, 0);
+        situation.latitude = 55.01;
+        animator.onFix(situation, 10000);
+        animator.frame(15000);
+        // Next fix comes early, marker should not jump
+        situation.latitude = 55.02;
+        animator.onFix(situation, 15000);
+        List<MarkerAnimator.Frame> frames = animator.frame(15500);
+        assertEquals(1, frames.size());
+        assertEquals(55.0065, frames.get(0).latitude, DELTA);
+    }
+
+    @Test
+    public void followsNewViews() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        animator.onFix(situation("user", 55.0, 37.0), 0);
+        // Store makes new view for every change, track is kept by name
+        Situation moved = situation("user", 55.01, 37.0);
+        assertTrue(animator.onFix(moved, 10000));
+        Situation recolored = situation("user", 55.01, 37.0);
+        recolored.speed = 5;
+        animator.update(recolored);
+        List<MarkerAnimator.Frame> frames = animator.frame(15000);
+        assertEquals(1, frames.size());
+        assertSame(recolored, frames.get(0).situation);
+        assertEquals(55.005, frames.get(0).latitude, DELTA);
+        animator.remove(situation("user", 0, 0));
+        assertFalse(animator.isActive());
+    }
+
+    @Test
+    public void skipsSilentAndStaleUsers() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        Situation silent = situation("silent", 55.0, 37.0);
+        Situation stale = situation("stale", 56.0, 37.0);
+        animator.onFix(silent, 0);
+        animator.onFix(stale, 0);
+        silent.latitude = 55.01;
+        silent.silent = true;
+        assertFalse(animator.onFix(silent, 10000));
+        stale.latitude = 56.01;
+        assertFalse(animator.onFix(stale, MarkerAnimator.MAX_DURATION + 1));
+        assertFalse(animator.isActive());
+        assertTrue(animator.frame(MarkerAnimator.MAX_DURATION + 1000).isEmpty());
+    }
+
+    @Test
+    public void followsPrediction() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        animator.setPredictor(new DeadReckoning(null));
+        animator.setTimeCorrection(100000);
+        Situation situation = situation("user", 55.0, 37.0);
+        situation.speed = 10;
+        situation.track = 0;
+        situation.time = 0;
+        // First fix is put on map directly, then marker moves on
+        assertFalse(animator.onFix(situation, 100000));
+        assertTrue(animator.isActive());
+        List<MarkerAnimator.Frame> frames = animator.frame(110000);
+        assertEquals(1, frames.size());
+        assertEquals(55.0009, frames.get(0).latitude, 0.00001);
+        assertEquals(37.0, frames.get(0).longitude, DELTA);
+
+        // User stops, marker is blended to the new fix and stays there
+        situation.latitude = 55.001;
+        situation.speed = 0;
+        situation.time = 20000;
+        assertTrue(animator.onFix(situation, 120000));
+        frames = animator.frame(120000 + MarkerAnimator.MIN_DURATION);
+        assertEquals(55.001, frames.get(0).latitude, DELTA);
+        assertFalse(animator.isActive());
+    }
+
+    @Test
+    public void marksUncertainPrediction() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        animator.setPredictor(new DeadReckoning(null));
+        Situation situation = situation("user", 55.0, 37.0);
+        situation.speed = 10;
+        situation.time = 0;
+        animator.onFix(situation, 0);
+        List<MarkerAnimator.Frame> frames = animator.frame(5000);
+        assertFalse(frames.get(0).uncertain);
+        assertFalse(frames.get(0).restyle);
+        assertFalse(animator.isUncertain(situation));
+
+        // Confidence radius grows with age of fix, marker changes style once
+        frames = animator.frame(60000);
+        assertTrue(frames.get(0).uncertain);
+        assertTrue(frames.get(0).restyle);
+        assertTrue(animator.isUncertain(situation));
+        frames = animator.frame(61000);
+        assertTrue(frames.get(0).uncertain);
+        assertFalse(frames.get(0).restyle);
+
+        // New fix makes position certain again
+        situation.latitude = 55.005;
+        situation.time = 61000;
+        animator.onFix(situation, 61000);
+        frames = animator.frame(62000);
+        assertFalse(frames.get(0).uncertain);
+        assertTrue(frames.get(0).restyle);
+    }
+
+    @Test
+    public void respectsBudget() {
+        MarkerAnimator animator = new MarkerAnimator(10);
+        int count = MarkerAnimator.MAX_FRAME_UPDATES * 2;
+        Situation[] situations = new Situation[count];
+        for (int i = 0; i < count; i++) {
+            situations[i] = situation("user" + i, 55.0, 37.0 + i * 0.01);
+            animator.onFix(situations[i], 0);
+            situations[i].latitude = 55.01;
+            animator.onFix(situations[i], 10000);
+        }
+        // Frames are limited and take users in turn
+        List<MarkerAnimator.Frame> frames = animator.frame(11000);
+        assertEquals(MarkerAnimator.MAX_FRAME_UPDATES, frames.size());
+        assertSame(situations[0], frames.get(0).situation);
+        // Slow map update exhausts budget
+        animator.onFrameSent(11000, frames.size(), 30000000L);
+        assertTrue(animator.frame(11250).isEmpty());
+        // Budget is refilled with time, frame continues with next users
+        frames = animator.frame(14000);
+        assertEquals(MarkerAnimator.MAX_FRAME_UPDATES, frames.size());
+        assertSame(situations[MarkerAnimator.MAX_FRAME_UPDATES], frames.get(0).situation);
+    }
+
+    @Test
+    public void measuresRate() {
+        MarkerAnimator animator = new MarkerAnimator(MarkerAnimator.DEFAULT_BUDGET);
+        for (int i = 0; i <= 40; i++)
+            animator.onFrameSent(i * 250, 5, 1000000L);
+        assertEquals(20.5, animator.getRate(), 0.01);
+        assertEquals(4.1, animator.getIpcTime(), 0.01);
+    }
+}
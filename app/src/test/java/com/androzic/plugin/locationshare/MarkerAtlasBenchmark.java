@@ -0,0 +1,67 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares per tick marker rendering cost of on demand drawing, marker cache and atlas lookup.
+ * Benchmark takes a while, it is skipped unless <code>loadtest.enabled</code> system property
+ * is set.
+ */
+public class MarkerAtlasBenchmark {
+    private static final int USERS = 500;
+    private static final int TICKS = 20;
+    private static final int POINT_WIDTH = 2;
+
+    private static long measure(String label, MarkerRenderer renderer) {
+        Random random = new Random(1);
+        double[] tracks = new double[USERS];
+        double[] speeds = new double[USERS];
+        for (int i = 0; i < USERS; i++) {
+            tracks[i] = random.nextDouble() * 360;
+            speeds[i] = random.nextInt(4) * 5 + random.nextDouble() * 3;
+        }
+        long total = 0;
+        for (int tick = 0; tick < TICKS; tick++) {
+            long time = System.nanoTime();
+            for (int i = 0; i < USERS; i++) {
+                tracks[i] = (tracks[i] + random.nextGaussian() * 10 + 360) % 360;
+                speeds[i] = Math.max(speeds[i] + random.nextGaussian(), 0);
+                assertNotNull(renderer.render(tracks[i], speeds[i], i % 10 == 0));
+            }
+            // First ticks warm up JIT and cache
+            if (tick >= TICKS / 2)
+                total += System.nanoTime() - time;
+        }
+        long perTick = total / (TICKS - TICKS / 2);
+        System.out.printf("%-9s %4d users: %8.2f ms per tick, %s%n", label, USERS, perTick / 1e6, renderer.getStatistics());
+        return perTick;
+    }
+
+    @Test
+    public void compareRendering() {
+        Assume.assumeTrue("Benchmark is disabled", Boolean.getBoolean("loadtest.enabled"));
+        MarkerRenderer onDemand = new MarkerRenderer(new MarkerCache(0), SoftwareTarget::new);
+        onDemand.setStyle(0xffff0000, POINT_WIDTH);
+        long drawn = measure("on demand", onDemand);
+
+        MarkerRenderer cached = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), SoftwareTarget::new);
+        cached.setStyle(0xffff0000, POINT_WIDTH);
+        measure("cache", cached);
+
+        List<Runnable> builds = new ArrayList<>();
+        MarkerRenderer atlas = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), SoftwareTarget::new, builds::add, null);
+        atlas.setStyle(0xffff0000, POINT_WIDTH);
+        for (Runnable build : builds)
+            build.run();
+        assertTrue(atlas.isAtlasReady());
+        long lookup = measure("atlas", atlas);
+        assertTrue("Atlas lookup should be faster than drawing", lookup < drawn);
+    }
+}
@@ -0,0 +1,88 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MarkerCacheTest {
+    @Test
+    public void quantizesTrack() {
+        assertEquals(0, MarkerCache.trackBucket(0));
+        assertEquals(0, MarkerCache.trackBucket(2.4));
+        assertEquals(1, MarkerCache.trackBucket(2.6));
+        assertEquals(0, MarkerCache.trackBucket(358));
+        assertEquals(71, MarkerCache.trackBucket(355));
+        assertEquals(71, MarkerCache.trackBucket(-5));
+    }
+
+    @Test
+    public void quantizesSpeed() {
+        assertEquals(0, MarkerCache.speedBucket(0));
+        assertEquals(0, MarkerCache.speedBucket(-1));
+        assertEquals(2, MarkerCache.speedBucket(1.4));
+        assertTrue(MarkerCache.speedBucket(5) < MarkerCache.speedBucket(15));
+        assertEquals(MarkerCache.SPEED_BUCKETS - 1, MarkerCache.speedBucket(300));
+    }
+
+    @Test
+    public void distinguishesRenderState() {
+        Set<Long> keys = new HashSet<>();
+        for (int bucket = 0; bucket < 72; bucket++)
+            for (int length = 0; length < 40; length++)
+                for (int silent = 0; silent < 2; silent++)
+                    for (int width = 1; width <= 6; width++)
+                        assertTrue(keys.add(MarkerCache.key(bucket, length, silent == 1, 0xff0000, width)));
+        assertNotEquals(MarkerCache.key(1, 1, false, 0xff0000, 1), MarkerCache.key(1, 1, false, 0x00ff00, 1));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        MarkerCache cache = new MarkerCache(1000);
+        for (int i = 0; i < 10; i++)
+            cache.put(i, new byte[100]);
+        assertEquals(10, cache.size());
+        assertNotNull(cache.get(0));
+        cache.put(10, new byte[100]);
+        // Entry 1 is the eldest, 0 was just used
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(0));
+        assertEquals(1000, cache.getBytes());
+
+        // Oversized entry stays alone
+        cache.put(11, new byte[1500]);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(11));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void largeSessionHitsCache() {
+        // 200 users moving at walking to driving speed, as markers are drawn by the service
+        MarkerCache cache = new MarkerCache(MarkerCache.DEFAULT_BUDGET);
+        Random random = new Random(1);
+        int pointWidth = 2;
+        double[] tracks = new double[200];
+        double[] speeds = new double[200];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = random.nextDouble() * 360;
+            speeds[i] = random.nextInt(3) * 5 + random.nextDouble() * 3;
+        }
+        for (int tick = 0; tick < 30; tick++) {
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = (tracks[i] + random.nextGaussian() * 3 + 360) % 360;
+                int h = (int) Math.round(Math.log10(speeds[i] * 2 + 1) * pointWidth * 6);
+                long key = MarkerCache.key(MarkerCache.trackBucket(tracks[i]), h, false, 0xff0000, pointWidth);
+                if (cache.get(key) == null)
+                    cache.put(key, new byte[1200]);
+            }
+        }
+        assertTrue(cache.getHitRatio() > 0.9);
+    }
+}
@@ -0,0 +1,184 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MarkerRendererTest {
+    /**
+     * Stands for bitmap surface, counts allocations and draws.
+     */
+    private static class CountingFactory implements MarkerRenderer.TargetFactory {
+        final AtomicInteger bitmaps = new AtomicInteger();
+        final AtomicInteger renders = new AtomicInteger();
+
+        @Override
+        public MarkerRenderer.Target create(int maxSize, int color, int pointWidth) {
+            bitmaps.incrementAndGet();
+            return (size, trackBucket, length, silent, out) -> {
+                assertTrue(size <= maxSize);
+                renders.incrementAndGet();
+                // Encoded size grows with marker extent
+                for (int i = 0; i < size * 4; i++)
+                    out.write(i);
+            };
+        }
+    }
+
+    @Test
+    public void shrinksToMarker() {
+        assertEquals(30, MarkerRenderer.getSize(0, 2));
+        assertEquals(0, MarkerRenderer.getVectorLength(0, 2));
+        assertEquals(0, MarkerRenderer.getVectorLength(-1, 2));
+        int fast = MarkerRenderer.getVectorLength(30, 2);
+        assertEquals(2 * (12 + fast + 1), MarkerRenderer.getSize(fast, 2));
+        // Never larger than former fixed size
+        assertEquals(MarkerRenderer.getMaxSize(2), MarkerRenderer.getSize(1000, 2));
+    }
+
+    @Test
+    public void steadyStateAllocatesNoBitmaps() {
+        CountingFactory factory = new CountingFactory();
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), factory);
+        renderer.setStyle(0xffff0000, 2);
+        Random random = new Random(1);
+        double[] tracks = new double[200];
+        double[] speeds = new double[200];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = random.nextDouble() * 360;
+            speeds[i] = random.nextDouble() * 15;
+        }
+        // Warm up
+        for (int i = 0; i < tracks.length; i++)
+            assertNotNull(renderer.render(tracks[i], speeds[i], false));
+        assertEquals(1, factory.bitmaps.get());
+        int renders = factory.renders.get();
+        assertTrue(renders < tracks.length);
+
+        // Steady state tick: nothing has visually changed
+        for (int i = 0; i < tracks.length; i++)
+            renderer.render(tracks[i], speeds[i], false);
+        assertEquals(1, factory.bitmaps.get());
+        assertEquals(renders, factory.renders.get());
+
+        // Users moved, new markers are drawn on the same surface
+        for (int i = 0; i < tracks.length; i++)
+            renderer.render(tracks[i] + 90, speeds[i], true);
+        assertEquals(1, factory.bitmaps.get());
+        assertTrue(factory.renders.get() > renders);
+
+        // Style change drops surface and cached markers
+        renderer.setStyle(0xff00ff00, 3);
+        renders = factory.renders.get();
+        renderer.render(tracks[0], speeds[0], false);
+        assertEquals(2, factory.bitmaps.get());
+        assertEquals(renders + 1, factory.renders.get());
+        assertEquals(2, renderer.getTargets());
+    }
+
+    @Test
+    public void keepsSurfacePerThread() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), factory);
+        renderer.setStyle(0xffff0000, 2);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 90;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 90; i++)
+                    renderer.render(offset + i, 1, false);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(threads.length, factory.bitmaps.get());
+    }
+
+    @Test
+    public void rendersFromAtlas() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        List<Runnable> builds = new ArrayList<>();
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), factory, builds::add, null);
+        // Second style change makes the first build obsolete
+        renderer.setStyle(0xffff0000, 2);
+        renderer.setStyle(0xff00ff00, 3);
+        assertEquals(2, builds.size());
+        assertFalse(renderer.isAtlasReady());
+        for (Runnable build : builds)
+            build.run();
+        assertTrue(renderer.isAtlasReady());
+        int renders = factory.renders.get();
+        assertEquals(MarkerRenderer.ATLAS_SIZE, renders);
+
+        // Nothing is drawn once atlas is ready, sprites look the same as on demand rendered
+        MarkerRenderer reference = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), new CountingFactory());
+        reference.setStyle(0xff00ff00, 3);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            double track = random.nextDouble() * 360;
+            double speed = random.nextDouble() * 100;
+            boolean silent = random.nextBoolean();
+            assertTrue(Arrays.equals(reference.render(track, speed, silent), renderer.render(track, speed, silent)));
+        }
+        assertEquals(renders, factory.renders.get());
+
+        // Style change falls back to on demand rendering
+        renderer.setStyle(0xff0000ff, 3);
+        assertFalse(renderer.isAtlasReady());
+        assertNotNull(renderer.render(0, 0, false));
+        assertEquals(renders + 1, factory.renders.get());
+    }
+
+    @Test
+    public void cachesLabels() {
+        CountingFactory factory = new CountingFactory();
+        AtomicInteger labels = new AtomicInteger();
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), factory, null,
+                (name, color, pointWidth) -> {
+                    labels.incrementAndGet();
+                    return new MarkerRenderer.Label() {
+                        @Override
+                        public int getWidth() {
+                            return name.length() * 10;
+                        }
+
+                        @Override
+                        public int getHeight() {
+                            return 20;
+                        }
+                    };
+                });
+        renderer.setStyle(0xffff0000, 2);
+        long unlabeled = renderer.getKey(90, 5, false);
+        assertEquals(unlabeled, renderer.getKey(90, 5, false, null));
+        long alice = renderer.getKey(90, 5, false, "alice");
+        long bob = renderer.getKey(90, 5, false, "bob");
+        assertNotEquals(unlabeled, alice);
+        assertNotEquals(alice, bob);
+        assertEquals(2, labels.get());
+
+        // Moving users reuse their labels, unchanged markers are not drawn again
+        for (int i = 0; i < 100; i++) {
+            renderer.render(i * 3.6, i % 10, false, "alice");
+            renderer.render(i * 3.6, i % 10, false, "bob");
+        }
+        int renders = factory.renders.get();
+        for (int i = 0; i < 100; i++)
+            renderer.render(i * 3.6, i % 10, false, "alice");
+        assertEquals(renders, factory.renders.get());
+        assertEquals(2, labels.get());
+        assertEquals(alice, renderer.getKey(90, 5, false, "alice"));
+
+        // Style change rasterizes labels again
+        renderer.setStyle(0xff00ff00, 2);
+        assertNotEquals(alice, renderer.getKey(90, 5, false, "alice"));
+        assertEquals(3, labels.get());
+    }
+}
@@ -0,0 +1,37 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NameIndexTest {
+    @Test
+    public void matchesHashMap() {
+        NameIndex index = new NameIndex(4);
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            String name = "user" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                Integer slot = expected.remove(name);
+                assertEquals(slot == null ? -1 : slot, index.remove(name));
+            } else {
+                expected.put(name, i);
+                index.put(name, i);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 2000; i++) {
+            String name = "user" + i;
+            Integer slot = expected.get(name);
+            assertEquals(slot == null ? -1 : slot, index.get(name));
+        }
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.get("user1"));
+    }
+}
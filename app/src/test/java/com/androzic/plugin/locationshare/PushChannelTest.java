@@ -0,0 +1,110 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class PushChannelTest {
+    private static final int UPDATES = 40;
+    private static final long UPDATE_PERIOD = 50;
+    private static final long POLL_INTERVAL = 200;
+
+    @Test
+    public void fallsBackToPolling() {
+        PushChannel channel = new PushChannel();
+        assertFalse(channel.isActive());
+        assertFalse(channel.onResponse(0));
+        assertTrue(channel.onResponse(30));
+        assertEquals(30, channel.getWait());
+        for (int i = 0; i < PushChannel.MAX_RECONNECTS; i++)
+            assertTrue("Should reconnect", channel.onFailure());
+        assertTrue(channel.isActive());
+        assertFalse("Should fall back", channel.onFailure());
+        assertFalse(channel.isActive());
+        // Next successful poll re-enables push
+        assertTrue(channel.onResponse(30));
+    }
+
+    @Test
+    public void restartsForOwnFix() {
+        PushChannel channel = new PushChannel();
+        assertFalse(channel.shouldUpload(100000, 10000));
+        channel.onResponse(30);
+        channel.onUpload(100000);
+        assertFalse(channel.shouldUpload(105000, 10000));
+        assertTrue(channel.shouldUpload(110000, 10000));
+    }
+
+    /**
+     * Client loop mirroring SharingService request sequence, records delivery latency of peer fixes.
+     */
+    private static List<Long> runClient(SharingServerStub server, boolean push, Thread producer) throws Exception {
+        PushChannel channel = new PushChannel();
+        SituationStore store = new SituationStore();
+        List<Long> latencies = new ArrayList<>();
+        long lastSeen = 0;
+        while (producer.isAlive() || lastSeen < UPDATES) {
+            String query = "session=test;user=me";
+            long cursor = store.getCursor();
+            if (cursor != SharingResponse.NO_CURSOR)
+                query = query + ";since=" + cursor;
+            if (push && channel.isActive() && cursor != SharingResponse.NO_CURSOR)
+                query = query + ";wait=" + channel.getWait();
+            SharingResponse response = SharingServerStub.parse(server.handle(query));
+            long now = System.currentTimeMillis();
+            store.apply(response, "me");
+            for (int i = 0; i < response.size(); i++) {
+                // Peer fix carries its sequence number as speed and send time as fix time
+                if (response.speeds[i] > lastSeen) {
+                    lastSeen = (long) response.speeds[i];
+                    latencies.add(now - response.times[i]);
+                }
+            }
+            if (!(push && channel.onResponse(server.pushWait)))
+                Thread.sleep(POLL_INTERVAL);
+        }
+        return latencies;
+    }
+
+    private static Thread producer(SharingServerStub server) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (int i = 1; i <= UPDATES; i++) {
+                    Thread.sleep(UPDATE_PERIOD);
+                    server.update("peer", 55 + i * 1e-4, 37, i, 0, System.currentTimeMillis());
+                }
+            } catch (InterruptedException ignore) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static double mean(List<Long> values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return (double) sum / values.size();
+    }
+
+    @Test(timeout = 20000)
+    public void pushDeliversFasterThanPolling() throws Exception {
+        SharingServerStub server = new SharingServerStub(false);
+        server.pushWait = 5;
+        List<Long> pushed = runClient(server, true, producer(server));
+
+        server = new SharingServerStub(false);
+        List<Long> polled = runClient(server, false, producer(server));
+
+        assertTrue(pushed.size() > polled.size());
+        assertTrue(mean(pushed) * 2 < mean(polled));
+    }
+}
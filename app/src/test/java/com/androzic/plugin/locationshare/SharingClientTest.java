@@ -0,0 +1,78 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharingClientTest {
+    private static final String SERVER = "https://example.com/sharing/";
+
+    private static Situation fix(double latitude, long time) {
+        Situation fix = new Situation();
+        fix.latitude = latitude;
+        fix.longitude = 37;
+        fix.time = time;
+        return fix;
+    }
+
+    @Test
+    public void sendsBacklogOnlyToCapableServers() throws Exception {
+        SituationStore store = new SituationStore();
+        SharingClient client = new SharingClient(store);
+        List<Situation> backlog = Arrays.asList(fix(55, 1000), fix(55.001, 11000));
+
+        // Legacy server has not shown it accepts backlog
+        SharingClient.Query query = client.prepare(SERVER, "test", "me", fix(55.002, 21000), backlog, 0, 0, 0);
+        assertFalse(query.backlog);
+        assertNull(query.body);
+        client.merge(new SharingResponse(), "me");
+        query = client.prepare(SERVER, "test", "me", fix(55.002, 21000), backlog, 0, 0, 0);
+        assertFalse(query.backlog);
+
+        // Server supporting incremental sync gets it
+        SharingResponse response = new SharingResponse();
+        response.cursor = 5;
+        client.merge(response, "me");
+        query = client.prepare(SERVER, "test", "me", fix(55.002, 21000), backlog, 0, 0, 0);
+        assertTrue(query.backlog);
+        assertNotNull(query.body);
+        assertEquals(SharingClient.JSON_CONTENT_TYPE, query.contentType);
+        assertTrue(query.url.contains(";since=5"));
+
+        query = client.prepare(SERVER, "test", "me", fix(55.002, 21000), Collections.emptyList(), 0, 0, 0);
+        assertFalse(query.backlog);
+        assertNull(query.body);
+    }
+
+    @Test
+    public void keepsAreaWhileLocationIsLost() throws Exception {
+        SituationStore store = new SituationStore();
+        SharingClient client = new SharingClient(store);
+        SharingResponse response = new SharingResponse();
+        response.cursor = 5;
+        client.prepare(SERVER, "test", "me", fix(55, 1000), Collections.emptyList(), 1000, 100, 0);
+        client.merge(response, "me");
+
+        // Last fix is sent again, delta sync goes on
+        SharingClient.Query query = client.prepare(SERVER, "test", "me", null, Collections.emptyList(), 1000, 100, 0);
+        assertEquals(5, store.getCursor());
+        assertTrue(query.url.contains(";lat=55.0;"));
+        assertTrue(query.url.contains(";ftime=1000;"));
+        assertTrue(query.url.contains(";radius=1000;limit=100;since=5"));
+        query = client.prepare(SERVER, "test", "me", fix(55.001, 2000), Collections.emptyList(), 1000, 100, 0);
+        assertTrue(query.url.contains(";since=5"));
+
+        // Without area there is nothing to keep
+        query = client.prepare(SERVER, "test", "me", null, Collections.emptyList(), 0, 100, 0);
+        assertFalse(query.url.contains(";lat="));
+    }
+}
@@ -0,0 +1,172 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs client update cycle against local sharing server with thousands of moving users and
+ * reports per tick latency, client CPU time, allocations and transferred bytes. Requests are
+ * built and replies merged by {@link SharingClient}, the same code service runs. Load test takes
+ * minutes, it is skipped unless <code>loadtest.enabled</code> system property is set. Session
+ * sizes, tick count and churn can be set with <code>loadtest.sizes</code>,
+ * <code>loadtest.ticks</code> and <code>loadtest.churn</code> system properties.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SharingLoadBenchmark {
+    private static final String SELF = "me";
+    private static final long TICK = 10000;
+
+    /**
+     * Transport for {@link SharingClient}, stands in for Volley request queue of the service.
+     */
+    private static class Client {
+        final SituationStore store = new SituationStore();
+        final SharingClient client = new SharingClient(store);
+        final String endpoint;
+
+        Client(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void update(long time) throws IOException {
+            Situation fix = new Situation();
+            fix.latitude = 55.75;
+            fix.longitude = 37.62;
+            fix.time = time;
+            SharingClient.Query query = client.prepare(endpoint, "load", SELF, fix, Collections.emptyList(), 0, 0, 0);
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(query.url).openConnection();
+            connection.setRequestProperty("Accept", BinaryCodec.CONTENT_TYPE + ", application/json;q=0.9");
+            if (query.body != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", query.contentType);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(query.body);
+                }
+            }
+            if (connection.getResponseCode() != 200)
+                throw new IOException("HTTP " + connection.getResponseCode());
+            byte[] data;
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 32));
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+                data = out.toByteArray();
+            }
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() != null)
+                    headers.put(header.getKey(), header.getValue().get(0));
+            }
+            SharingResponse response = SharingResponse.parse(data, headers, "UTF-8");
+            client.merge(response, SELF);
+            response.recycle();
+            store.updateSilence(time, 600000);
+        }
+    }
+
+    private static class Stats {
+        final long[] latency;
+        final long[] cpu;
+        final long[] allocated;
+
+        Stats(int ticks) {
+            latency = new long[ticks];
+            cpu = new long[ticks];
+            allocated = new long[ticks];
+        }
+
+        static long percentile(long[] values, double p) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) Math.floor(p * sorted.length))];
+        }
+
+        static long mean(long[] values) {
+            long sum = 0;
+            for (long value : values)
+                sum += value;
+            return sum / values.length;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private static void run(int users, int ticks, double churn, boolean binary) throws Exception {
+        SharingServerStub stub = new SharingServerStub(false);
+        try (LoadTestServer server = new LoadTestServer(stub, binary)) {
+            LoadGenerator generator = new LoadGenerator(stub, users, churn, users);
+            Client client = new Client(server.getUrl());
+            com.sun.management.ThreadMXBean bean = threadBean();
+            long thread = Thread.currentThread().getId();
+
+            // Initial snapshot and protocol negotiation are not part of steady state
+            client.update(generator.getTime());
+            client.update(generator.getTime());
+            long bytesIn = server.bytesIn.get();
+            long bytesOut = server.bytesOut.get();
+
+            Stats stats = new Stats(ticks);
+            for (int i = 0; i < ticks; i++) {
+                generator.tick(TICK);
+                long cpu = bean.getCurrentThreadCpuTime();
+                long allocated = bean.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                client.update(generator.getTime());
+                stats.latency[i] = System.nanoTime() - start;
+                stats.cpu[i] = bean.getCurrentThreadCpuTime() - cpu;
+                stats.allocated[i] = bean.getThreadAllocatedBytes(thread) - allocated;
+            }
+            bytesIn = server.bytesIn.get() - bytesIn;
+            bytesOut = server.bytesOut.get() - bytesOut;
+
+            assertEquals(users, client.store.getSituations().size());
+            for (Situation situation : client.store.getSituations())
+                assertTrue(situation.name, stub.users.containsKey(situation.name));
+
+            System.out.printf("%-6s %6d users: latency p50 %6.1f ms, p95 %6.1f ms, cpu %6.1f ms, alloc %7d KB, down %7d KB, up %4d B per tick%n",
+                    binary ? "binary" : "json", users,
+                    Stats.percentile(stats.latency, 0.5) / 1e6, Stats.percentile(stats.latency, 0.95) / 1e6,
+                    Stats.mean(stats.cpu) / 1e6, Stats.mean(stats.allocated) / 1024,
+                    bytesOut / ticks / 1024, bytesIn / ticks);
+        }
+    }
+
+    @Test
+    public void sessionScale() throws Exception {
+        Assume.assumeTrue("Load test is disabled", Boolean.getBoolean("loadtest.enabled"));
+        String[] sizes = System.getProperty("loadtest.sizes", "100,1000,5000").split(",");
+        int ticks = Integer.getInteger("loadtest.ticks", 20);
+        double churn = Double.parseDouble(System.getProperty("loadtest.churn", "0.01"));
+        for (String size : sizes) {
+            int users = Integer.parseInt(size.trim());
+            run(users, ticks, churn, false);
+            run(users, ticks, churn, true);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.androzic.plugin.locationshare;
+
+import android.util.JsonReader;
+
+import com.androzic.data.Situation;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares streaming reply parser with former org.json DOM based parsing.
+ * Benchmark takes a while, it is skipped unless <code>loadtest.enabled</code> system property
+ * is set.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SharingResponseBenchmark {
+    private static final int USERS = 500;
+    private static final int ITERATIONS = 200;
+
+    interface Parser {
+        int parse(byte[] data) throws Exception;
+    }
+
+    private static int parseDom(byte[] data) throws Exception {
+        JSONObject response = new JSONObject(new String(data, StandardCharsets.UTF_8));
+        JSONArray entries = response.getJSONArray("users");
+        List<Situation> situations = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            Situation s = new Situation(entry.getString("user"));
+            s.latitude = entry.getDouble("lat");
+            s.longitude = entry.getDouble("lon");
+            s.speed = entry.getDouble("speed");
+            s.track = entry.getDouble("track");
+            s.time = entry.getLong("ftime");
+            situations.add(s);
+        }
+        return situations.size();
+    }
+
+    private static int parseStream(byte[] data) throws Exception {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"))) {
+            SharingResponse response = SharingResponse.read(reader);
+            int size = response.size();
+            // Service recycles reply once it is applied
+            response.recycle();
+            return size;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long[] measure(String label, Parser parser, byte[] data) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++)
+            assertEquals(USERS, parser.parse(data));
+        long bytes = allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            parser.parse(data);
+        time = (System.nanoTime() - time) / ITERATIONS;
+        bytes = (allocatedBytes() - bytes) / ITERATIONS;
+        System.out.printf("%-8s %8d bytes/parse %8d us/parse%n", label, bytes, time / 1000);
+        return new long[]{bytes, time};
+    }
+
+    @Test
+    public void compareParsers() throws Exception {
+        Assume.assumeTrue("Benchmark is disabled", Boolean.getBoolean("loadtest.enabled"));
+        SharingServerStub server = new SharingServerStub(false);
+        for (int i = 0; i < USERS; i++)
+            server.update("user" + i, 55 + i * 0.0001, 37 + i * 0.0001, i % 10 * 0.7, i % 360, 1700000000000L + i);
+        byte[] data = server.handle("session=test").getBytes(StandardCharsets.UTF_8);
+
+        long[] dom = measure("org.json", SharingResponseBenchmark::parseDom, data);
+        long[] stream = measure("stream", SharingResponseBenchmark::parseStream, data);
+        assertTrue("Streaming parser should allocate less", stream[0] < dom[0]);
+    }
+}
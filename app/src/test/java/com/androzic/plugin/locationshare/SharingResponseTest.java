@@ -0,0 +1,100 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharingResponseTest {
+    @Test
+    public void readsAllFields() throws Exception {
+        SharingResponse response = SharingServerStub.parse("{\"cursor\":42,\"delta\":true,\"extra\":{\"a\":[1,2]},"
+                + "\"users\":[{\"user\":\"Bob\",\"lat\":55.5,\"lon\":37.25,\"speed\":1.5,\"track\":270,\"ftime\":1700000000123,\"unknown\":null}],"
+                + "\"removed\":[\"Alice\"]}");
+        assertEquals(42, response.cursor);
+        assertTrue(response.delta);
+        assertEquals(1, response.size());
+        Situation situation = response.get(0);
+        assertEquals("Bob", situation.name);
+        assertEquals(55.5, situation.latitude, 0);
+        assertEquals(37.25, situation.longitude, 0);
+        assertEquals(1.5, situation.speed, 0);
+        assertEquals(270, situation.track, 0);
+        assertEquals(1700000000123L, situation.time);
+        assertEquals(1, response.removed.size());
+        assertEquals("Alice", response.removed.get(0));
+    }
+
+    @Test
+    public void skipsMalformedEntries() throws Exception {
+        SharingResponse response = SharingServerStub.parse("{\"users\":["
+                + "{\"user\":\"A\",\"lat\":\"oops\",\"lon\":37,\"speed\":0,\"track\":0,\"ftime\":1},"
+                + "{\"user\":\"B\",\"lat\":55,\"lon\":37,\"speed\":0,\"track\":0},"
+                + "{\"user\":null,\"lat\":55,\"lon\":37,\"speed\":0,\"track\":0,\"ftime\":1},"
+                + "{\"user\":\"C\",\"lat\":95,\"lon\":37,\"ftime\":1},"
+                + "[1,2,3],"
+                + "{\"user\":\"D\",\"lat\":\"55.1\",\"lon\":37,\"speed\":{\"x\":1},\"track\":0,\"ftime\":1},"
+                + "{\"user\":\"E\",\"lat\":55,\"lon\":37,\"speed\":3,\"track\":90,\"ftime\":2}"
+                + "]}");
+        assertEquals(SharingResponse.NO_CURSOR, response.cursor);
+        assertFalse(response.delta);
+        assertEquals(2, response.size());
+        assertEquals("D", response.names[0]);
+        assertEquals(55.1, response.latitudes[0], 0);
+        assertEquals(0, response.speeds[0], 0);
+        assertEquals("E", response.names[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnBrokenDocument() throws Exception {
+        SharingServerStub.parse("{\"users\":[{\"user\":\"A\",\"lat\":5");
+    }
+
+    @Test
+    public void binaryReplyChangesCodecOnlyWhenDecoded() throws Exception {
+        Map<String, String> headers = Collections.singletonMap("Content-Type", BinaryCodec.CONTENT_TYPE);
+        // Two server states that share the full frame
+        BinaryCodec superseded = new BinaryCodec();
+        BinaryCodec current = new BinaryCodec();
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        reply.cursor = 1;
+        Situation situation = new Situation("Bob");
+        situation.time = 1000;
+        reply.users.add(situation);
+        superseded.encode(reply);
+        byte[] full = current.encode(reply);
+
+        BinaryCodec codec = new BinaryCodec();
+        SharingResponse response = SharingResponse.parse(full, headers, "UTF-8");
+        assertTrue(response.binary);
+        assertEquals(0, response.size());
+        response.decodeBody(codec);
+        assertEquals(1, response.size());
+        assertEquals(1, codec.getCursor());
+
+        // Reply to superseded request is dropped without decoding
+        reply.delta = true;
+        reply.cursor = 2;
+        situation.time = 2000;
+        SharingResponse.parse(superseded.encode(reply), headers, "UTF-8").recycle();
+        assertEquals(1, codec.getCursor());
+
+        // Reply to request that replaced it is based on the same state
+        reply.cursor = 3;
+        situation.time = 3000;
+        response = SharingResponse.parse(current.encode(reply), headers, "UTF-8");
+        response.decodeBody(codec);
+        assertTrue(response.delta);
+        assertEquals(3000, response.times[0]);
+        assertEquals(3, codec.getCursor());
+    }
+}
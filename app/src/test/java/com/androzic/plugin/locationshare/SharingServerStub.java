@@ -0,0 +1,352 @@
+package com.androzic.plugin.locationshare;
+
+import android.util.JsonReader;
+
+import com.androzic.data.Situation;
+import com.androzic.plugin.locationshare.wire.BinaryCodec;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local stand-in for sharing server. Speaks both legacy (full snapshot) and incremental
+ * sync protocol, with JSON or binary encoding, and can act as long-poll push broker.
+ */
+class SharingServerStub {
+    static class User {
+        String name;
+        double lat;
+        double lon;
+        double speed;
+        double track;
+        long time;
+        long version;
+    }
+
+    /**
+     * Users last sent to client limited to area of interest and cursor they were sent with
+     */
+    private static class Area {
+        final long cursor;
+        final Set<String> visible;
+
+        Area(long cursor, Set<String> visible) {
+            this.cursor = cursor;
+            this.visible = visible;
+        }
+    }
+
+    final boolean legacy;
+    /**
+     * Maximum time in seconds push request can be held, 0 if push is not supported
+     */
+    int pushWait = 0;
+    final Map<String, User> users = new LinkedHashMap<>();
+    /**
+     * All fixes received from each user, including uploaded backlog
+     */
+    final Map<String, List<Situation>> tracks = new HashMap<>();
+    private final Map<String, Long> tombstones = new LinkedHashMap<>();
+    private final Map<String, BinaryCodec> codecs = new HashMap<>();
+    private final Map<String, Area> areas = new HashMap<>();
+    private long version = 0;
+
+    SharingServerStub(boolean legacy) {
+        this.legacy = legacy;
+    }
+
+    synchronized void update(String name, double lat, double lon, double speed, double track, long time) {
+        List<Situation> trail = tracks.get(name);
+        if (trail == null) {
+            trail = new ArrayList<>();
+            tracks.put(name, trail);
+        }
+        Situation fix = new Situation(name);
+        fix.latitude = lat;
+        fix.longitude = lon;
+        fix.speed = speed;
+        fix.track = track;
+        fix.time = time;
+        // Backlog can be delivered twice if reply was lost
+        int i = trail.size();
+        while (i > 0 && trail.get(i - 1).time > time)
+            i--;
+        if (i > 0 && trail.get(i - 1).time == time)
+            return;
+        trail.add(i, fix);
+        User user = users.get(name);
+        if (user != null && user.time > time)
+            return;
+        if (user == null) {
+            user = new User();
+            user.name = name;
+            users.put(name, user);
+        }
+        user.lat = lat;
+        user.lon = lon;
+        user.speed = speed;
+        user.track = track;
+        user.time = time;
+        user.version = ++version;
+        tombstones.remove(name);
+        notifyAll();
+    }
+
+    synchronized void leave(String name) {
+        if (users.remove(name) != null) {
+            tombstones.put(name, ++version);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Handles request query as built by <code>SharingService</code> and returns reply body.
+     */
+    synchronized String handle(String query) {
+        return handle(query, null);
+    }
+
+    /**
+     * Handles request with backlog of fixes posted as JSON array.
+     */
+    synchronized String handle(String query, String body) {
+        Map<String, String> params = parseQuery(query);
+        if (body != null && params.containsKey("user")) {
+            try (JsonReader reader = new JsonReader(new StringReader(body))) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Map<String, String> fix = new HashMap<>();
+                    reader.beginObject();
+                    while (reader.hasNext())
+                        fix.put(reader.nextName(), reader.nextString());
+                    reader.endObject();
+                    update(params.get("user"),
+                            Double.parseDouble(fix.get("lat")),
+                            Double.parseDouble(fix.get("lon")),
+                            Double.parseDouble(fix.get("speed")),
+                            Double.parseDouble(fix.get("track")),
+                            Long.parseLong(fix.get("ftime")));
+                }
+                reader.endArray();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        if (params.containsKey("user") && params.containsKey("lat")) {
+            update(params.get("user"),
+                    Double.parseDouble(params.get("lat")),
+                    Double.parseDouble(params.get("lon")),
+                    Double.parseDouble(params.get("speed")),
+                    Double.parseDouble(params.get("track")),
+                    Long.parseLong(params.get("ftime")));
+        }
+        await(params);
+        BinaryCodec.Reply reply = reply(params, since(params));
+        StringBuilder json = new StringBuilder("{");
+        if (reply.cursor != BinaryCodec.NO_CURSOR)
+            json.append("\"cursor\":").append(reply.cursor).append(',');
+        if (reply.total >= 0)
+            json.append("\"total\":").append(reply.total).append(',');
+        if (reply.delta)
+            json.append("\"delta\":true,");
+        json.append("\"users\":[");
+        boolean first = true;
+        for (Situation user : reply.users) {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"user\":\"").append(user.name)
+                    .append("\",\"lat\":").append(user.latitude)
+                    .append(",\"lon\":").append(user.longitude)
+                    .append(",\"speed\":").append(user.speed)
+                    .append(",\"track\":").append(user.track)
+                    .append(",\"ftime\":").append(user.time)
+                    .append('}');
+        }
+        json.append(']');
+        if (reply.delta) {
+            json.append(",\"removed\":[");
+            first = true;
+            for (String name : reply.removed) {
+                if (!first)
+                    json.append(',');
+                first = false;
+                json.append('"').append(name).append('"');
+            }
+            json.append(']');
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    /**
+     * Handles binary protocol request, own fix is passed in body.
+     */
+    synchronized byte[] handleBinary(String query, byte[] body) throws IOException {
+        Map<String, String> params = parseQuery(query);
+        String name = params.get("user");
+        if (name != null && body != null) {
+            for (Situation fix : BinaryCodec.decodeTrack(body))
+                update(name, fix.latitude, fix.longitude, fix.speed, fix.track, fix.time);
+        }
+        await(params);
+        BinaryCodec codec = codecs.get(name);
+        if (codec == null) {
+            codec = new BinaryCodec();
+            codecs.put(name, codec);
+        }
+        long since = since(params);
+        // Deltas can be sent only if client state matches ours
+        if (since != codec.getCursor())
+            since = -1;
+        return codec.encode(reply(params, since));
+    }
+
+    /**
+     * Holds push request until any other user changes or wait time expires.
+     */
+    private void await(Map<String, String> params) {
+        long since = since(params);
+        if (pushWait <= 0 || since < 0 || !params.containsKey("wait"))
+            return;
+        String requester = params.get("user");
+        long deadline = System.currentTimeMillis() + Math.min(Long.parseLong(params.get("wait")), pushWait) * 1000L;
+        while (!hasChanges(since, requester)) {
+            long rest = deadline - System.currentTimeMillis();
+            if (rest <= 0)
+                break;
+            try {
+                wait(rest);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private boolean hasChanges(long since, String requester) {
+        for (User user : users.values()) {
+            if (user.version > since && !user.name.equals(requester))
+                return true;
+        }
+        for (long tombstone : tombstones.values()) {
+            if (tombstone > since)
+                return true;
+        }
+        return false;
+    }
+
+    private long since(Map<String, String> params) {
+        if (legacy || !params.containsKey("since"))
+            return -1;
+        return Long.parseLong(params.get("since"));
+    }
+
+    /**
+     * Builds reply limited to area of interest if client requests it.
+     */
+    private BinaryCodec.Reply reply(Map<String, String> params, long since) {
+        String requester = params.get("user");
+        User center = requester != null ? users.get(requester) : null;
+        if (legacy || !params.containsKey("radius") || center == null)
+            return reply(since);
+        double radius = Double.parseDouble(params.get("radius"));
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+
+        // Client state is unknown, send full snapshot of the area
+        Area area = areas.get(requester);
+        if (area == null || area.cursor != since)
+            since = -1;
+
+        List<User> inArea = new ArrayList<>();
+        for (User user : users.values()) {
+            if (user != center && distance(center, user) <= radius)
+                inArea.add(user);
+        }
+        inArea.sort(Comparator.comparingDouble(user -> distance(center, user)));
+        if (inArea.size() > limit)
+            inArea = inArea.subList(0, limit);
+
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        reply.cursor = version;
+        reply.delta = since >= 0;
+        reply.total = users.size() - 1;
+        Set<String> visible = new HashSet<>();
+        for (User user : inArea) {
+            visible.add(user.name);
+            // Unchanged user can enter area because client has moved
+            if (user.version > since || !area.visible.contains(user.name))
+                reply.users.add(situation(user));
+        }
+        if (reply.delta) {
+            for (String name : area.visible) {
+                if (!visible.contains(name))
+                    reply.removed.add(name);
+            }
+        }
+        areas.put(requester, new Area(reply.cursor, visible));
+        return reply;
+    }
+
+    private static double distance(User a, User b) {
+        double dLat = b.lat - a.lat;
+        double dLon = (b.lon - a.lon) * Math.cos(Math.toRadians(a.lat));
+        return Math.sqrt(dLat * dLat + dLon * dLon) * 111320;
+    }
+
+    private static Situation situation(User user) {
+        Situation situation = new Situation(user.name);
+        situation.latitude = user.lat;
+        situation.longitude = user.lon;
+        situation.speed = user.speed;
+        situation.track = user.track;
+        situation.time = user.time;
+        return situation;
+    }
+
+    private BinaryCodec.Reply reply(long since) {
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        if (!legacy)
+            reply.cursor = version;
+        reply.delta = since >= 0;
+        for (User user : users.values()) {
+            if (user.version <= since)
+                continue;
+            reply.users.add(situation(user));
+        }
+        if (reply.delta) {
+            for (Map.Entry<String, Long> tombstone : tombstones.entrySet()) {
+                if (tombstone.getValue() > since)
+                    reply.removed.add(tombstone.getKey());
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Decodes reply the same way as <code>SharingRequest</code> does.
+     */
+    static SharingResponse parse(String body) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(body))) {
+            return SharingResponse.read(reader);
+        }
+    }
+
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : query.split(";")) {
+            int i = param.indexOf('=');
+            if (i > 0)
+                params.put(param.substring(0, i), param.substring(i + 1));
+        }
+        return params;
+    }
+}
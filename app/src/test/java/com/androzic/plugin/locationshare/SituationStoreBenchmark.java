@@ -0,0 +1,257 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares reply ingestion throughput and memory per user of slot store and map of objects it
+ * has replaced. Slot store is measured without fix history, and with it separately.
+ * Benchmark takes a while, it is skipped unless <code>loadtest.enabled</code> system property
+ * is set.
+ */
+public class SituationStoreBenchmark {
+    private static final int USERS = 10000;
+    private static final int ROUNDS = 20;
+    private static final int RUNS = 3;
+    // Share of users moved between legacy server snapshots
+    private static final double MOVING = 0.1;
+    private static final int TIMEOUT = 600000;
+    private static final double DISTANCE = 10000;
+
+    /**
+     * Previous store: map of situations and list for UI.
+     */
+    private static class ObjectStore {
+        final Map<String, Situation> situations = new HashMap<>();
+        final List<Situation> situationList = new ArrayList<>();
+
+        void apply(SharingResponse response, String self) {
+            synchronized (situations) {
+                for (int i = 0; i < response.size(); i++) {
+                    String name = response.names[i];
+                    if (name.equals(self))
+                        continue;
+                    Situation s = situations.get(name);
+                    if (s == null) {
+                        s = new Situation(name);
+                        s.dirty = Situation.DIRTY_ALL;
+                        situations.put(name, s);
+                        synchronized (situationList) {
+                            situationList.add(s);
+                        }
+                    }
+                    if (s.latitude != response.latitudes[i] || s.longitude != response.longitudes[i])
+                        s.dirty |= Situation.DIRTY_POSITION;
+                    if (s.speed != response.speeds[i] || s.track != response.tracks[i])
+                        s.dirty |= Situation.DIRTY_VISUALS;
+                    s.latitude = response.latitudes[i];
+                    s.longitude = response.longitudes[i];
+                    s.speed = response.speeds[i];
+                    s.track = response.tracks[i];
+                    s.time = response.times[i];
+                }
+            }
+        }
+
+        void scan(long curTime, int timeoutInterval, double latitude, double longitude, double distance) {
+            synchronized (situations) {
+                for (Situation situation : situations.values()) {
+                    boolean silent = situation.time + timeoutInterval < curTime;
+                    if (silent != situation.silent)
+                        situation.dirty |= Situation.DIRTY_VISUALS;
+                    situation.silent = silent;
+                }
+            }
+            double speed = Double.NaN;
+            double dLatMax = distance / 111320;
+            double cos = Math.cos(Math.toRadians(latitude));
+            synchronized (situations) {
+                for (Situation situation : situations.values()) {
+                    if (situation.silent)
+                        continue;
+                    double dLat = situation.latitude - latitude;
+                    double dLon = (situation.longitude - longitude) * cos;
+                    if (dLat * dLat + dLon * dLon > dLatMax * dLatMax)
+                        continue;
+                    if (Double.isNaN(speed) || situation.speed > speed)
+                        speed = situation.speed;
+                }
+            }
+        }
+    }
+
+    private static List<SharingResponse> replies() {
+        Random random = new Random(1);
+        double[] latitudes = new double[USERS];
+        double[] longitudes = new double[USERS];
+        List<SharingResponse> replies = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            SharingResponse response = new SharingResponse();
+            for (int i = 0; i < USERS; i++) {
+                if (round == 0) {
+                    latitudes[i] = 55 + random.nextDouble();
+                    longitudes[i] = 37 + random.nextDouble();
+                } else if (random.nextDouble() < MOVING) {
+                    latitudes[i] += random.nextGaussian() * 0.0001;
+                    longitudes[i] += random.nextGaussian() * 0.0001;
+                }
+                // Names are parsed anew from every reply
+                Situation situation = new Situation(new String("user" + i));
+                situation.latitude = latitudes[i];
+                situation.longitude = longitudes[i];
+                situation.speed = i % 10;
+                situation.track = i % 360;
+                situation.time = 1000;
+                response.add(situation);
+            }
+            replies.add(response);
+        }
+        return replies;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Store {
+        void apply(SharingResponse response);
+
+        /**
+         * Does what service does with all users on every update: checks silence and speed.
+         */
+        void scan();
+
+        int size();
+    }
+
+    /**
+     * Returns best time of user update in nanoseconds, fresh store is created for every run.
+     */
+    private static long measureTime(List<SharingResponse> replies, Supplier<Store> factory) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            Store store = factory.get();
+            store.apply(replies.get(0));
+            long time = System.nanoTime();
+            for (int round = 1; round < ROUNDS; round++)
+                store.apply(replies.get(round));
+            best = Math.min(best, (System.nanoTime() - time) / ((ROUNDS - 1) * (long) USERS));
+            assertEquals(USERS, store.size());
+        }
+        return best;
+    }
+
+    /**
+     * Returns best time of user scan in nanoseconds.
+     */
+    private static double measureScan(List<SharingResponse> replies, Supplier<Store> factory) {
+        Store store = factory.get();
+        store.apply(replies.get(0));
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS * 10; run++) {
+            long time = System.nanoTime();
+            store.scan();
+            best = Math.min(best, (System.nanoTime() - time) / (double) USERS);
+        }
+        return best;
+    }
+
+    /**
+     * Returns memory retained by store per user, measured as memory freed when store is dropped.
+     */
+    private static long measureMemory(List<SharingResponse> replies, Supplier<Store> factory) {
+        Store store = factory.get();
+        store.apply(replies.get(0));
+        assertEquals(USERS, store.size());
+        long memory = usedMemory();
+        //noinspection UnusedAssignment
+        store = null;
+        return (memory - usedMemory()) / USERS;
+    }
+
+    @Test
+    public void compareStores() {
+        Assume.assumeTrue("Benchmark is disabled", Boolean.getBoolean("loadtest.enabled"));
+        List<SharingResponse> replies = replies();
+        Supplier<Store> objects = () -> new Store() {
+            final ObjectStore store = new ObjectStore();
+
+            @Override
+            public void apply(SharingResponse response) {
+                store.apply(response, "me");
+            }
+
+            @Override
+            public void scan() {
+                store.scan(2000, TIMEOUT, 55.5, 37.5, DISTANCE);
+            }
+
+            @Override
+            public int size() {
+                return store.situationList.size();
+            }
+        };
+        Supplier<Store> slots = () -> slots(0);
+        Supplier<Store> history = () -> slots(FixHistory.DEFAULT_CAPACITY);
+        // Alternate stores so that both are measured with warmed up JIT
+        long objectsTime = Long.MAX_VALUE;
+        long slotsTime = Long.MAX_VALUE;
+        long historyTime = Long.MAX_VALUE;
+        double objectsScan = Double.MAX_VALUE;
+        double slotsScan = Double.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            objectsTime = Math.min(objectsTime, measureTime(replies, objects));
+            slotsTime = Math.min(slotsTime, measureTime(replies, slots));
+            historyTime = Math.min(historyTime, measureTime(replies, history));
+            objectsScan = Math.min(objectsScan, measureScan(replies, objects));
+            slotsScan = Math.min(slotsScan, measureScan(replies, slots));
+        }
+        System.out.printf("objects %5d users: %4d ns per user update, %5.1f ns per user scan, ~%d bytes per user%n",
+                USERS, objectsTime, objectsScan, measureMemory(replies, objects));
+        System.out.printf("slots   %5d users: %4d ns per user update, %5.1f ns per user scan, ~%d bytes per user%n",
+                USERS, slotsTime, slotsScan, measureMemory(replies, slots));
+        // Fix history is a feature objects do not have, it is reported separately
+        System.out.printf("history %5d users: %4d ns per user update, ~%d bytes per user with history%n",
+                USERS, historyTime, measureMemory(replies, history));
+    }
+
+    private static Store slots(int historyCapacity) {
+        return new Store() {
+            final SituationStore store = new SituationStore();
+
+            {
+                store.setHistoryCapacity(historyCapacity);
+            }
+
+            @Override
+            public void apply(SharingResponse response) {
+                store.apply(response, "me");
+            }
+
+            @Override
+            public void scan() {
+                store.updateSilence(2000, TIMEOUT);
+                store.getMaxSpeed(55.5, 37.5, DISTANCE);
+            }
+
+            @Override
+            public int size() {
+                return store.size();
+            }
+        };
+    }
+}
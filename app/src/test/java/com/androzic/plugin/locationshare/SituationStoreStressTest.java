@@ -0,0 +1,139 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Applies replies from one writer thread while several readers check that they never see
+ * fields of different fixes mixed in one situation.
+ */
+public class SituationStoreStressTest {
+    private static final int USERS = 300;
+    private static final int READERS = 3;
+    private static final long DURATION = 2000; // ms
+
+    private final SituationStore store = new SituationStore();
+    private volatile SituationSnapshot snapshot = SituationSnapshot.EMPTY;
+    private volatile boolean running = true;
+    private volatile long round;
+    private final AtomicReference<String> failure = new AtomicReference<>();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong found = new AtomicLong();
+
+    /**
+     * Every field of fix carries its number, so fields of different fixes can be told apart.
+     */
+    private static Situation fix(String name, long n) {
+        Situation situation = new Situation(name);
+        situation.latitude = n;
+        situation.longitude = -n;
+        situation.speed = n;
+        situation.track = n % 360;
+        situation.time = n;
+        return situation;
+    }
+
+    private void check(String where, Situation situation) {
+        double n = situation.latitude;
+        if (situation.longitude != -n || situation.speed != n || situation.track != n % 360 || situation.time != (long) n)
+            failure.compareAndSet(null, where + ": torn fix of " + situation.name + " lat=" + n
+                    + " lon=" + situation.longitude + " speed=" + situation.speed + " track=" + situation.track
+                    + " time=" + situation.time);
+    }
+
+    private void write() {
+        Random random = new Random(1);
+        List<String> removed = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + DURATION;
+        for (long r = 1; System.currentTimeMillis() < deadline; r++) {
+            SharingResponse response = new SharingResponse();
+            // Every tenth reply is full snapshot of incremental sync server, users missing there leave
+            boolean full = r % 10 == 0;
+            response.delta = !full;
+            response.cursor = r;
+            Situation current = new Situation();
+            for (int i = 0; i < USERS; i++) {
+                String name = "user" + i;
+                if (full && random.nextInt(20) == 0)
+                    continue;
+                // Some users move, full snapshot repeats fixes of others
+                if (random.nextInt(3) != 0 || !store.read(name, current)) {
+                    response.add(fix(name, r * USERS + i));
+                } else if (full) {
+                    current.name = name;
+                    response.add(current);
+                    current = new Situation();
+                }
+            }
+            // Some users leave, their slots are taken by others
+            removed.clear();
+            for (int i = random.nextInt(5); i > 0; i--)
+                removed.add("user" + random.nextInt(USERS));
+            response.removed.addAll(removed);
+            store.apply(response, "me");
+            round = r;
+            if (r % 7 == 0)
+                store.updateSilence(r * USERS, USERS * 3);
+            for (Situation situation : store.getSituations()) {
+                check("view", situation);
+                store.takeDirty(situation);
+            }
+            snapshot = store.snapshot(Double.NaN, Double.NaN);
+        }
+    }
+
+    private void readLoop(int reader) {
+        Random random = new Random(reader);
+        Situation fix = new Situation();
+        while (running) {
+            String name = "user" + random.nextInt(USERS);
+            fix.name = name;
+            if (store.read(name, fix)) {
+                check("read", fix);
+                found.incrementAndGet();
+            }
+            double speed = store.getMaxSpeed(Double.NaN, Double.NaN, 0);
+            if (speed >= (round + 2) * USERS)
+                failure.compareAndSet(null, "speed " + speed + " is from the future");
+            SituationSnapshot snapshot = this.snapshot;
+            Situation situation = snapshot.get(random.nextInt(USERS));
+            if (situation != null)
+                check("snapshot", situation);
+            if (reader == 0 && random.nextInt(1000) == 0)
+                store.resetCursor();
+            store.getCursor();
+            reads.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void readersNeverSeeTornFixes() throws Exception {
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            final int reader = i;
+            Thread thread = new Thread(() -> readLoop(reader), "Reader" + i);
+            readers.add(thread);
+            thread.start();
+        }
+        Thread writer = new Thread(this::write, "Writer");
+        writer.start();
+        writer.join();
+        running = false;
+        for (Thread thread : readers)
+            thread.join();
+
+        assertNull(failure.get(), failure.get());
+        assertTrue(round > 10);
+        assertTrue(reads.get() > 0);
+        assertTrue(found.get() > 0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class SituationStoreTest {
+    private static SharingResponse reply(String name, double lat, double lon, double speed, double track, long time) {
+        SharingResponse response = new SharingResponse();
+        Situation situation = new Situation(name);
+        situation.latitude = lat;
+        situation.longitude = lon;
+        situation.speed = speed;
+        situation.track = track;
+        situation.time = time;
+        response.add(situation);
+        response.delta = true;
+        return response;
+    }
+
+    @Test
+    public void tracksChanges() {
+        SituationStore store = new SituationStore();
+        store.apply(reply("user1", 55, 37, 1, 90, 1000), "me");
+        Situation situation = store.getSituations().get(0);
+        assertEquals(Situation.DIRTY_ALL, store.takeDirty(situation));
+        assertEquals(0, store.takeDirty(situation));
+
+        // Same fix costs nothing
+        store.apply(reply("user1", 55, 37, 1, 90, 1000), "me");
+        assertEquals(0, store.takeDirty(situation));
+        // Newer fix at the same place does not change the map either
+        store.apply(reply("user1", 55, 37, 1, 90, 2000), "me");
+        assertEquals(0, store.takeDirty(situation));
+
+        store.apply(reply("user1", 55.001, 37, 1, 90, 3000), "me");
+        assertEquals(Situation.DIRTY_POSITION, store.takeDirty(situation));
+        store.apply(reply("user1", 55.001, 37, 2, 95, 4000), "me");
+        assertEquals(Situation.DIRTY_VISUALS, store.takeDirty(situation));
+
+        assertFalse(store.updateSilence(5000, 10000));
+        assertEquals(0, store.takeDirty(situation));
+        assertTrue(store.updateSilence(20000, 10000));
+        assertEquals(Situation.DIRTY_VISUALS, store.takeDirty(situation));
+
+        // Failed write is retried
+        store.markDirty(situation, Situation.DIRTY_POSITION);
+        store.markDirty(Situation.DIRTY_VISUALS);
+        assertEquals(Situation.DIRTY_POSITION | Situation.DIRTY_VISUALS, store.takeDirty(situation));
+    }
+
+    @Test
+    public void quietSessionCostsNothing() throws Exception {
+        SharingServerStub server = new SharingServerStub(true);
+        for (int i = 0; i < 200; i++)
+            server.update("user" + i, 55 + i * 0.001, 37, 1, i, 1000);
+        SituationStore store = new SituationStore();
+        store.apply(SharingServerStub.parse(server.handle("session=test")), "me");
+        for (Situation situation : store.getSituations())
+            store.takeDirty(situation);
+
+        // Legacy server repeats full snapshot, only moved users are dirty
+        server.update("user7", 56, 37, 1, 7, 2000);
+        store.apply(SharingServerStub.parse(server.handle("session=test")), "me");
+        int dirty = 0;
+        for (Situation situation : store.getSituations()) {
+            if (store.takeDirty(situation) != 0)
+                dirty++;
+        }
+        assertEquals(1, dirty);
+    }
+
+    @Test
+    public void reusesSlots() {
+        SituationStore store = new SituationStore();
+        for (int i = 0; i < 100; i++)
+            store.apply(reply("user" + i, 55, 37 + i * 0.001, 1, 90, 1000), "me");
+        assertEquals(100, store.size());
+        SharingResponse response = new SharingResponse();
+        response.delta = true;
+        for (int i = 0; i < 100; i += 2)
+            response.removed.add("user" + i);
+        assertEquals(50, store.apply(response, "me").size());
+        assertEquals(50, store.size());
+        assertNull(store.remove("user0"));
+
+        // New users take freed slots, old users keep their state
+        for (int i = 100; i < 150; i++)
+            store.apply(reply("user" + i, 56, 38, 2, 180, 2000), "me");
+        assertEquals(100, store.size());
+        for (Situation situation : store.getSituations()) {
+            int n = Integer.parseInt(situation.name.substring(4));
+            assertEquals(n < 100 ? 37 + n * 0.001 : 38, situation.longitude, 1E-9);
+            assertEquals(Situation.DIRTY_ALL, store.takeDirty(situation));
+        }
+
+        // Changes of users that have left are dropped
+        Situation other = new Situation("user0");
+        store.markDirty(other, Situation.DIRTY_POSITION);
+        assertEquals(0, store.takeDirty(other));
+    }
+
+    @Test
+    public void remembersUsersPlacedOnMap() {
+        SituationStore store = new SituationStore();
+        store.apply(reply("user1", 55, 37, 1, 90, 1000), "me");
+        Situation situation = store.getSituations().get(0);
+        assertFalse(store.wasPlaced(situation));
+        situation.id = 10;
+        store.setMapObject(situation);
+        assertTrue(store.wasPlaced(situation));
+        // Object removed while user is hidden in cluster
+        situation.id = 0;
+        store.setMapObject(situation);
+        assertTrue(store.wasPlaced(situation));
+
+        // User that rejoins session is new again
+        store.remove("user1");
+        assertFalse(store.wasPlaced(situation));
+        store.apply(reply("user1", 55, 37, 1, 90, 2000), "me");
+        assertFalse(store.wasPlaced(situation));
+    }
+
+    @Test
+    public void removesUsersMissingInFullSnapshot() {
+        SituationStore store = new SituationStore();
+        SharingResponse response = reply("user1", 55, 37, 1, 90, 1000);
+        response.add(reply("user2", 56, 37, 1, 90, 1000).get(0));
+        response.delta = false;
+        response.cursor = 1;
+        assertTrue(store.apply(response, "me").isEmpty());
+        response = reply("user2", 56, 37, 1, 90, 2000);
+        response.delta = false;
+        response.cursor = 2;
+        List<Situation> left = store.apply(response, "me");
+        assertEquals(1, left.size());
+        assertEquals("user1", left.get(0).name);
+        assertEquals(1, store.size());
+        assertEquals(2000, store.getSituations().get(0).time);
+    }
+
+    @Test
+    public void publishesImmutableSnapshots() {
+        SituationStore store = new SituationStore();
+        store.apply(reply("user1", 55, 37, 1, 90, 1000), "me");
+        store.apply(reply("user2", 56, 37, 1, 90, 1000), "me");
+        SituationSnapshot first = store.snapshot(Double.NaN, Double.NaN);
+        assertEquals(2, first.size());
+        assertFalse(first.isLocated());
+        assertNull(first.get(2));
+
+        // Map object id is set after store update
+        Situation view = store.getSituations().get(1);
+        view.id = 42;
+        store.setMapObject(view);
+        store.apply(reply("user1", 55.001, 37, 1, 90, 2000), "me");
+        SituationSnapshot second = store.snapshot(55, 37);
+        assertTrue(second.version > first.version);
+        assertTrue(second.isLocated());
+        // Published snapshot is not changed by updates
+        assertEquals(55, first.get(0).latitude, 0);
+        assertEquals(55.001, second.get(0).latitude, 0);
+        assertEquals(0, first.get(1).id);
+        assertEquals(42, second.get(1).id);
+        // Unchanged users are shared
+        assertNotSame(store.getSituations().get(0), second.get(0));
+        assertSame(second.get(0), store.snapshot(55, 37).get(0));
+
+        SituationSnapshot moved = second.withLocation(56, 38);
+        assertEquals(second.version, moved.version);
+        assertSame(second.get(1), moved.get(1));
+        assertEquals(56, moved.latitude, 0);
+    }
+
+    @Test
+    public void markerKeyIgnoresInvisibleChanges() {
+        MarkerRenderer renderer = new MarkerRenderer(new MarkerCache(MarkerCache.DEFAULT_BUDGET), null);
+        renderer.setStyle(0xffff0000, 2);
+        long key = renderer.getKey(90, 1.5, false);
+        assertEquals(key, renderer.getKey(91, 1.51, false));
+        assertNotEquals(key, renderer.getKey(100, 1.5, false));
+        assertNotEquals(key, renderer.getKey(90, 1.5, true));
+        renderer.setStyle(0xff00ff00, 2);
+        assertNotEquals(key, renderer.getKey(90, 1.5, false));
+    }
+}
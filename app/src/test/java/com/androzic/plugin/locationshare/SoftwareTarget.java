@@ -0,0 +1,62 @@
+package com.androzic.plugin.locationshare;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Software surface: rasterizes marker into pixel buffer and deflates it, as PNG encoder does.
+ */
+class SoftwareTarget implements MarkerRenderer.Target {
+    private final int[] pixels;
+    private final byte[] row;
+    private final byte[] buffer = new byte[8192];
+    private final Deflater deflater = new Deflater();
+    private final int color;
+    private final int pointWidth;
+
+    SoftwareTarget(int maxSize, int color, int pointWidth) {
+        pixels = new int[maxSize * maxSize];
+        row = new byte[maxSize * 4];
+        this.color = color;
+        this.pointWidth = pointWidth;
+    }
+
+    private void plot(int size, double x, double y, int argb) {
+        int px = (int) Math.round(x);
+        int py = (int) Math.round(y);
+        for (int dy = -pointWidth; dy < pointWidth; dy++)
+            for (int dx = -pointWidth; dx < pointWidth; dx++)
+                if (px + dx >= 0 && px + dx < size && py + dy >= 0 && py + dy < size)
+                    pixels[(py + dy) * size + px + dx] = argb;
+    }
+
+    @Override
+    public void render(int size, int trackBucket, int length, boolean silent, ByteArrayOutputStream out) {
+        Arrays.fill(pixels, 0, size * size, 0);
+        int argb = (silent ? 0x80000000 : 0xff000000) | color;
+        double center = size / 2.0;
+        for (int radius : new int[]{pointWidth, pointWidth * 6})
+            for (int a = 0; a < 360; a += 3)
+                plot(size, center + radius * Math.cos(Math.toRadians(a)), center + radius * Math.sin(Math.toRadians(a)), argb);
+        double angle = Math.toRadians(trackBucket * MarkerCache.TRACK_STEP);
+        for (int r = pointWidth * 6; r < pointWidth * 6 + length; r++)
+            plot(size, center + r * Math.sin(angle), center - r * Math.cos(angle), argb);
+        deflater.reset();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int pixel = pixels[y * size + x];
+                row[x * 4] = (byte) (pixel >> 16);
+                row[x * 4 + 1] = (byte) (pixel >> 8);
+                row[x * 4 + 2] = (byte) pixel;
+                row[x * 4 + 3] = (byte) (pixel >> 24);
+            }
+            deflater.setInput(row, 0, size * 4);
+            while (!deflater.needsInput())
+                out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.finish();
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+    }
+}
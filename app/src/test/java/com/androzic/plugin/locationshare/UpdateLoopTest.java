@@ -0,0 +1,157 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.*;
+
+public class UpdateLoopTest {
+    private static final long INTERVAL = 10000;
+
+    private static class FakeExchange implements UpdatePipeline.Exchange {
+        final long token;
+        boolean cancelled;
+
+        FakeExchange(long token) {
+            this.token = token;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static class Harness {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final Queue<FutureTask<?>> polls = new ArrayDeque<>();
+        final List<Long> delays = new ArrayList<>();
+        final List<FakeExchange> started = new ArrayList<>();
+        final PushChannel pushChannel = new PushChannel();
+        final UpdatePipeline pipeline = new UpdatePipeline(tasks::add, token -> {
+            FakeExchange exchange = new FakeExchange(token);
+            started.add(exchange);
+            return exchange;
+        });
+        final UpdateLoop loop = new UpdateLoop((task, delay) -> {
+            FutureTask<?> future = new FutureTask<>(task, null);
+            polls.add(future);
+            delays.add(delay);
+            return future;
+        }, pipeline, pushChannel, new FailurePolicy(), () -> INTERVAL);
+
+        /**
+         * Runs scheduled polls, not those they schedule, and exchanges they start.
+         */
+        void run() {
+            for (int i = polls.size(); i > 0; i--) {
+                polls.poll().run();
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+            }
+        }
+
+        FakeExchange last() {
+            return started.get(started.size() - 1);
+        }
+
+        long lastDelay() {
+            return delays.get(delays.size() - 1);
+        }
+
+        /**
+         * Delivers reply to the last exchange.
+         */
+        void reply(int wait) {
+            boolean hold = loop.onReply(wait);
+            pipeline.finish(last().token, hold);
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    @Test
+    public void pollsAtInterval() {
+        Harness h = new Harness();
+        h.loop.start(0);
+        h.run();
+        assertEquals(1, h.started.size());
+        assertTrue(h.loop.isRunning());
+        assertEquals(INTERVAL, h.lastDelay());
+        h.reply(0);
+        assertFalse(h.pipeline.isBusy());
+        assertEquals(1, h.polls.size());
+        h.loop.stop();
+        assertFalse(h.loop.isRunning());
+        h.run();
+        assertEquals(1, h.started.size());
+    }
+
+    @Test
+    public void holdsPushRequest() {
+        Harness h = new Harness();
+        h.loop.start(0);
+        h.run();
+        // Server supports push, polling stops while request is held
+        h.reply(30);
+        assertFalse(h.loop.isRunning());
+        assertEquals(2, h.started.size());
+        assertTrue(h.pipeline.isBusy());
+        // Push ends, polling resumes right away
+        h.reply(0);
+        assertTrue(h.loop.isRunning());
+        assertEquals(0, h.lastDelay());
+    }
+
+    @Test
+    public void sessionChangeDropsHeldRequest() {
+        Harness h = new Harness();
+        h.loop.start(0);
+        h.run();
+        h.reply(30);
+        FakeExchange held = h.last();
+        assertFalse(h.loop.isRunning());
+
+        h.loop.restart();
+        assertTrue(held.cancelled);
+        assertFalse(h.pushChannel.isActive());
+        assertFalse(h.pipeline.isCurrent(held.token));
+        // New session is polled right away and polling goes on
+        h.run();
+        assertEquals(3, h.started.size());
+        assertTrue(h.pipeline.isCurrent(h.last().token));
+        assertTrue(h.loop.isRunning());
+        assertEquals(INTERVAL, h.lastDelay());
+    }
+
+    @Test
+    public void failedPushFallsBackToPolling() {
+        Harness h = new Harness();
+        h.loop.start(0);
+        h.run();
+        h.reply(30);
+        for (int i = 0; i < PushChannel.MAX_RECONNECTS; i++) {
+            h.pipeline.fail(h.last().token);
+            h.loop.onFailure(true);
+            // Reconnect right away
+            assertEquals(0, h.lastDelay());
+            assertTrue(h.pushChannel.isActive());
+            h.run();
+        }
+        h.pipeline.fail(h.last().token);
+        h.loop.onFailure(true);
+        assertFalse(h.pushChannel.isActive());
+        assertEquals(INTERVAL, h.lastDelay());
+        // Failed poll leaves retry to the scheduled one
+        int scheduled = h.delays.size();
+        h.loop.onFailure(false);
+        assertEquals(scheduled, h.delays.size());
+    }
+}
@@ -0,0 +1,197 @@
+package com.androzic.plugin.locationshare;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class UpdatePipelineTest {
+    private static class FakeExchange implements UpdatePipeline.Exchange {
+        final long token;
+        boolean cancelled;
+
+        FakeExchange(long token) {
+            this.token = token;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static class Harness {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final List<FakeExchange> started = new ArrayList<>();
+        boolean startNothing = false;
+        final UpdatePipeline pipeline = new UpdatePipeline(tasks::add, token -> {
+            if (startNothing)
+                return null;
+            FakeExchange exchange = new FakeExchange(token);
+            started.add(exchange);
+            return exchange;
+        });
+
+        void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        FakeExchange last() {
+            return started.get(started.size() - 1);
+        }
+    }
+
+    @Test
+    public void coalescesTriggers() {
+        Harness h = new Harness();
+        h.pipeline.trigger();
+        h.run();
+        assertEquals(1, h.started.size());
+        assertTrue(h.pipeline.isBusy());
+
+        for (int i = 0; i < 5; i++)
+            h.pipeline.trigger();
+        h.run();
+        assertEquals(1, h.started.size());
+
+        assertTrue(h.pipeline.finish(h.last().token, false));
+        h.run();
+        // Single follow-up for all triggers
+        assertEquals(2, h.started.size());
+        assertTrue(h.pipeline.finish(h.last().token, false));
+        h.run();
+        assertEquals(2, h.started.size());
+        assertFalse(h.pipeline.isBusy());
+
+        // Explicit follow-up
+        h.pipeline.trigger();
+        h.run();
+        assertTrue(h.pipeline.finish(h.last().token, true));
+        h.run();
+        assertEquals(4, h.started.size());
+    }
+
+    @Test
+    public void ignoresSupersededReplies() {
+        Harness h = new Harness();
+        h.pipeline.trigger();
+        h.run();
+        FakeExchange first = h.last();
+        h.pipeline.supersede();
+        h.run();
+        FakeExchange second = h.last();
+        assertTrue(first.cancelled);
+        assertFalse(second.cancelled);
+        assertFalse(h.pipeline.isCurrent(first.token));
+        assertFalse(h.pipeline.finish(first.token, false));
+        assertTrue(h.pipeline.isBusy());
+        assertTrue(h.pipeline.finish(second.token, false));
+
+        // Superseded before it was started
+        h.pipeline.trigger();
+        h.pipeline.supersede();
+        h.run();
+        assertEquals(3, h.started.size());
+
+        h.pipeline.cancel();
+        assertTrue(h.last().cancelled);
+        assertFalse(h.pipeline.isBusy());
+    }
+
+    @Test
+    public void failureDropsFollowUp() {
+        Harness h = new Harness();
+        h.pipeline.trigger();
+        h.run();
+        h.pipeline.trigger();
+        h.pipeline.fail(h.last().token);
+        h.run();
+        assertEquals(1, h.started.size());
+        assertFalse(h.pipeline.isBusy());
+
+        // Nothing started, pipeline is released
+        h.startNothing = true;
+        h.pipeline.trigger();
+        h.run();
+        assertFalse(h.pipeline.isBusy());
+    }
+
+    @Test
+    public void keepsSingleExchangeInFlight() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService network = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicLong applied = new AtomicLong();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicInteger exchanges = new AtomicInteger();
+        Random random = new Random(1);
+        UpdatePipeline[] holder = new UpdatePipeline[1];
+        holder[0] = new UpdatePipeline(executor, token -> {
+            exchanges.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            FakeExchange exchange = new FakeExchange(token);
+            // Slow network with random reply time
+            network.schedule(() -> {
+                synchronized (holder) {
+                    UpdatePipeline pipeline = holder[0];
+                    if (pipeline.isCurrent(token)) {
+                        if (token < applied.get())
+                            outOfOrder.incrementAndGet();
+                        applied.set(token);
+                        inFlight.decrementAndGet();
+                        pipeline.finish(token, false);
+                    } else if (exchange.cancelled) {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            }, random.nextInt(5), TimeUnit.MILLISECONDS);
+            return exchange;
+        });
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean supersede = i == 0;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 500; j++) {
+                    if (supersede && j % 50 == 0)
+                        holder[0].supersede();
+                    else
+                        holder[0].trigger();
+                    try {
+                        Thread.sleep(0, 200000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (holder[0].isBusy() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        executor.shutdown();
+        network.shutdown();
+
+        assertFalse(holder[0].isBusy());
+        assertEquals(0, outOfOrder.get());
+        // Superseded exchanges can overlap with their replacements only until they are cancelled
+        assertTrue(maxInFlight.get() <= 2);
+        assertTrue(exchanges.get() < 2000);
+    }
+}
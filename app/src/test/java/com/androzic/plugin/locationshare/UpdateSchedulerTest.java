@@ -0,0 +1,94 @@
+package com.androzic.plugin.locationshare;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UpdateSchedulerTest {
+    private static UpdateScheduler scheduler() {
+        UpdateScheduler scheduler = new UpdateScheduler();
+        scheduler.setIntervals(60000, 10000, 600000);
+        return scheduler;
+    }
+
+    @Test
+    public void followsMotion() {
+        UpdateScheduler scheduler = scheduler();
+        assertEquals(10000, scheduler.update(0, 10, 0, true, false));
+        assertEquals(UpdateScheduler.Reason.MOVING, scheduler.getReason());
+        assertEquals(10000, scheduler.update(0, 0, 6, true, false));
+        assertEquals(UpdateScheduler.Reason.PEERS_MOVING, scheduler.getReason());
+        assertEquals(60000, scheduler.update(0, 1.5, 0, true, false));
+        assertEquals(UpdateScheduler.Reason.REGULAR, scheduler.getReason());
+        assertEquals(240000, scheduler.update(0, 0, 0.1, true, false));
+        assertEquals(UpdateScheduler.Reason.STATIONARY, scheduler.getReason());
+        assertEquals(240000, scheduler.update(0, Double.NaN, Double.NaN, true, false));
+        assertEquals(UpdateScheduler.Reason.STATIONARY, scheduler.getReason());
+    }
+
+    @Test
+    public void followsDeviceState() {
+        UpdateScheduler scheduler = scheduler();
+        assertEquals(120000, scheduler.update(0, 10, 0, false, false));
+        assertEquals(UpdateScheduler.Reason.SCREEN_OFF, scheduler.getReason());
+        // Stationary interval is already longer
+        assertEquals(240000, scheduler.update(0, 0, 0, false, false));
+        assertEquals(UpdateScheduler.Reason.STATIONARY, scheduler.getReason());
+        assertEquals(600000, scheduler.update(0, 10, 10, true, true));
+        assertEquals(UpdateScheduler.Reason.BATTERY_LOW, scheduler.getReason());
+    }
+
+    @Test
+    public void respectsBounds() {
+        UpdateScheduler scheduler = new UpdateScheduler();
+        scheduler.setIntervals(60000, 30000, 90000);
+        assertEquals(30000, scheduler.update(0, 10, 0, true, false));
+        assertEquals(90000, scheduler.update(0, 0, 0, true, false));
+        assertEquals(90000, scheduler.update(0, 0, 0, true, true));
+        scheduler.setIntervals(5000, 10000, 600000);
+        assertEquals(10000, scheduler.update(0, 1, 1, true, false));
+    }
+
+    @Test
+    public void canBeFixed() {
+        UpdateScheduler scheduler = scheduler();
+        scheduler.setAdaptive(false);
+        assertEquals(60000, scheduler.update(0, 10, 10, false, true));
+        assertEquals(UpdateScheduler.Reason.FIXED, scheduler.getReason());
+    }
+
+    @Test
+    public void countsSavedRequests() {
+        UpdateScheduler scheduler = scheduler();
+        long time = 0;
+        // Everybody stays still for an hour
+        while (time < 3600000)
+            time += scheduler.update(time, 0, 0, true, false);
+        assertEquals(60 - 15, scheduler.getSavedRequests(time - 1), 1);
+    }
+
+    @Test
+    public void selectsNearbyPeers() {
+        SituationStore store = new SituationStore();
+        SharingResponse response = new SharingResponse();
+        response.add(situation("near", 55.001, 37.001, 2));
+        response.add(situation("far", 56, 37, 20));
+        response.add(situation("silent", 55, 37, 30));
+        store.apply(response, "me");
+        store.updateSilence(3000, 1000);
+        assertEquals(2, store.getMaxSpeed(55, 37, UpdateScheduler.NEARBY_DISTANCE), 0);
+        assertEquals(20, store.getMaxSpeed(Double.NaN, Double.NaN, UpdateScheduler.NEARBY_DISTANCE), 0);
+        assertTrue(Double.isNaN(store.getMaxSpeed(0, 0, UpdateScheduler.NEARBY_DISTANCE)));
+    }
+
+    private static Situation situation(String name, double lat, double lon, double speed) {
+        Situation situation = new Situation(name);
+        situation.latitude = lat;
+        situation.longitude = lon;
+        situation.speed = speed;
+        situation.time = "silent".equals(name) ? 0 : 3000;
+        return situation;
+    }
+}
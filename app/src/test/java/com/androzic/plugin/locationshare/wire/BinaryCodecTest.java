@@ -0,0 +1,179 @@
+package com.androzic.plugin.locationshare.wire;
+
+import com.androzic.data.Situation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+    private static Situation situation(String name, double lat, double lon, double speed, double track, long time) {
+        Situation situation = new Situation(name);
+        situation.latitude = lat;
+        situation.longitude = lon;
+        situation.speed = speed;
+        situation.track = track;
+        situation.time = time;
+        return situation;
+    }
+
+    private static BinaryCodec.Reply roundTrip(BinaryCodec encoder, BinaryCodec decoder, BinaryCodec.Reply reply) throws IOException {
+        byte[] data = encoder.encode(reply);
+        return decoder.decode(data, 0, data.length);
+    }
+
+    private static void assertFix(Situation expected, Situation actual) {
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.latitude, actual.latitude, 0.5e-6);
+        assertEquals(expected.longitude, actual.longitude, 0.5e-6);
+        assertEquals(expected.speed, actual.speed, 0.05);
+        assertEquals(expected.track, actual.track, 0.5);
+        assertEquals(expected.time, actual.time);
+    }
+
+    @Test
+    public void varIntRoundTrip() throws Exception {
+        long[] values = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values)
+            VarInt.writeSigned(out, value);
+        ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+        for (long value : values)
+            assertEquals(value, VarInt.readSigned(in));
+        assertFalse(in.hasRemaining());
+
+        out.reset();
+        VarInt.writeSigned(out, -1);
+        assertEquals(1, out.size());
+    }
+
+    @Test
+    public void fixRoundTrip() throws Exception {
+        Situation fix = situation(null, -33.8567844, 151.213108, 12.34, 359.7, 1700000000123L);
+        Situation decoded = BinaryCodec.decodeFix(BinaryCodec.encodeFix(fix));
+        assertEquals(fix.latitude, decoded.latitude, 0.5e-6);
+        assertEquals(fix.longitude, decoded.longitude, 0.5e-6);
+        assertEquals(12.3, decoded.speed, 1e-9);
+        assertEquals(0, decoded.track, 0);
+        assertEquals(fix.time, decoded.time);
+    }
+
+    @Test
+    public void replyRoundTrip() throws Exception {
+        BinaryCodec encoder = new BinaryCodec();
+        BinaryCodec decoder = new BinaryCodec();
+
+        BinaryCodec.Reply full = new BinaryCodec.Reply();
+        full.cursor = 10;
+        full.users.add(situation("Алиса", 55.7558, 37.6173, 1.4, 45, 1700000000000L));
+        full.users.add(situation("Bob", -0.000001, -179.999999, 0, 0, 1700000001000L));
+        BinaryCodec.Reply decoded = roundTrip(encoder, decoder, full);
+        assertEquals(10, decoded.cursor);
+        assertFalse(decoded.delta);
+        assertEquals(2, decoded.users.size());
+        assertFix(full.users.get(0), decoded.users.get(0));
+        assertFix(full.users.get(1), decoded.users.get(1));
+
+        BinaryCodec.Reply delta = new BinaryCodec.Reply();
+        delta.cursor = 12;
+        delta.delta = true;
+        delta.users.add(situation("Bob", 0.0001, 179.999999, 3.3, 271, 1700000011000L));
+        delta.users.add(situation("Carol", 10, 20, 5, 180, 1700000012000L));
+        delta.removed.add("Алиса");
+        delta.removed.add("Nobody");
+        decoded = roundTrip(encoder, decoder, delta);
+        assertEquals(12, decoded.cursor);
+        assertTrue(decoded.delta);
+        assertEquals(2, decoded.users.size());
+        assertFix(delta.users.get(0), decoded.users.get(0));
+        assertFix(delta.users.get(1), decoded.users.get(1));
+        assertEquals(1, decoded.removed.size());
+        assertEquals("Алиса", decoded.removed.get(0));
+        assertEquals(12, decoder.getCursor());
+    }
+
+    @Test
+    public void deltaIsSmallerThanKeyFrame() throws Exception {
+        BinaryCodec encoder = new BinaryCodec();
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        reply.cursor = 1;
+        reply.users.add(situation("Bob", 55.7558, 37.6173, 1.4, 45, 1700000000000L));
+        int full = encoder.encode(reply).length;
+        reply.cursor = 2;
+        reply.delta = true;
+        reply.users.set(0, situation("Bob", 55.7559, 37.6175, 1.4, 45, 1700000010000L));
+        int delta = encoder.encode(reply).length;
+        assertTrue(delta + " < " + full, delta < full);
+    }
+
+    @Test
+    public void outOfSyncDeltaIsRejected() throws Exception {
+        BinaryCodec encoder = new BinaryCodec();
+        BinaryCodec decoder = new BinaryCodec();
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        reply.cursor = 1;
+        reply.users.add(situation("Bob", 1, 2, 0, 0, 1000));
+        encoder.encode(reply); // lost on the way
+        reply.cursor = 2;
+        reply.delta = true;
+        byte[] data = encoder.encode(reply);
+        try {
+            decoder.decode(data, 0, data.length);
+            fail("Delta based on unknown state should be rejected");
+        } catch (IOException ignore) {
+        }
+        assertEquals(BinaryCodec.NO_CURSOR, decoder.getCursor());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrameIsRejected() throws Exception {
+        BinaryCodec encoder = new BinaryCodec();
+        BinaryCodec.Reply reply = new BinaryCodec.Reply();
+        reply.cursor = 1;
+        reply.users.add(situation("Bob", 1, 2, 0, 0, 1000));
+        byte[] data = encoder.encode(reply);
+        new BinaryCodec().decode(data, 0, data.length - 3);
+    }
+
+    /**
+     * Builds full frame with one user entry: version, flags, user count, id key, name length.
+     */
+    private static byte[] frame(long users, long key, long nameLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);
+        out.write(0);
+        VarInt.write(out, users);
+        VarInt.write(out, key);
+        VarInt.write(out, nameLength);
+        out.write('B');
+        for (int i = 0; i < 5; i++)
+            out.write(0);
+        VarInt.write(out, 0);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void hostileSizesAreRejected() throws Exception {
+        // Sane frame is accepted
+        byte[] data = frame(1, 1, 1);
+        assertEquals("B", new BinaryCodec().decode(data, 0, data.length).users.get(0).name);
+        long[][] frames = {
+                {Integer.MAX_VALUE, 1, 1}, // user count
+                {1, 1, Integer.MAX_VALUE}, // name length
+                {1, (long) Integer.MAX_VALUE << 1 | 1, 1}, // user id
+                {1, Long.MAX_VALUE, 1}, // user id out of int range
+        };
+        for (long[] frame : frames) {
+            data = frame(frame[0], frame[1], frame[2]);
+            try {
+                new BinaryCodec().decode(data, 0, data.length);
+                fail("Frame should be rejected: " + frame[0] + ", " + frame[1] + ", " + frame[2]);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}